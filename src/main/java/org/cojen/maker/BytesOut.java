@@ -21,11 +21,15 @@ import java.lang.invoke.VarHandle;
 
 import java.nio.ByteOrder;
 
+import java.nio.charset.StandardCharsets;
+
 import java.io.IOException;
 import java.io.OutputStream;
 
 import java.util.Arrays;
 
+import java.util.concurrent.atomic.LongAdder;
+
 /**
  * Simple buffer/stream for writing ClassFile output.
  *
@@ -64,6 +68,17 @@ final class BytesOut {
         mBuffer = new byte[bufferSize];
     }
 
+    /**
+     * Write directly into the given buffer, starting at the given offset. The buffer is
+     * replaced with a larger copy if it fills up.
+     */
+    static BytesOut into(byte[] buffer, int offset) {
+        var out = new BytesOut(null, 0);
+        out.mBuffer = buffer;
+        out.mSize = offset;
+        return out;
+    }
+
     public int size() {
         return mSize;
     }
@@ -164,6 +179,14 @@ final class BytesOut {
     }
 
     private static int fullCheckUTF(String str) {
+        int utflen = utfLength(str);
+        return utflen <= 65535 ? 0 : utflen;
+    }
+
+    /**
+     * Returns the number of bytes written by the writeUTF method, excluding the length field.
+     */
+    public static int utfLength(String str) {
         final int length = str.length();
 
         int utflen = 0;
@@ -179,7 +202,85 @@ final class BytesOut {
             }
         }
 
-        return utflen <= 65535 ? 0 : utflen;
+        return utflen;
+    }
+
+    /**
+     * Returns the modified UTF-8 encoding of the given string, excluding the length field.
+     * Encodings of short strings are cached and shared by all classes, and so the returned
+     * array must not be modified.
+     *
+     * @throws IllegalStateException if the encoding is too large
+     */
+    public static byte[] encodeUTF(String str) {
+        return UTFCache.encode(str);
+    }
+
+    /**
+     * Direct mapped cache of encoded strings. Common names and descriptors appear in most
+     * classes, and so they don't need to be encoded again.
+     */
+    static final class UTFCache {
+        // This code is in an inner class to avoid loading it eagerly.
+
+        private static final int SIZE = 1024; // must be a power of 2
+        private static final int MAX_LENGTH = 100;
+
+        private static final Entry[] cEntries = new Entry[SIZE];
+
+        static final LongAdder cHits = new LongAdder(), cMisses = new LongAdder();
+
+        static byte[] encode(String str) {
+            // Entries are immutable, and so they can be accessed without synchronization.
+            // A race to replace an entry just causes a few extra misses.
+            Entry[] entries = cEntries;
+            int slot = str.hashCode() & (SIZE - 1);
+            Entry e = entries[slot];
+            if (e != null && (e.mString == str || e.mString.equals(str))) {
+                cHits.increment();
+                return e.mBytes;
+            }
+
+            cMisses.increment();
+
+            int utflen = utfLength(str);
+
+            if (utflen > 65535) {
+                throw new IllegalStateException
+                    ("String constant is too large: " + utflen + " bytes");
+            }
+
+            byte[] bytes;
+            if (utflen == str.length()) {
+                // Plain ASCII, with no zero characters, and so the encoding is the same.
+                bytes = str.getBytes(StandardCharsets.ISO_8859_1);
+            } else {
+                var out = new BytesOut(null, 2 + utflen);
+                try {
+                    out.writeUTF(str);
+                } catch (IOException ex) {
+                    // Not expected.
+                    throw new RuntimeException(ex);
+                }
+                bytes = Arrays.copyOfRange(out.mBuffer, 2, out.mSize);
+            }
+
+            if (str.length() <= MAX_LENGTH) {
+                entries[slot] = new Entry(str, bytes);
+            }
+
+            return bytes;
+        }
+
+        private static final class Entry {
+            final String mString;
+            final byte[] mBytes;
+
+            Entry(String str, byte[] bytes) {
+                mString = str;
+                mBytes = bytes;
+            }
+        }
     }
 
     public void write(BytesOut out) throws IOException {
@@ -193,8 +294,12 @@ final class BytesOut {
         }
     }
 
+    /**
+     * Returns the internal buffer without copying if it's exactly full.
+     */
     public byte[] toByteArray() {
-        return Arrays.copyOf(mBuffer, mSize);
+        byte[] buffer = mBuffer;
+        return mSize == buffer.length ? buffer : Arrays.copyOf(buffer, mSize);
     }
 
     private void ensureCapacity(int amt) throws IOException {
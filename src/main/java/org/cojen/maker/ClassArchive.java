@@ -0,0 +1,243 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.io.IOException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.util.function.Consumer;
+
+/**
+ * Records finished class files into a single archive file, such that a later process can
+ * define the classes without generating them again. A typical usage pattern is:
+ *
+ * <pre>{@code
+ * ClassArchive archive = ClassArchive.open(file);
+ * ...
+ * ClassMaker cm = ClassMaker.begin(...);
+ * Class<?> clazz = archive.finish(cm, key, maker -> {
+ *     // Only called if the class isn't archived yet.
+ *     ...
+ * });
+ * ...
+ * // Write any new classes to the archive file.
+ * archive.save();
+ * }</pre>
+ *
+ * <p>Archived classes are found by key when the {@code finish} method is called, and not by
+ * class name. A maker must still be created for each class, but the definer which adds its
+ * members isn't called, and the class isn't finished.
+ *
+ * <p>The class name which was assigned by the maker replaces the name in the archived class
+ * file, but no other names are replaced. Classes which refer to other classes whose names
+ * were assigned a unique suffix, such as inner classes and their outer class, are never
+ * archived, because those names differ in other processes. Each key must identify everything
+ * which affects the definition, including the explicit names of any other generated classes
+ * which it refers to. Classes which have {@link Variable#setExact exact constants} are never
+ * archived either. When the version of this library changes, the archive is discarded.
+ *
+ * @see ClassMaker#finishCached
+ */
+public final class ClassArchive {
+    private static final int MAGIC = 0x434d4152;
+
+    private final Path mFile;
+
+    // Entries loaded from the archive file, which are slices of a mapped buffer.
+    private final Map<String, ByteBuffer> mLoaded;
+
+    // Entries which were recorded by this instance.
+    private final Map<String, byte[]> mRecorded;
+
+    /**
+     * Opens an archive file, which is loaded using a single memory mapped read. If the file
+     * doesn't exist, or if it's malformed, then the archive is initially empty.
+     *
+     * @param file the archive file, which is created or replaced by the {@link #save save}
+     * method
+     */
+    public static ClassArchive open(Path file) throws IOException {
+        Objects.requireNonNull(file);
+
+        ByteBuffer buf;
+        try (var fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = fc.size();
+            if (size > Integer.MAX_VALUE) {
+                buf = null;
+            } else {
+                // Remains valid after the channel is closed.
+                buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        } catch (NoSuchFileException e) {
+            buf = null;
+        }
+
+        Map<String, ByteBuffer> loaded = null;
+
+        if (buf != null) {
+            try {
+                loaded = parse(buf);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException
+                     | IllegalArgumentException | NegativeArraySizeException e)
+            {
+                // Truncated or corrupt.
+            }
+        }
+
+        if (loaded == null) {
+            loaded = Map.of();
+        }
+
+        return new ClassArchive(file, loaded);
+    }
+
+    private ClassArchive(Path file, Map<String, ByteBuffer> loaded) {
+        mFile = file;
+        mLoaded = loaded;
+        mRecorded = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Finishes the definition of the new class, using the archived class file if it exists.
+     * Otherwise, the definer is called to define the rest of the class, which is then
+     * finished and recorded.
+     *
+     * @param maker a maker which hasn't been finished
+     * @param key identifies the class definition
+     * @param definer is called to define the class when it isn't archived
+     * @throws IllegalStateException if already finished or if the definition is broken
+     */
+    public Class<?> finish(ClassMaker maker, String key, Consumer<? super ClassMaker> definer) {
+        var cm = (TheClassMaker) maker;
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(definer);
+
+        ByteBuffer buf = mLoaded.get(key);
+        if (buf == null) {
+            byte[] bytes = mRecorded.get(key);
+            if (bytes != null) {
+                buf = ByteBuffer.wrap(bytes);
+            }
+        }
+
+        if (buf != null) {
+            try {
+                // Duplicate the buffer because defining the class changes its position.
+                buf = ClassCache.rename(buf.duplicate(), cm.name());
+            } catch (IndexOutOfBoundsException e) {
+                buf = null;
+            }
+            if (buf != null) {
+                Class<?> clazz = cm.defineStored(buf.duplicate());
+                if (clazz != null) {
+                    return clazz;
+                }
+            }
+        }
+
+        definer.accept(maker);
+
+        return cm.finishRecorded(bytes -> mRecorded.put(key, bytes));
+    }
+
+    /**
+     * Writes the archive file if any classes were recorded, replacing it atomically. The
+     * written file contains all the classes which were loaded from it and which were
+     * recorded.
+     */
+    public synchronized void save() throws IOException {
+        if (mRecorded.isEmpty()) {
+            return;
+        }
+
+        var entries = new LinkedHashMap<String, ByteBuffer>(mLoaded);
+        for (Map.Entry<String, byte[]> e : mRecorded.entrySet()) {
+            entries.put(e.getKey(), ByteBuffer.wrap(e.getValue()));
+        }
+
+        var out = new BytesOut(null, 1000);
+        out.writeInt(MAGIC);
+        writeString(out, version());
+        out.writeInt(entries.size());
+
+        for (Map.Entry<String, ByteBuffer> e : entries.entrySet()) {
+            writeString(out, e.getKey());
+            ByteBuffer buf = e.getValue();
+            var bytes = new byte[buf.capacity()];
+            buf.get(0, bytes);
+            out.writeInt(bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        ClassCache.store(mFile, out.toByteArray());
+    }
+
+    /**
+     * @return null if the version doesn't match
+     */
+    private static Map<String, ByteBuffer> parse(ByteBuffer buf) {
+        if (buf.getInt() != MAGIC || !version().equals(readString(buf))) {
+            return null;
+        }
+
+        int count = buf.getInt();
+        var loaded = new HashMap<String, ByteBuffer>();
+
+        for (int i=0; i<count; i++) {
+            String key = readString(buf);
+            int length = buf.getInt();
+            loaded.put(key, buf.slice(buf.position(), length));
+            buf.position(buf.position() + length);
+        }
+
+        return loaded;
+    }
+
+    private static String version() {
+        String version = ClassMaker.class.getPackage().getImplementationVersion();
+        return version == null ? "" : version;
+    }
+
+    private static void writeString(BytesOut out, String str) throws IOException {
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        var bytes = new byte[buf.getInt()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
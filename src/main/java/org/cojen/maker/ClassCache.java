@@ -0,0 +1,549 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Stores finished class files in a directory, to be loaded again by later processes.
+ *
+ * @see ClassMaker#finishCached
+ */
+final class ClassCache {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ClassCache() {
+    }
+
+    /**
+     * Returns the file which stores the class file for the given key. The key is combined
+     * with the version of this library, since it affects the generated code.
+     */
+    static Path file(Path directory, String key) {
+        String version = ClassMaker.class.getPackage().getImplementationVersion();
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        if (version != null) {
+            md.update(version.getBytes(StandardCharsets.UTF_8));
+        }
+        md.update((byte) 0);
+
+        byte[] digest = md.digest(key.getBytes(StandardCharsets.UTF_8));
+
+        var chars = new char[digest.length * 2 + ".class".length()];
+        int i = 0;
+        for (byte b : digest) {
+            chars[i++] = HEX[(b >> 4) & 0xf];
+            chars[i++] = HEX[b & 0xf];
+        }
+        ".class".getChars(0, 6, chars, i);
+
+        return directory.resolve(new String(chars));
+    }
+
+    /**
+     * Returns the stored class file, renamed to the given class name, or else null if the
+     * file doesn't exist or is malformed. The file is read directly into an array, which is
+     * renamed without first being copied.
+     */
+    static ByteBuffer load(Path file, String className) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(file);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        if (bytes.length < 10) {
+            return null;
+        }
+
+        try {
+            return rename(bytes, className);
+        } catch (IndexOutOfBoundsException e) {
+            // Truncated or corrupt.
+            return null;
+        }
+    }
+
+    /**
+     * Writes the class file such that concurrent readers observe it fully or not at all.
+     */
+    static void store(Path file, byte[] bytes) throws IOException {
+        Path dir = file.getParent();
+        Files.createDirectories(dir);
+        Path temp = Files.createTempFile(dir, null, ".tmp");
+        try {
+            Files.write(temp, bytes);
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Replaces the name of the class, and references to it in descriptors and signatures.
+     * Only constants which are referenced as a class name, descriptor, or signature are
+     * changed. If such a constant is also referenced by a string constant, a new constant is
+     * added instead, and so string literals are never changed.
+     *
+     * @return null if malformed
+     */
+    static ByteBuffer rename(ByteBuffer buf, String className) {
+        var bytes = new byte[buf.capacity()];
+        buf.get(0, bytes);
+        return rename(bytes, className);
+    }
+
+    /**
+     * Same as the other rename method, except the class file is given by an array, which
+     * is modified if the class is renamed.
+     *
+     * @return null if malformed
+     */
+    static ByteBuffer rename(byte[] bytes, String className) {
+        var refs = References.parse(bytes);
+        if (refs == null) {
+            return null;
+        }
+
+        byte[] oldName = refs.mThisName;
+        byte[] newName = BytesOut.encodeUTF(className.replace('.', '/'));
+
+        if (Arrays.equals(oldName, newName)) {
+            return ByteBuffer.wrap(bytes);
+        }
+
+        refs.findAll();
+
+        final int count = refs.mOffsets.length;
+        final int[] offsets = refs.mOffsets;
+        final int[] ends = refs.mEnds;
+        final int cpEnd = refs.mEnd;
+
+        // Replacement values, and the new indexes for constants which must be split.
+        var values = new byte[count][];
+        var remap = new int[count];
+        var added = new ArrayList<byte[]>();
+        int newCount = count;
+
+        for (int i=1; i<count; i++) {
+            remap[i] = i;
+            if (!refs.mRename[i]) {
+                continue;
+            }
+            int start = offsets[i];
+            if (bytes[start] != 1) {
+                return null;
+            }
+            byte[] value = Arrays.copyOfRange(bytes, start + 3, ends[i]);
+            byte[] replaced = replace(value, oldName, newName);
+            if (replaced == value) {
+                continue;
+            }
+            if (replaced.length > 65535) {
+                return null;
+            }
+            if (refs.mStrings[i]) {
+                remap[i] = newCount++;
+                added.add(replaced);
+            } else {
+                values[i] = replaced;
+            }
+        }
+
+        if (newCount > 65535) {
+            return null;
+        }
+
+        // Update the references which are outside the constant pool.
+        for (int i=0; i<refs.mSize; i++) {
+            int pos = refs.mPositions[i];
+            int index;
+            if (pos >= cpEnd && remap[index = refs.index(pos)] != index) {
+                bytes[pos] = (byte) (remap[index] >> 8);
+                bytes[pos + 1] = (byte) remap[index];
+            }
+        }
+
+        var out = new BytesOut(null, bytes.length + (count << 2));
+
+        try {
+            out.write(bytes, 0, 8);
+            out.writeShort(newCount);
+            for (int i=1; i<count; i++) {
+                int start = offsets[i];
+                if (start == 0) {
+                    continue;
+                }
+                switch (bytes[start]) {
+                case 1 -> {
+                    byte[] value = values[i];
+                    if (value == null) {
+                        out.write(bytes, start, ends[i] - start);
+                    } else {
+                        out.writeByte(1);
+                        out.writeShort(value.length);
+                        out.write(value, 0, value.length);
+                    }
+                }
+                case 7, 16 -> {
+                    out.writeByte(bytes[start]);
+                    out.writeShort(remap[refs.index(start + 1)]);
+                }
+                case 12 -> {
+                    out.write(bytes, start, 3);
+                    out.writeShort(remap[refs.index(start + 3)]);
+                }
+                default -> out.write(bytes, start, ends[i] - start);
+                }
+            }
+            for (byte[] value : added) {
+                out.writeByte(1);
+                out.writeShort(value.length);
+                out.write(value, 0, value.length);
+            }
+            out.write(bytes, cpEnd, bytes.length - cpEnd);
+        } catch (IOException e) {
+            // Not expected.
+            throw new IllegalStateException(e);
+        }
+
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * Returns true if the class file doesn't refer to any classes which were assigned a
+     * suffix, other than itself. These names differ in other processes, and only the name of
+     * the class itself is replaced when a stored class file is loaded.
+     */
+    static boolean isSelfContained(byte[] bytes) {
+        try {
+            var refs = References.parse(bytes);
+            if (refs == null) {
+                return false;
+            }
+
+            refs.findAll();
+
+            for (int i=1; i<refs.mOffsets.length; i++) {
+                if (!refs.mRename[i]) {
+                    continue;
+                }
+                int start = refs.mOffsets[i];
+                if (bytes[start] != 1) {
+                    return false;
+                }
+                byte[] value = Arrays.copyOfRange(bytes, start + 3, refs.mEnds[i]);
+                value = replace(value, refs.mThisName, new byte[0]);
+                // Assigned names have a '-' suffix with digits, which cannot be confused with
+                // a wildcard indicator in a signature.
+                for (int j=1; j<value.length; j++) {
+                    if (value[j - 1] == '-' && '0' <= value[j] && value[j] <= '9') {
+                        return false;
+                    }
+                }
+            }
+
+            return true;
+        } catch (IndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Finds the constants which are referenced as descriptors and signatures.
+     */
+    private static final class References {
+        final byte[] mBytes;
+
+        // Start and end offsets of each constant. The second slot of a long or double
+        // constant is empty.
+        final int[] mOffsets;
+        final int[] mEnds;
+
+        // End offset of the constant pool.
+        final int mEnd;
+
+        final byte[] mThisName;
+
+        // Indexes of constants which are referenced by string constants.
+        final boolean[] mStrings;
+
+        // Indexes of constants which are referenced as a class name, descriptor, or signature.
+        final boolean[] mRename;
+
+        // Positions of the references to the constants which are renamed.
+        int[] mPositions;
+        int mSize;
+
+        /**
+         * Parses the constant pool and the name of the class.
+         *
+         * @return null if malformed
+         */
+        static References parse(byte[] bytes) {
+            var buf = ByteBuffer.wrap(bytes);
+
+            if (buf.getInt(0) != 0xcafebabe) {
+                return null;
+            }
+
+            int count = buf.getChar(8);
+
+            var offsets = new int[count];
+            var ends = new int[count];
+
+            int offset = 10;
+            for (int i=1; i<count; i++) {
+                offsets[i] = offset;
+                switch (buf.get(offset)) {
+                case 1 -> offset += 3 + buf.getChar(offset + 1); // UTF8
+                case 3, 4, 9, 10, 11, 12, 17, 18 -> offset += 5;
+                case 5, 6 -> offset += 9;
+                case 7, 8, 16, 19, 20 -> offset += 3;
+                case 15 -> offset += 4; // MethodHandle
+                default -> { return null; }
+                }
+                ends[i] = offset;
+                byte tag = buf.get(offsets[i]);
+                if (tag == 5 || tag == 6) {
+                    i++;
+                }
+            }
+
+            byte[] thisName;
+            {
+                int classOffset = offsets[buf.getChar(offset + 2)];
+                if (buf.get(classOffset) != 7) {
+                    return null;
+                }
+                int utfOffset = offsets[buf.getChar(classOffset + 1)];
+                if (buf.get(utfOffset) != 1) {
+                    return null;
+                }
+                thisName = new byte[buf.getChar(utfOffset + 1)];
+                buf.get(utfOffset + 3, thisName);
+            }
+
+            return new References(bytes, offsets, ends, offset, thisName);
+        }
+
+        private References(byte[] bytes, int[] offsets, int[] ends, int end, byte[] thisName) {
+            mBytes = bytes;
+            mOffsets = offsets;
+            mEnds = ends;
+            mEnd = end;
+            mThisName = thisName;
+            mStrings = new boolean[offsets.length];
+            mRename = new boolean[offsets.length];
+            mPositions = new int[16];
+        }
+
+        /**
+         * Finds all the references, throwing IndexOutOfBoundsException if malformed.
+         */
+        void findAll() {
+            for (int i=1; i<mOffsets.length; i++) {
+                int start = mOffsets[i];
+                if (start == 0) {
+                    continue;
+                }
+                switch (mBytes[start]) {
+                case 7, 16 -> add(start + 1, false); // Class, MethodType
+                case 8 -> mStrings[index(start + 1)] = true; // String
+                case 12 -> add(start + 3, false); // NameAndType descriptor
+                }
+            }
+
+            parseClass(mEnd);
+        }
+
+        int u2(int pos) {
+            return ((mBytes[pos] & 0xff) << 8) | (mBytes[pos + 1] & 0xff);
+        }
+
+        int u4(int pos) {
+            return (u2(pos) << 16) | u2(pos + 2);
+        }
+
+        int index(int pos) {
+            int index = u2(pos);
+            if (index == 0 || index >= mOffsets.length) {
+                throw new IndexOutOfBoundsException();
+            }
+            return index;
+        }
+
+        void add(int pos, boolean outside) {
+            mRename[index(pos)] = true;
+            if (outside) {
+                if (mSize >= mPositions.length) {
+                    mPositions = Arrays.copyOf(mPositions, mSize << 1);
+                }
+                mPositions[mSize++] = pos;
+            }
+        }
+
+        boolean isNamed(int pos, String name) {
+            int start = mOffsets[index(pos)];
+            if (mBytes[start] != 1 || u2(start + 1) != name.length()) {
+                return false;
+            }
+            for (int i=0; i<name.length(); i++) {
+                if (mBytes[start + 3 + i] != name.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        void parseClass(int pos) {
+            pos += 6; // access_flags, this_class, super_class
+            pos += 2 + u2(pos) * 2; // interfaces
+            for (int i=0; i<2; i++) { // fields and methods
+                int num = u2(pos);
+                pos += 2;
+                for (int j=0; j<num; j++) {
+                    add(pos + 4, true); // descriptor
+                    pos = parseAttributes(pos + 6);
+                }
+            }
+            pos = parseAttributes(pos);
+            if (pos != mBytes.length) {
+                throw new IndexOutOfBoundsException();
+            }
+        }
+
+        /**
+         * @return position after the attributes
+         */
+        int parseAttributes(int pos) {
+            int num = u2(pos);
+            pos += 2;
+            for (int i=0; i<num; i++) {
+                int start = pos + 6;
+                int end = start + u4(pos + 2);
+                if (end > mBytes.length || end < start) {
+                    throw new IndexOutOfBoundsException();
+                }
+                if (isNamed(pos, "Signature")) {
+                    add(start, true);
+                } else if (isNamed(pos, "Code")) {
+                    int p = start + 4;
+                    p += 4 + u4(p); // code
+                    p += 2 + u2(p) * 8; // exception table
+                    parseAttributes(p);
+                } else if (isNamed(pos, "LocalVariableTable")
+                           || isNamed(pos, "LocalVariableTypeTable"))
+                {
+                    int n = u2(start);
+                    for (int j=0; j<n; j++) {
+                        add(start + 2 + j * 10 + 6, true);
+                    }
+                } else if (isNamed(pos, "Record")) {
+                    int n = u2(start);
+                    int p = start + 2;
+                    for (int j=0; j<n; j++) {
+                        add(p + 2, true); // descriptor
+                        p = parseAttributes(p + 4);
+                    }
+                }
+                pos = end;
+            }
+            return pos;
+        }
+    }
+
+    /**
+     * Replaces a constant which exactly matches the old name, and replaces references to it
+     * within descriptors and signatures, which have the form {@code Lname;} or
+     * {@code Lname<}.
+     */
+    private static byte[] replace(byte[] value, byte[] oldName, byte[] newName) {
+        if (Arrays.equals(value, oldName)) {
+            return newName;
+        }
+
+        BytesOut out = null;
+        int last = 0;
+
+        for (int i=0; i + oldName.length + 1 < value.length; i++) {
+            if (value[i] != 'L' || !Arrays.equals(value, i + 1, i + 1 + oldName.length,
+                                                  oldName, 0, oldName.length))
+            {
+                continue;
+            }
+            byte end = value[i + 1 + oldName.length];
+            if (end != ';' && end != '<') {
+                continue;
+            }
+            try {
+                if (out == null) {
+                    out = new BytesOut(null, value.length + newName.length);
+                }
+                out.write(value, last, i + 1 - last);
+                out.write(newName, 0, newName.length);
+            } catch (IOException e) {
+                // Not expected.
+                throw new IllegalStateException(e);
+            }
+            i += oldName.length;
+            last = i + 1;
+        }
+
+        if (out == null) {
+            return value;
+        }
+
+        try {
+            out.write(value, last, value.length - last);
+        } catch (IOException e) {
+            // Not expected.
+            throw new IllegalStateException(e);
+        }
+
+        return out.toByteArray();
+    }
+}
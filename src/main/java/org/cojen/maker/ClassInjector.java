@@ -17,27 +17,42 @@
 package org.cojen.maker;
 
 import java.lang.invoke.MethodHandles;
-import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
 
 import java.lang.ref.WeakReference;
 
+import java.nio.ByteBuffer;
+
+import java.util.Collection;
 import java.util.Map;
 import java.util.Objects;
 import java.util.WeakHashMap;
 
 import java.util.concurrent.ThreadLocalRandom;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * 
  *
  * @author Brian S O'Neill
  */
 class ClassInjector extends ClassLoader {
+    /**
+     * When true, generated class names have a sequential suffix which is assigned per
+     * package, instead of a random suffix. It's disabled by default.
+     */
+    static final boolean SEQUENTIAL_NAMES =
+        Boolean.getBoolean(ClassMaker.class.getName() + ".SEQUENTIAL_NAMES");
+
     private static final WeakCache<Object, ClassInjector> cInjectors = new WeakCache<>();
 
     private final Map<String, Boolean> mReservedNames;
     private final WeakCache<String, Group> mPackageGroups;
 
+    // Must only be changed before any names are reserved.
+    boolean mSequentialNames = SEQUENTIAL_NAMES;
+
     private ClassInjector(boolean explicit, ClassLoader parent) {
         super(parent);
         mReservedNames = explicit ? null : new WeakHashMap<>();
@@ -47,21 +62,8 @@ class ClassInjector extends ClassLoader {
     static ClassInjector find(boolean explicit, ClassLoader parentLoader, Object key) {
         Objects.requireNonNull(parentLoader);
 
-        final Object injectorKey = new Key(explicit, parentLoader, key);
-
-        ClassInjector injector = cInjectors.get(injectorKey);
-
-        if (injector == null) {
-            synchronized (cInjectors) {
-                injector = cInjectors.get(injectorKey);
-                if (injector == null) {
-                    injector = new ClassInjector(explicit, parentLoader);
-                    cInjectors.put(injectorKey, injector);
-                }
-            }
-        }
-
-        return injector;
+        return cInjectors.computeIfAbsent(new Key(explicit, parentLoader, key),
+                                          k -> new ClassInjector(explicit, parentLoader));
     }
 
     @Override
@@ -82,28 +84,63 @@ class ClassInjector extends ClassLoader {
 
     Class<?> define(Group group, String name, byte[] b) {
         try {
-            return group.define(name, b);
-        } catch (LinkageError e) {
-            // Replace duplicate name definition with a better exception.
-            try {
-                loadClass(name);
-                throw new IllegalStateException("Class already defined: " + name);
-            } catch (ClassNotFoundException e2) {
-            }
-            throw e;
+            return defineReserved(group, name, b);
         } finally {
             unreserve(name);
         }
     }
 
+    /**
+     * Same as define, except the name remains reserved.
+     */
+    Class<?> defineReserved(Group group, String name, byte[] b) {
+        try {
+            return group.define(name, b);
+        } catch (LinkageError e) {
+            throw linkageError(name, e);
+        }
+    }
+
+    /**
+     * Same as define, except the class file is provided by a buffer, and the name remains
+     * reserved.
+     */
+    Class<?> defineReserved(Group group, String name, ByteBuffer b) {
+        try {
+            return group.define(name, b);
+        } catch (LinkageError e) {
+            throw linkageError(name, e);
+        }
+    }
+
+    private LinkageError linkageError(String name, LinkageError e) {
+        // Replace duplicate name definition with a better exception.
+        try {
+            loadClass(name);
+            throw new IllegalStateException("Class already defined: " + name);
+        } catch (ClassNotFoundException e2) {
+        }
+        return e;
+    }
+
     void unreserve(String name) {
-        if (mReservedNames != null) {
+        if (mReservedNames != null && !mSequentialNames) {
             synchronized (mReservedNames) {
                 mReservedNames.remove(name);
             }
         }
     }
 
+    void unreserve(Collection<String> names) {
+        if (mReservedNames != null && !mSequentialNames) {
+            synchronized (mReservedNames) {
+                for (String name : names) {
+                    mReservedNames.remove(name);
+                }
+            }
+        }
+    }
+
     /**
      * @param className can be null
      * @param willUse is true when class will later be defined by this injector
@@ -123,6 +160,10 @@ class ClassInjector extends ClassLoader {
             className = ClassMaker.class.getName();
         }
 
+        if (mSequentialNames) {
+            return reserveSequential(maker, className, willUse);
+        }
+
         var rnd = ThreadLocalRandom.current();
 
         // Use a small identifier if possible, making it easier to read stack traces and
@@ -143,6 +184,35 @@ class ClassInjector extends ClassLoader {
         }
     }
 
+    private String reserveSequential(TheClassMaker maker, String className, boolean willUse) {
+        Group group = maker.mInjectorGroup;
+
+        if (group == null) {
+            group = findPackageGroup(className, true);
+            // Maintain a strong reference to the group.
+            maker.mInjectorGroup = group;
+        }
+
+        ClassLoader parent = getParent();
+
+        while (true) {
+            String mangled = className + '-' + group.mNextId.getAndIncrement();
+
+            // The group never assigns the same name twice, and all names which are defined
+            // by the group are assigned by it. Only check the parent loader when the class
+            // will be defined by a different loader.
+            if (willUse || parent == null) {
+                return mangled;
+            }
+
+            try {
+                parent.loadClass(mangled);
+            } catch (ClassNotFoundException e) {
+                return mangled;
+            }
+        }
+    }
+
     /**
      * @return false if the name is already taken
      */
@@ -216,18 +286,8 @@ class ClassInjector extends ClassLoader {
             packageName = ix <= 0 ? "" : className.substring(0, ix);
         }
 
-        Group group = mPackageGroups.get(packageName);
-        if (group == null) {
-            synchronized (mPackageGroups) {
-                group = mPackageGroups.get(packageName);
-                if (group == null && create) {
-                    group = new Group();
-                    mPackageGroups.put(packageName, group);
-                }
-            }
-        }
-
-        return group;
+        return create ? mPackageGroups.computeIfAbsent(packageName, k -> new Group())
+            : mPackageGroups.get(packageName);
     }
 
     /**
@@ -239,6 +299,12 @@ class ClassInjector extends ClassLoader {
         // Accessed by ConstantsRegistry.
         Map<Class, Object> mConstants;
 
+        // Used when generating sequential class names.
+        private final AtomicLong mNextId = new AtomicLong();
+
+        // Maps fingerprints to classes defined by the finishCanonical method.
+        private volatile WeakCache<Object, Class<?>> mCanonicalClasses;
+
         private Group() {
             // All group members are at the same level in the hierarchy as the ClassInjector
             // itself, and so the parent for all should be the same. This also ensures that the
@@ -277,6 +343,27 @@ class ClassInjector extends ClassLoader {
             return defineClass(name, b, 0, b.length);
         }
 
+        private Class<?> define(String name, ByteBuffer b) {
+            return defineClass(name, b, null);
+        }
+
+        /**
+         * Returns an existing class which has the given fingerprint, or else defines a new
+         * one. The name of the new class remains reserved.
+         */
+        Class<?> defineCanonical(Object fingerprint, String name, byte[] b) {
+            WeakCache<Object, Class<?>> classes = mCanonicalClasses;
+            if (classes == null) {
+                synchronized (this) {
+                    classes = mCanonicalClasses;
+                    if (classes == null) {
+                        mCanonicalClasses = classes = new WeakCache<>();
+                    }
+                }
+            }
+            return classes.computeIfAbsent(fingerprint, k -> defineReserved(this, name, b));
+        }
+
         private boolean isLoaded(String name) {
             return findLoadedClass(name) != null;
         }
@@ -287,31 +374,50 @@ class ClassInjector extends ClassLoader {
                 return lookup;
             }
 
-            className = className.substring(0, className.lastIndexOf('.') + 1) + "lookup";
-            var cm = new TheClassMaker(className, ClassInjector.this, this).public_().synthetic();
-
-            var mt = MethodType.methodType(MethodHandles.Lookup.class, Object.class);
+            // The lookup class is defined from a shared template, renamed into the package,
+            // which is much cheaper than making a new class each time. The name cannot
+            // conflict with any generated names, which always have a numerical suffix.
+            className = className.substring(0, className.lastIndexOf('.') + 1) + "lookup-";
+            ByteBuffer b = ClassCache.rename(ByteBuffer.wrap(LookupTemplate.BYTES), className);
+            Class<?> clazz = defineReserved(this, className, b);
 
-            MethodMaker mm = cm.addMethod("lookup", mt).public_().static_().synthetic();
-            Label ok = mm.label();
-            mm.var(Object.class).setExact(ClassInjector.this).ifEq(mm.param(0), ok);
-            mm.new_(IllegalAccessError.class).throw_();
-            ok.here();
-            mm.return_(mm.var(MethodHandles.class).invoke("lookup"));
-
-            // Ideally, this should be a hidden class which can eventually be GC'd.
-            // Unfortunately, this requires that a package-level lookup already exists.
-            var clazz = cm.finish();
+            // The module needs to read the group's unnamed module in order to access the
+            // private field. An unnamed module is open to all other modules.
+            ClassInjector.class.getModule().addReads(getUnnamedModule());
 
             try {
-                var mh = MethodHandles.publicLookup().findStatic(clazz, "lookup", mt);
-                lookup = (MethodHandles.Lookup) mh.invoke(ClassInjector.this);
+                // Accessing the field initializes the class, which assigns the lookup. Clear
+                // it immediately, so that it cannot be obtained by anything else.
+                VarHandle vh = MethodHandles.privateLookupIn(clazz, MethodHandles.lookup())
+                    .findStaticVarHandle(clazz, "lookup", MethodHandles.Lookup.class);
+                lookup = (MethodHandles.Lookup) vh.getAndSet(null);
             } catch (Throwable e) {
                 throw TheClassMaker.toUnchecked(e);
             }
 
+            if (lookup == null || lookup.lookupClass() != clazz) {
+                throw new IllegalStateException("Lookup was taken");
+            }
+
             mLookup = lookup;
             return lookup;
         }
     }
+
+    /**
+     * Class file for a package-private class whose static initializer assigns a lookup with
+     * full privileges to a private static field. The class exposes no methods, and the field
+     * is cleared as soon as the group has obtained the lookup.
+     */
+    private static final class LookupTemplate {
+        static final byte[] BYTES;
+
+        static {
+            ClassMaker cm = ClassMaker.beginExternal("lookup-").final_().synthetic();
+            cm.addField(MethodHandles.Lookup.class, "lookup").private_().static_().synthetic();
+            MethodMaker mm = cm.addClinit();
+            mm.field("lookup").set(mm.var(MethodHandles.class).invoke("lookup"));
+            BYTES = cm.finishBytes();
+        }
+    }
 }
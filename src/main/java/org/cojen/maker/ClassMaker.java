@@ -19,9 +19,20 @@ package org.cojen.maker;
 import java.io.OutputStream;
 import java.io.IOException;
 
+import java.nio.ByteBuffer;
+
+import java.nio.channels.WritableByteChannel;
+
+import java.nio.file.Path;
+
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 
+import java.util.Collection;
+import java.util.List;
+
+import java.util.function.Consumer;
+
 /**
  * Allows new classes and interfaces to be defined dynamically.
  *
@@ -109,6 +120,48 @@ public interface ClassMaker extends Maker {
         return TheClassMaker.begin(true, className, true, null, null, null);
     }
 
+    /**
+     * Finishes the definitions of several new classes at once, which can depend on each
+     * other. The class files are generated in parallel, and then the classes are defined
+     * such that superclasses and interfaces are defined before their subtypes. Any
+     * {@link #budgetListener budget listeners} can be invoked by multiple threads.
+     *
+     * @param makers the classes to finish, which must not contain duplicates
+     * @return the finished classes, in the same order as the given makers
+     * @throws IllegalStateException if any are already finished or if any definition is
+     * broken
+     * @see #finish
+     */
+    static List<Class<?>> finishAll(Collection<? extends ClassMaker> makers) {
+        return TheClassMaker.finishAll(makers);
+    }
+
+    /**
+     * Finishes the definitions of several new hidden classes at once, like the {@link
+     * #finishHidden finishHidden} method does. The classes are all members of the same nest,
+     * which is the nest of the lookup class. The classes can only be unloaded together, when
+     * none of them are referenced. Like the {@link #finishAll finishAll} method, the class
+     * files are generated in parallel.
+     *
+     * <p>Each class is still defined individually, and so the cost of defining a class and
+     * the metaspace which it occupies are the same as with {@code finishHidden}. Only the
+     * class name reservations and the exact constants are processed together.
+     *
+     * <p>All the makers must have been created with the same class loader and lookup, and
+     * the classes must all be in the same package. Hidden classes cannot refer to each other
+     * by name, and so none of the classes can depend on another one directly.
+     *
+     * @param makers the classes to finish, which must not contain duplicates
+     * @return the lookups for the finished classes, in the same order as the given makers
+     * @throws IllegalArgumentException if the makers don't share a package and class loader
+     * @throws IllegalStateException if any are already finished or if any definition is
+     * broken
+     * @see #finishHidden
+     */
+    static List<MethodHandles.Lookup> finishHiddenAll(Collection<? extends ClassMaker> makers) {
+        return TheClassMaker.finishHiddenAll(makers);
+    }
+
     /**
      * Begin defining another class with the same loader and lookup as this one. The actual
      * class name will have a suffix applied to ensure uniqueness, unless this maker creates
@@ -123,6 +176,22 @@ public interface ClassMaker extends Maker {
      */
     ClassMaker another(String className);
 
+    /**
+     * Begin defining another class like the {@link #another another} method does, except the
+     * new class starts with a copy of all the constants which have been defined by this maker
+     * so far. When many similar classes are generated, the common constants are only added
+     * and encoded once, by the maker which acts as a prototype. Constants which aren't used by
+     * the new class are still written to it.
+     *
+     * <p>The copy is retained, and so this method can also be called after this maker has
+     * finished, provided that it was called at least once before.
+     *
+     * @param className fully qualified class name; pass null to automatically assign a name
+     * (unless explicit or external)
+     * @throws IllegalStateException if already finished and no copy was made before
+     */
+    ClassMaker anotherWithConstants(String className);
+
     /**
      * Switch this class to be public. Classes are package-private by default.
      *
@@ -310,6 +379,18 @@ public interface ClassMaker extends Maker {
      */
     ClassMaker sourceFile(String fileName);
 
+    /**
+     * Set a listener which is notified when this class is finished, for each {@link
+     * MethodMaker#hot hot} method whose code is too large to be inlined by the JIT compiler,
+     * even when frequently executed.
+     *
+     * @param listener receives a report for each method which exceeds the budget; pass null
+     * to remove the listener
+     * @return this
+     * @see CodeReport#FREQ_INLINE_SIZE
+     */
+    ClassMaker budgetListener(Consumer<? super CodeReport> listener);
+
     /**
      * Returns an opaque type object which represents this class as an array.
      *
@@ -330,6 +411,49 @@ public interface ClassMaker extends Maker {
      */
     Class<?> finish();
 
+    /**
+     * Finishes the definition of the new class like the {@link #finish finish} method does,
+     * except an existing class is returned if it was also finished by this method, and it's
+     * equivalent. Classes are equivalent when their class files are identical, ignoring the
+     * suffix which was applied to the class name to ensure uniqueness. Equivalent classes
+     * must also have the same class loader, and they're only retained while they're
+     * referenced.
+     *
+     * <p><b>Note:</b> All callers which receive the same class also share its static state.
+     * The static initializer only runs once, and static fields are shared rather than being
+     * fresh for each caller. Classes which rely on per-definition static state, such as a
+     * counter or a cache, should be finished with the {@code finish} method instead.
+     *
+     * <p>Classes which have {@link Variable#setExact exact constants}, or which are
+     * defined using a lookup object, are never equivalent to another class. Only the suffix
+     * which was applied to ensure uniqueness is ignored, and so classes which were given
+     * different explicit names are never equivalent.
+     *
+     * @throws IllegalStateException if already finished or if the definition is broken
+     */
+    Class<?> finishCanonical();
+
+    /**
+     * Finishes the definition of the new class like the {@link #finish finish} method does,
+     * except the class file is also stored in a cache directory. If a class file is already
+     * stored under the given key, it's loaded instead, skipping the steps which finish the
+     * definition. Classes which have {@link Variable#setExact exact constants} are never
+     * cached.
+     *
+     * <p>The class name which was assigned by this maker replaces the name in the stored class
+     * file, but no other names are replaced. Classes which refer to other classes whose names
+     * were assigned a unique suffix, such as inner classes and their outer class, are never
+     * cached, because those names differ in other processes. The key must identify everything
+     * which affects the definition, including the version of the code which generates it and
+     * the explicit names of any other generated classes which it refers to. The version of
+     * this library is automatically combined with the key.
+     *
+     * @param directory the cache directory, which is created if it doesn't exist
+     * @param key identifies the class definition
+     * @throws IllegalStateException if already finished or if the definition is broken
+     */
+    Class<?> finishCached(Path directory, String key);
+
     /**
      * Finishes the definition of the new class, returning a lookup which has full privilege
      * access to the class. Calling this method has the side effect of forcing the new class to
@@ -366,4 +490,29 @@ public interface ClassMaker extends Maker {
      * @throws IllegalStateException if already finished or if the definition is broken
      */
     void finishTo(OutputStream out) throws IOException;
+
+    /**
+     * Finishes the definition of the new class and writes it into a buffer, starting at the
+     * buffer's current position. The position is advanced by the length of the class file.
+     * When the buffer is backed by an accessible array, the class file is written into it
+     * directly.
+     *
+     * @throws IllegalStateException if already finished or if the definition is broken
+     * @throws java.nio.BufferOverflowException if the buffer doesn't have enough space
+     * remaining, in which case the buffer isn't modified. The class isn't finished, and this
+     * method can be called again with a larger buffer, but no other changes can be made to
+     * the class. Until then, the maker retains the prepared class and its name stays
+     * reserved. A maker which is abandoned instead releases both once it's no longer
+     * referenced, like any other maker which is never finished.
+     * @throws java.nio.ReadOnlyBufferException if the buffer is read-only, in which case the
+     * class isn't finished
+     */
+    void finishTo(ByteBuffer buf);
+
+    /**
+     * Finishes the definition of the new class and writes it to a channel.
+     *
+     * @throws IllegalStateException if already finished or if the definition is broken
+     */
+    void finishTo(WritableByteChannel channel) throws IOException;
 }
@@ -55,6 +55,13 @@ abstract class ClassMember extends Attributed implements Maker {
         return mName.mValue;
     }
 
+    /**
+     * Returns the number of bytes written by the writeTo method.
+     */
+    final int length() {
+        return (2 + 2 + 2) + attributesLength();
+    }
+
     final void writeTo(BytesOut out) throws IOException {
         out.writeShort(mModifiers);
         out.writeShort(mName.mIndex);
@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+/**
+ * Describes the code which was generated for a finished method, and how its size compares
+ * to the limits which the HotSpot JIT compiler applies by default.
+ *
+ * @see MethodMaker#report
+ * @see ClassMaker#budgetListener
+ */
+public interface CodeReport {
+    /**
+     * Methods whose code isn't larger than this are always inlined ({@code MaxInlineSize}).
+     */
+    static final int MAX_INLINE_SIZE = 35;
+
+    /**
+     * Frequently executed methods whose code isn't larger than this are inlined
+     * ({@code FreqInlineSize}).
+     */
+    static final int FREQ_INLINE_SIZE = 325;
+
+    /**
+     * Methods whose code is larger than this aren't compiled ({@code HugeMethodLimit}).
+     */
+    static final int HUGE_METHOD_LIMIT = 8000;
+
+    /**
+     * Classification of a method by its code length.
+     */
+    enum Budget {
+        /** Is always inlined. */
+        INLINE,
+
+        /** Is inlined only when frequently executed. */
+        FREQ_INLINE,
+
+        /** Is compiled, but isn't inlined. */
+        NO_INLINE,
+
+        /** Isn't compiled. */
+        HUGE;
+
+        /**
+         * Returns the classification for the given code length.
+         */
+        public static Budget of(int codeLength) {
+            if (codeLength <= MAX_INLINE_SIZE) {
+                return INLINE;
+            } else if (codeLength <= FREQ_INLINE_SIZE) {
+                return FREQ_INLINE;
+            } else if (codeLength <= HUGE_METHOD_LIMIT) {
+                return NO_INLINE;
+            } else {
+                return HUGE;
+            }
+        }
+    }
+
+    /**
+     * Returns the name of the method.
+     */
+    String name();
+
+    /**
+     * Returns the descriptor of the method.
+     */
+    String descriptor();
+
+    /**
+     * Returns true if the method was marked as {@link MethodMaker#hot hot}.
+     */
+    boolean isHot();
+
+    /**
+     * Returns the length of the method's code, in bytes.
+     */
+    int codeLength();
+
+    /**
+     * Returns the maximum depth of the operand stack, in slots.
+     */
+    int maxStack();
+
+    /**
+     * Returns the number of local variable slots, including the parameters.
+     */
+    int maxLocals();
+
+    /**
+     * Returns the number of entries in the exception table.
+     */
+    int exceptionTableLength();
+
+    /**
+     * Returns the number of local variable slots which were saved by sharing them among
+     * variables which are never live at the same time.
+     */
+    int slotsSaved();
+
+    /**
+     * Returns the classification of the method by its code length.
+     */
+    default Budget budget() {
+        return Budget.of(codeLength());
+    }
+}
@@ -21,25 +21,44 @@ import java.io.IOException;
 import java.lang.invoke.MethodHandleInfo;
 import java.lang.invoke.MethodType;
 
-import java.util.LinkedHashMap;
-import java.util.Map;
-
 import static java.lang.invoke.MethodHandleInfo.*;
 
-import static java.util.Objects.*;
-
 /**
  * 
  *
  * @author Brian S O'Neill
  */
 class ConstantPool {
-    private final Map<Constant, Constant> mConstants;
+    // Open addressing hash table, with linear probing. Lookups match against the key values
+    // directly, and so no temporary constant needs to be allocated when it already exists.
+    private Constant[] mTable;
+    private int mCount;
+
+    // Linked list of all the constants, in the order in which they were added.
+    private Constant mFirst, mLast;
+
     private int mSize;
 
+    // Constants which precede those in the linked list, and which are shared with other pools.
+    private final Template mTemplate;
+
+    private Template mTemplateCache;
+
     ConstantPool() {
-        mConstants = new LinkedHashMap<>(64);
+        mTable = new Constant[128];
         mSize = 1; // constant 0 is reserved
+        mTemplate = null;
+    }
+
+    /**
+     * Construct a pool which starts with all the constants of the given template.
+     */
+    ConstantPool(Template template) {
+        // The table is copied when the first constant is added.
+        mTable = template.mTable;
+        mCount = template.mCount;
+        mSize = template.mSize;
+        mTemplate = template;
     }
 
     void writeTo(BytesOut out) throws IOException {
@@ -49,40 +68,183 @@ class ConstantPool {
                 ("Constant pool entry count cannot exceed 65535: " + size);
         }
         out.writeShort(size);
-        for (Constant c : mConstants.keySet()) {
+        if (mTemplate != null) {
+            byte[] encoded = mTemplate.mEncoded;
+            out.write(encoded, 0, encoded.length);
+        }
+        for (Constant c = mFirst; c != null; c = c.mNext) {
             c.writeTo(out);
         }
     }
 
+    /**
+     * Returns the number of bytes written by the writeTo method.
+     */
+    int length() {
+        int length = 2;
+        if (mTemplate != null) {
+            length += mTemplate.mEncoded.length;
+        }
+        for (Constant c = mFirst; c != null; c = c.mNext) {
+            length += c.length();
+        }
+        return length;
+    }
+
+    /**
+     * Returns an immutable copy of all the constants added so far, except for dynamic
+     * constants, which depend on the bootstrap methods of the class.
+     */
+    Template template() {
+        Template template = mTemplateCache;
+        if (template == null || template.mSourceSize != mSize) {
+            mTemplateCache = template = new Template(this);
+        }
+        return template;
+    }
+
+    static final class Template {
+        final int mSourceSize;
+        final Constant[] mTable;
+        final int mCount, mSize;
+        final byte[] mEncoded;
+
+        private Template(ConstantPool source) {
+            mSourceSize = source.mSize;
+
+            // Copy the constants into a new pool, such that the template constants are never
+            // modified by the source pool.
+            Template base = source.mTemplate;
+            var cp = base == null ? new ConstantPool() : new ConstantPool(base);
+            for (Constant c = source.mFirst; c != null; c = c.mNext) {
+                cp.copy(c);
+            }
+
+            var out = new BytesOut(null, Math.max(16, cp.length()));
+            try {
+                if (cp.mTemplate != null) {
+                    byte[] encoded = cp.mTemplate.mEncoded;
+                    out.write(encoded, 0, encoded.length);
+                }
+                for (Constant c = cp.mFirst; c != null; c = c.mNext) {
+                    c.writeTo(out);
+                }
+            } catch (IOException e) {
+                // Not expected.
+                throw new RuntimeException(e);
+            }
+
+            mTable = cp.mTable;
+            mCount = cp.mCount;
+            mSize = cp.mSize;
+            mEncoded = out.toByteArray();
+        }
+    }
+
+    /**
+     * Adds a copy of a constant from another pool.
+     */
+    private void copy(Constant c) {
+        if (c instanceof C_UTF8 u) {
+            addUTF8(u.mValue);
+        } else if (c instanceof C_Integer i) {
+            addInteger(i.mValue);
+        } else if (c instanceof C_Float f) {
+            addFloat(f.mValue);
+        } else if (c instanceof C_Long l) {
+            addLong(l.mValue);
+        } else if (c instanceof C_Double d) {
+            addDouble(d.mValue);
+        } else if (c instanceof C_String str) {
+            Type type = c instanceof C_Class clazz ? clazz.mType : null;
+            addString(str.mTag, addUTF8(str.mValue.mValue), type);
+        } else if (c instanceof C_NameAndType nt) {
+            addNameAndType(nt.mName.mValue, nt.mTypeDesc.mValue);
+        } else if (c instanceof C_MemberRef ref) {
+            copyRef(ref);
+        } else if (c instanceof C_MethodHandle h) {
+            addMethodHandle(h.mKind, copyRef((C_MemberRef) h.mRef));
+        }
+        // Dynamic constants aren't copied.
+    }
+
+    private C_MemberRef copyRef(C_MemberRef ref) {
+        return ref instanceof C_Field f ? addField(f.mField) : addMethod(((C_Method) ref).mMethod);
+    }
+
     C_UTF8 addUTF8(String value) {
-        requireNonNull(value);
-        return addConstant(new C_UTF8(value));
+        int hash = hash(1, value.hashCode());
+        Constant[] table = mTable;
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (Constant c; (c = table[slot]) != null; slot = (slot + 1) & mask) {
+            if (c.mHash == hash && c instanceof C_UTF8 u && u.mValue.equals(value)) {
+                return u;
+            }
+        }
+        return add(new C_UTF8(value), hash, slot);
     }
 
     C_Integer addInteger(int value) {
-        return addConstant(new C_Integer(value));
+        int hash = hash(3, value);
+        Constant[] table = mTable;
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (Constant c; (c = table[slot]) != null; slot = (slot + 1) & mask) {
+            if (c.mHash == hash && c instanceof C_Integer i && i.mValue == value) {
+                return i;
+            }
+        }
+        return add(new C_Integer(value), hash, slot);
     }
 
     C_Float addFloat(float value) {
-        return addConstant(new C_Float(value));
+        int bits = Float.floatToRawIntBits(value);
+        int hash = hash(4, bits);
+        Constant[] table = mTable;
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (Constant c; (c = table[slot]) != null; slot = (slot + 1) & mask) {
+            if (c.mHash == hash && c instanceof C_Float f
+                && Float.floatToRawIntBits(f.mValue) == bits)
+            {
+                return f;
+            }
+        }
+        return add(new C_Float(value), hash, slot);
     }
 
     C_Long addLong(long value) {
-        var constant = new C_Long(value);
-        C_Long actual = addConstant(constant);
-        if (constant == actual) {
-            mSize++; // takes up two slots
+        int hash = hash(5, Long.hashCode(value));
+        Constant[] table = mTable;
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (Constant c; (c = table[slot]) != null; slot = (slot + 1) & mask) {
+            if (c.mHash == hash && c instanceof C_Long l && l.mValue == value) {
+                return l;
+            }
         }
-        return actual;
+        C_Long constant = add(new C_Long(value), hash, slot);
+        mSize++; // takes up two slots
+        return constant;
     }
 
     C_Double addDouble(double value) {
-        var constant = new C_Double(value);
-        C_Double actual = addConstant(constant);
-        if (constant == actual) {
-            mSize++; // takes up two slots
+        long bits = Double.doubleToRawLongBits(value);
+        int hash = hash(6, Long.hashCode(bits));
+        Constant[] table = mTable;
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (Constant c; (c = table[slot]) != null; slot = (slot + 1) & mask) {
+            if (c.mHash == hash && c instanceof C_Double d
+                && Double.doubleToRawLongBits(d.mValue) == bits)
+            {
+                return d;
+            }
         }
-        return actual;
+        C_Double constant = add(new C_Double(value), hash, slot);
+        mSize++; // takes up two slots
+        return constant;
     }
 
     /**
@@ -99,12 +261,12 @@ class ConstantPool {
      * Add a class by name, but without a type.
      */
     C_Class addClass(String name) {
-        return addConstant(new C_Class(addUTF8(name.replace('.', '/')), null));
+        return (C_Class) addString(7, addUTF8(name.replace('.', '/')), null);
     }
 
     private C_Class doAddClass(Type type) {
         String name = type.isArray() ? type.descriptor() : type.name().replace('.', '/');
-        return addConstant(new C_Class(addUTF8(name), type));
+        return (C_Class) addString(7, addUTF8(name), type);
     }
 
     C_String addString(String value) {
@@ -112,20 +274,59 @@ class ConstantPool {
     }
 
     private C_String addString(int tag, String value) {
-        return addConstant(new C_String(tag, addUTF8(value)));
+        return addString(tag, addUTF8(value), null);
+    }
+
+    /**
+     * @param type is only used when creating a C_Class (tag 7)
+     */
+    private C_String addString(int tag, C_UTF8 value, Type type) {
+        // The UTF8 constants are unique, and so they can be matched by identity.
+        int hash = hash(tag, value.mIndex);
+        Constant[] table = mTable;
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (Constant c; (c = table[slot]) != null; slot = (slot + 1) & mask) {
+            if (c.mHash == hash && c.mTag == tag && ((C_String) c).mValue == value) {
+                return (C_String) c;
+            }
+        }
+        return add(tag == 7 ? new C_Class(value, type) : new C_String(tag, value), hash, slot);
     }
 
     C_Field addField(Type.Field field) {
         C_Class clazz = addClass(field.enclosingType());
         C_NameAndType nameAndType = addNameAndType(field.name(), field.type().descriptor());
-        return addConstant(new C_Field(clazz, nameAndType, field));
+        int hash = hash(9, clazz.mIndex * 31 + nameAndType.mIndex);
+        Constant[] table = mTable;
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (Constant c; (c = table[slot]) != null; slot = (slot + 1) & mask) {
+            if (c.mHash == hash && c instanceof C_Field f
+                && f.mClass == clazz && f.mNameAndType == nameAndType)
+            {
+                return f;
+            }
+        }
+        return add(new C_Field(clazz, nameAndType, field), hash, slot);
     }
 
     C_Method addMethod(Type.Method method) {
         int tag = method.enclosingType().isInterface() ? 11 : 10;
         C_Class clazz = addClass(method.enclosingType());
         C_NameAndType nameAndType = addNameAndType(method.name(), method.descriptor());
-        return addConstant(new C_Method(tag, clazz, nameAndType, method));
+        int hash = hash(tag, clazz.mIndex * 31 + nameAndType.mIndex);
+        Constant[] table = mTable;
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (Constant c; (c = table[slot]) != null; slot = (slot + 1) & mask) {
+            if (c.mHash == hash && c.mTag == tag && c instanceof C_Method m
+                && m.mClass == clazz && m.mNameAndType == nameAndType)
+            {
+                return m;
+            }
+        }
+        return add(new C_Method(tag, clazz, nameAndType, method), hash, slot);
     }
 
     C_String addMethodType(MethodType type) {
@@ -172,12 +373,22 @@ class ConstantPool {
     }
 
     C_MethodHandle addMethodHandle(int kind, C_MemberRef ref) {
-        return addConstant(new C_MethodHandle((byte) kind, ref));
+        int hash = hash(15, ref.mIndex * 31 + kind);
+        Constant[] table = mTable;
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (Constant c; (c = table[slot]) != null; slot = (slot + 1) & mask) {
+            if (c.mHash == hash && c instanceof C_MethodHandle h
+                && h.mKind == kind && h.mRef == ref)
+            {
+                return h;
+            }
+        }
+        return add(new C_MethodHandle((byte) kind, ref), hash, slot);
     }
 
     C_Dynamic addInvokeDynamic(int bootstrapIndex, String name, String descriptor) {
-        C_NameAndType nameAndType = addNameAndType(name, descriptor);
-        return addConstant(new C_Dynamic(18, bootstrapIndex, nameAndType));
+        return addDynamic(18, bootstrapIndex, addNameAndType(name, descriptor));
     }
 
     C_Dynamic addDynamicConstant(int bootstrapIndex, String name, Type type) {
@@ -189,7 +400,22 @@ class ConstantPool {
     }
 
     C_Dynamic addDynamicConstant(int bootstrapIndex, C_NameAndType nameAndType) {
-        return addConstant(new C_Dynamic(17, bootstrapIndex, nameAndType));
+        return addDynamic(17, bootstrapIndex, nameAndType);
+    }
+
+    private C_Dynamic addDynamic(int tag, int bootstrapIndex, C_NameAndType nameAndType) {
+        int hash = hash(tag, nameAndType.mIndex * 31 + bootstrapIndex);
+        Constant[] table = mTable;
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (Constant c; (c = table[slot]) != null; slot = (slot + 1) & mask) {
+            if (c.mHash == hash && c.mTag == tag && c instanceof C_Dynamic d
+                && d.mBootstrapIndex == bootstrapIndex && d.mNameAndType == nameAndType)
+            {
+                return d;
+            }
+        }
+        return add(new C_Dynamic(tag, bootstrapIndex, nameAndType), hash, slot);
     }
 
     Constant tryAddLoadableConstant(Object value) {
@@ -238,25 +464,69 @@ class ConstantPool {
     } 
 
     C_NameAndType addNameAndType(C_UTF8 name, C_UTF8 typeDesc) {
-        return addConstant(new C_NameAndType(name, typeDesc));
+        int hash = hash(12, name.mIndex * 31 + typeDesc.mIndex);
+        Constant[] table = mTable;
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        for (Constant c; (c = table[slot]) != null; slot = (slot + 1) & mask) {
+            if (c.mHash == hash && c instanceof C_NameAndType nt
+                && nt.mName == name && nt.mTypeDesc == typeDesc)
+            {
+                return nt;
+            }
+        }
+        return add(new C_NameAndType(name, typeDesc), hash, slot);
+    }
+
+    private static int hash(int tag, int key) {
+        int hash = (key * 31 + tag) * 0x9e3779b9;
+        return hash ^ (hash >>> 16);
     }
 
-    @SuppressWarnings("unchecked")
-    private <C extends Constant> C addConstant(C constant) {
-        Constant existing = mConstants.get(constant);
-        if (existing == null) {
-            constant.mIndex = mSize;
-            mConstants.put(constant, constant);
-            mSize++;
+    /**
+     * @param slot empty table slot which was found by the lookup
+     */
+    private <C extends Constant> C add(C constant, int hash, int slot) {
+        constant.mHash = hash;
+        constant.mIndex = mSize++;
+
+        if (mLast == null) {
+            mFirst = constant;
         } else {
-            constant = (C) existing;
+            mLast.mNext = constant;
+        }
+        mLast = constant;
+
+        Constant[] table = mTable;
+        if (mTemplate != null && table == mTemplate.mTable) {
+            mTable = table = table.clone();
+        }
+        table[slot] = constant;
+
+        if (++mCount > (table.length >> 1)) {
+            // Keep the load factor at or below 50%.
+            var newTable = new Constant[table.length << 1];
+            int mask = newTable.length - 1;
+            for (Constant c : table) {
+                if (c != null) {
+                    int i = c.mHash & mask;
+                    while (newTable[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    newTable[i] = c;
+                }
+            }
+            mTable = newTable;
         }
+
         return constant;
     }
 
     static abstract class Constant {
         final int mTag;
         int mIndex;
+        int mHash;
+        Constant mNext;
 
         Constant(int tag) {
             mTag = tag;
@@ -265,10 +535,18 @@ class ConstantPool {
         void writeTo(BytesOut out) throws IOException {
             out.writeByte(mTag);
         }
+
+        /**
+         * Returns the number of bytes written by the writeTo method.
+         */
+        int length() {
+            return 1;
+        }
     }
 
     static final class C_UTF8 extends Constant {
         final String mValue;
+        private byte[] mEncoded;
 
         C_UTF8(String value) {
             super(1);
@@ -289,7 +567,22 @@ class ConstantPool {
         @Override
         void writeTo(BytesOut out) throws IOException {
             super.writeTo(out);
-            out.writeUTF(mValue);
+            byte[] encoded = encoded();
+            out.writeShort(encoded.length);
+            out.write(encoded, 0, encoded.length);
+        }
+
+        @Override
+        int length() {
+            return 1 + 2 + encoded().length;
+        }
+
+        private byte[] encoded() {
+            byte[] encoded = mEncoded;
+            if (encoded == null) {
+                mEncoded = encoded = BytesOut.encodeUTF(mValue);
+            }
+            return encoded;
         }
     }
 
@@ -317,6 +610,11 @@ class ConstantPool {
             super.writeTo(out);
             out.writeInt(mValue);
         }
+
+        @Override
+        int length() {
+            return 1 + 4;
+        }
     }
 
     static final class C_Float extends Constant {
@@ -343,6 +641,11 @@ class ConstantPool {
             super.writeTo(out);
             out.writeFloat(mValue);
         }
+
+        @Override
+        int length() {
+            return 1 + 4;
+        }
     }
 
     static final class C_Long extends Constant {
@@ -369,6 +672,11 @@ class ConstantPool {
             super.writeTo(out);
             out.writeLong(mValue);
         }
+
+        @Override
+        int length() {
+            return 1 + 8;
+        }
     }
 
     static final class C_Double extends Constant {
@@ -395,6 +703,11 @@ class ConstantPool {
             super.writeTo(out);
             out.writeDouble(mValue);
         }
+
+        @Override
+        int length() {
+            return 1 + 8;
+        }
     }
 
     static class C_String extends Constant {
@@ -421,6 +734,11 @@ class ConstantPool {
             super.writeTo(out);
             out.writeShort(mValue.mIndex);
         }
+
+        @Override
+        int length() {
+            return 1 + 2;
+        }
     }
 
     static final class C_Class extends C_String {
@@ -463,6 +781,11 @@ class ConstantPool {
             out.writeShort(mName.mIndex);
             out.writeShort(mTypeDesc.mIndex);
         }
+
+        @Override
+        int length() {
+            return 1 + 2 + 2;
+        }
     }
 
     static abstract class C_MemberRef extends Constant {
@@ -493,6 +816,11 @@ class ConstantPool {
             out.writeShort(mClass.mIndex);
             out.writeShort(mNameAndType.mIndex);
         }
+
+        @Override
+        int length() {
+            return 1 + 2 + 2;
+        }
     }
 
     static final class C_Field extends C_MemberRef {
@@ -540,6 +868,11 @@ class ConstantPool {
             out.writeByte(mKind);
             out.writeShort(mRef.mIndex);
         }
+
+        @Override
+        int length() {
+            return 1 + 1 + 2;
+        }
     }
 
     static final class C_Dynamic extends Constant {
@@ -570,5 +903,10 @@ class ConstantPool {
             out.writeShort(mBootstrapIndex);
             out.writeShort(mNameAndType.mIndex);
         }
+
+        @Override
+        int length() {
+            return 1 + 2 + 2;
+        }
     }
 }
@@ -22,6 +22,8 @@ import java.lang.invoke.VarHandle;
 import java.lang.ref.WeakReference;
 
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.WeakHashMap;
@@ -77,18 +79,69 @@ public abstract class ConstantsRegistry {
             entries.prune();
         }
 
-        ClassLoader loader = clazz.getClassLoader();
+        register(clazz.getClassLoader(), lookup, Map.of(clazz, obj));
+    }
+
+    /**
+     * Called when several class definitions are finished, to make the constants loadable.
+     * Constants for classes which share a loader are registered in bulk.
+     *
+     * @param lookups elements can be null if class loader is a ClassInjector.Group
+     * @param classes elements can be null if the class wasn't defined
+     */
+    static void finishAll(TheClassMaker[] makers, MethodHandles.Lookup[] lookups,
+                          Class[] classes)
+    {
+        Map<ClassLoader, Map<Class, Object>> byLoader = null;
+        Map<ClassLoader, MethodHandles.Lookup> loaderLookups = null;
 
+        for (int i=0; i<makers.length; i++) {
+            Object obj = makers[i].mExactConstants;
+            Class clazz = classes[i];
+            if (obj == null || clazz == null) {
+                continue;
+            }
+
+            if (obj instanceof Entries entries) {
+                entries.prune();
+            }
+
+            if (byLoader == null) {
+                byLoader = new LinkedHashMap<>();
+                loaderLookups = new HashMap<>();
+            }
+
+            ClassLoader loader = clazz.getClassLoader();
+            byLoader.computeIfAbsent(loader, k -> new HashMap<>()).put(clazz, obj);
+            if (lookups[i] != null) {
+                loaderLookups.putIfAbsent(loader, lookups[i]);
+            }
+        }
+
+        if (byLoader != null) {
+            for (Map.Entry<ClassLoader, Map<Class, Object>> e : byLoader.entrySet()) {
+                ClassLoader loader = e.getKey();
+                register(loader, loaderLookups.get(loader), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * @param lookup can be null if class loader is a ClassInjector.Group
+     */
+    private static void register(ClassLoader loader, MethodHandles.Lookup lookup,
+                                 Map<Class, Object> toAdd)
+    {
         if (loader instanceof ClassInjector.Group group) {
             synchronized (group) {
                 Map<Class, Object> constants = group.mConstants;
                 if (constants == null) {
                     // Use a WeakHashMap because some classes might be hidden and can be
                     // unloaded. A strong reference would prevent this.
-                    constants = new WeakHashMap<>(4);
+                    constants = new WeakHashMap<>(Math.max(4, toAdd.size() << 1));
                     group.mConstants = constants;
                 }
-                constants.put(clazz, obj);
+                constants.putAll(toAdd);
             }
         } else {
             ConstantsRegistry registry;
@@ -107,10 +160,10 @@ public abstract class ConstantsRegistry {
                 if (constants == null) {
                     // Use a WeakHashMap because some classes might be hidden and can be
                     // unloaded. A strong reference would prevent this.
-                    constants = new WeakHashMap<>(4);
+                    constants = new WeakHashMap<>(Math.max(4, toAdd.size() << 1));
                     registry.mConstants = constants;
                 }
-                constants.put(clazz, obj);
+                constants.putAll(toAdd);
             }
         }
     }
@@ -214,6 +214,15 @@ public interface MethodMaker extends Maker {
      */
     MethodMaker override();
 
+    /**
+     * Indicate that this method is frequently executed, and so its code should be small
+     * enough to be inlined by the JIT compiler.
+     *
+     * @return this
+     * @see ClassMaker#budgetListener
+     */
+    MethodMaker hot();
+
     /**
      * {@inheritDoc}
      */
@@ -409,6 +418,16 @@ public interface MethodMaker extends Maker {
      */
     void finally_(Label tryStart, Runnable handler);
 
+    /**
+     * Generate code which is rarely executed, like code which constructs an exception to
+     * throw. When possible, the code is moved into a private synthetic method, making this
+     * method smaller and more likely to be inlined. The code is moved only if it can be
+     * entered from the top, and it doesn't return from this method.
+     *
+     * @param body called to generate the cold code
+     */
+    void cold(Runnable body);
+
     /**
      * Concatenate variables and constants together into a new {@link String} in the same
      * matter as the Java concatenation operator. If no values are given, the returned variable
@@ -463,6 +482,27 @@ public interface MethodMaker extends Maker {
      */
     ClassMaker addInnerClass(String className);
 
+    /**
+     * Returns a report which describes the code generated for this method.
+     *
+     * @return null if the method isn't finished, or if it has no code
+     */
+    CodeReport report();
+
+    /**
+     * Finishes the code for this method before the class is finished, converting it to the
+     * class file format. The memory used to build the code is released, which can reduce
+     * the peak memory usage when generating very large classes. The method is defined when
+     * the class is finished, and it cannot be modified after calling this method. Any attempt
+     * to add code, change the modifiers, or add attributes or annotations throws an {@code
+     * IllegalStateException}.
+     *
+     * @throws IllegalStateException if the method is a static initializer or a record
+     * constructor, or if the class is finished, or if the method definition is broken
+     * @see #report
+     */
+    void finishEarly();
+
     /**
      * Finishes the definition of a standalone method.
      *
@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Pool of scratch buffers which are reused when finishing methods. Buffers are striped by
+ * thread id rather than being bound to a thread, and so virtual threads don't each pin a
+ * buffer. A buffer is lent out exclusively, and at most one buffer is pooled per stripe.
+ */
+final class Scratch {
+    /** Larger buffers aren't pooled. */
+    static final int MAX_POOLED = 65536;
+
+    private static final int STRIPES; // must be a power of 2
+
+    private static final VarHandle cBytesHandle;
+
+    private static final byte[][] cBytes;
+
+    static {
+        int procs = Runtime.getRuntime().availableProcessors();
+        STRIPES = Integer.highestOneBit(Math.max(1, (procs << 1) - 1)) << 1;
+        cBytes = new byte[STRIPES][];
+        cBytesHandle = MethodHandles.arrayElementVarHandle(byte[][].class);
+    }
+
+    private Scratch() {
+    }
+
+    /**
+     * Returns a buffer whose length is at least the given minimum, and whose contents are
+     * undefined. Any bytes which are skipped over must be explicitly zeroed by the caller, or
+     * else the output isn't deterministic. The caller owns the buffer until it's passed to
+     * {@link #give}.
+     */
+    static byte[] take(int minLength) {
+        var bytes = (byte[]) cBytesHandle.getAndSet(cBytes, stripe(), null);
+        if (bytes == null || bytes.length < minLength) {
+            // Allocate a new buffer, and drop the pooled one since it was too small anyhow.
+            bytes = new byte[minLength];
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns a buffer to the pool, which must no longer be accessed by the caller. Buffers
+     * which are too large are discarded.
+     */
+    static void give(byte[] bytes) {
+        if (bytes.length <= MAX_POOLED) {
+            cBytesHandle.setRelease(cBytes, stripe(), bytes);
+        }
+    }
+
+    private static int stripe() {
+        return ((int) Thread.currentThread().getId()) & (STRIPES - 1);
+    }
+}
@@ -25,17 +25,35 @@ import java.lang.invoke.MethodHandles;
 
 import java.lang.reflect.Modifier;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import java.nio.channels.WritableByteChannel;
+
+import java.nio.file.Path;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import java.util.function.Consumer;
+
 import java.util.concurrent.ThreadLocalRandom;
 
+import java.util.stream.IntStream;
+
 import static java.util.Objects.*;
 
 /**
@@ -46,6 +64,13 @@ import static java.util.Objects.*;
 final class TheClassMaker extends Attributed implements ClassMaker, Typed {
     static final boolean DEBUG = Boolean.getBoolean(ClassMaker.class.getName() + ".DEBUG");
 
+    /**
+     * Methods are analyzed in parallel when a class has at least this many methods, but only
+     * if the limit is larger than zero. Parallel finishing is disabled by default.
+     */
+    static final int PARALLEL_FINISH =
+        Integer.getInteger(ClassMaker.class.getName() + ".PARALLEL_FINISH", 0);
+
     private final TheClassMaker mParent;
     private boolean mExternal;
     private final MethodHandles.Lookup mLookup;
@@ -54,6 +79,9 @@ final class TheClassMaker extends Attributed implements ClassMaker, Typed {
 
     final ConstantPool.C_Class mThisClass;
 
+    // The class name without the suffix which was applied by the injector, or null if none.
+    private final String mBaseName;
+
     private ConstantPool.C_Class mSuperClass;
 
     int mModifiers;
@@ -74,6 +102,22 @@ final class TheClassMaker extends Attributed implements ClassMaker, Typed {
 
     private ArrayList<TheMethodMaker> mRecordCtors;
 
+    private Consumer<? super CodeReport> mBudgetListener;
+
+    // Minimum number of methods which causes them to be analyzed in parallel, if larger than
+    // zero.
+    int mParallelFinish = PARALLEL_FINISH;
+
+    // Methods which were finished early, already written in the class file format.
+    private BytesOut mSpilledMethods;
+
+    // Class file length, when the finishTo(ByteBuffer) method was given a buffer which was
+    // too small. The class is prepared, and it can only be written out.
+    private int mPreparedLength;
+
+    // Is retained after finishing, to support the anotherWithConstants method.
+    private ConstantPool.Template mConstantsTemplate;
+
     // Accessed by ConstantsRegistry.
     Object mExactConstants;
 
@@ -89,31 +133,39 @@ final class TheClassMaker extends Attributed implements ClassMaker, Typed {
 
         ClassInjector injector = ClassInjector.find(explicit, parentLoader, key);
 
-        return new TheClassMaker(null, external, className, lookup, injector);
+        return new TheClassMaker(null, external, className, lookup, injector, new ConstantPool());
     }
 
     private TheClassMaker(TheClassMaker parent, boolean external,
-                          String className, MethodHandles.Lookup lookup, ClassInjector injector)
+                          String className, MethodHandles.Lookup lookup, ClassInjector injector,
+                          ConstantPool cp)
     {
-        super(new ConstantPool());
+        super(cp);
 
         mParent = parent;
         mExternal = external;
         mLookup = lookup;
         mInjector = injector;
 
+        String requested = className;
         className = injector.reserve(this, className, lookup == null);
+        mBaseName = className.equals(requested) ? null
+            : className.substring(0, className.lastIndexOf('-'));
 
         mThisClass = mConstants.addClass(Type.begin(injector, this, className));
     }
 
     private TheClassMaker(TheClassMaker from, String className) {
-        this(from, from.mExternal, className, from.mLookup, from.mInjector);
+        this(from, className, new ConstantPool());
+    }
+
+    private TheClassMaker(TheClassMaker from, String className, ConstantPool cp) {
+        this(from, from.mExternal, className, from.mLookup, from.mInjector, cp);
     }
 
     // Called by ClassInjector.Group.
     TheClassMaker(String className, ClassInjector injector, ClassInjector.Group injectorGroup) {
-        this(null, false, className, null, injector);
+        this(null, false, className, null, injector, new ConstantPool());
         mInjectorGroup = injectorGroup;
     }
 
@@ -122,6 +174,17 @@ final class TheClassMaker extends Attributed implements ClassMaker, Typed {
         return new TheClassMaker(this, className);
     }
 
+    @Override
+    public ClassMaker anotherWithConstants(String className) {
+        ConstantPool.Template template;
+        if (mConstants != null) {
+            mConstantsTemplate = template = mConstants.template();
+        } else if ((template = mConstantsTemplate) == null) {
+            throw new IllegalStateException("Class definition is already finished");
+        }
+        return new TheClassMaker(this, className, new ConstantPool(template));
+    }
+
     @Override
     public ClassMaker classMaker() {
         return this;
@@ -364,6 +427,56 @@ final class TheClassMaker extends Attributed implements ClassMaker, Typed {
         mMethods.add(mm);
     }
 
+    /**
+     * Finishes a method and writes it to a buffer, allowing its code to be released.
+     */
+    void finishEarly(TheMethodMaker method) {
+        checkFinished();
+
+        if (method.isSpilled()) {
+            return;
+        }
+
+        if ("<clinit>".equals(method.name())
+            || (mRecordCtors != null && mRecordCtors.contains(method)))
+        {
+            throw new IllegalStateException("Cannot finish early: " + method.name());
+        }
+
+        method.doFinish();
+
+        if (mSpilledMethods == null) {
+            mSpilledMethods = new BytesOut(null, 1000);
+        }
+
+        try {
+            method.writeTo(mSpilledMethods);
+        } catch (IOException e) {
+            // Not expected.
+            throw new RuntimeException(e);
+        }
+
+        method.spilled();
+    }
+
+    /**
+     * Returns a method name which isn't used by any method defined in this class.
+     */
+    String syntheticMethodName(String prefix) {
+        var names = new HashSet<String>();
+        if (mMethods != null) {
+            for (TheMethodMaker mm : mMethods) {
+                names.add(mm.name());
+            }
+        }
+        for (int i=1; ; i++) {
+            String name = prefix + '$' + i;
+            if (!names.contains(name)) {
+                return name;
+            }
+        }
+    }
+
     Type.Method defineMethod(Object retType, String name, Object... paramTypes) {
         Type tRetType = retType == null ? Type.VOID : typeFrom(retType);
 
@@ -502,6 +615,13 @@ final class TheClassMaker extends Attributed implements ClassMaker, Typed {
         return this;
     }
 
+    @Override
+    public ClassMaker budgetListener(Consumer<? super CodeReport> listener) {
+        checkFinished();
+        mBudgetListener = listener;
+        return this;
+    }
+
     @Override
     public Object arrayType(int dimensions) {
         if (dimensions < 1 || dimensions > 255) {
@@ -538,13 +658,16 @@ final class TheClassMaker extends Attributed implements ClassMaker, Typed {
     @Override
     public Class<?> finish() {
         String name = name();
+        return define(name, finishBytes(false));
+    }
 
+    private Class<?> define(String name, byte[] bytes) {
         Class clazz;
         if (mLookup == null) {
-            clazz = mInjector.define(mInjectorGroup, name, finishBytes(false));
+            clazz = mInjector.define(mInjectorGroup, name, bytes);
         } else {
             try {
-                clazz = mLookup.defineClass(finishBytes(false));
+                clazz = mLookup.defineClass(bytes);
             } catch (Exception e) {
                 throw new IllegalStateException(e);
             }
@@ -555,6 +678,354 @@ final class TheClassMaker extends Attributed implements ClassMaker, Typed {
         return clazz;
     }
 
+    @Override
+    public Class<?> finishCanonical() {
+        checkFinished();
+
+        if (mExactConstants != null || mLookup != null) {
+            // Classes with exact constants are never equivalent, and classes defined by a
+            // lookup aren't in a group.
+            return finish();
+        }
+
+        String name = name();
+        byte[] bytes = finishBytes(false);
+
+        Class<?> clazz;
+        try {
+            clazz = mInjectorGroup.defineCanonical(fingerprint(bytes), name, bytes);
+        } finally {
+            mInjector.unreserve(name);
+        }
+
+        return clazz;
+    }
+
+    /**
+     * Returns a fingerprint of the class file which doesn't depend on the suffix which was
+     * applied to the class name.
+     */
+    private Object fingerprint(byte[] bytes) {
+        if (mBaseName != null) {
+            ByteBuffer renamed = ClassCache.rename(ByteBuffer.wrap(bytes), mBaseName);
+            if (renamed != null) {
+                bytes = renamed.array();
+            }
+        }
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        // ByteBuffer implements equals and hashCode by comparing the contents.
+        return ByteBuffer.wrap(md.digest(bytes));
+    }
+
+    @Override
+    public Class<?> finishCached(Path directory, String key) {
+        requireNonNull(directory);
+        requireNonNull(key);
+        checkFinished();
+
+        if (mExactConstants != null) {
+            // Exact constants cannot be stored in a file.
+            return finish();
+        }
+
+        Path file = ClassCache.file(directory, key);
+
+        try {
+            ByteBuffer buf = ClassCache.load(file, name());
+            if (buf != null) {
+                Class<?> clazz = defineStored(buf);
+                if (clazz != null) {
+                    return clazz;
+                }
+            }
+        } catch (IOException e) {
+            // Generate the class instead.
+        }
+
+        return finishRecorded(bytes -> {
+            try {
+                ClassCache.store(file, bytes);
+            } catch (IOException e) {
+                // The cache is just an optimization.
+            }
+        });
+    }
+
+    /**
+     * Finishes the class like the finish method does, and passes the class file to the
+     * recorder, unless the class has exact constants or refers to other classes whose names
+     * were assigned a suffix.
+     */
+    Class<?> finishRecorded(Consumer<byte[]> recorder) {
+        if (mExactConstants != null) {
+            return finish();
+        }
+        String name = name();
+        byte[] bytes = finishBytes(false);
+        if (ClassCache.isSelfContained(bytes)) {
+            recorder.accept(bytes);
+        }
+        return define(name, bytes);
+    }
+
+    /**
+     * Defines a class from a stored class file which has already been renamed to match this
+     * maker, skipping the steps which finish the definition.
+     *
+     * @return null if the class file is malformed, in which case this maker isn't finished
+     */
+    Class<?> defineStored(ByteBuffer buf) {
+        checkFinished();
+
+        String name = name();
+
+        Class<?> clazz;
+        try {
+            if (mLookup == null) {
+                clazz = mInjector.defineReserved(mInjectorGroup, name, buf);
+            } else {
+                var bytes = new byte[buf.remaining()];
+                buf.get(bytes);
+                clazz = mLookup.defineClass(bytes);
+            }
+        } catch (ClassFormatError e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+
+        // The definition is skipped entirely, and so nothing else needs to be finished.
+        mConstants = null;
+        mInjector.unreserve(name);
+
+        return clazz;
+    }
+
+    static List<Class<?>> finishAll(Collection<? extends ClassMaker> makers) {
+        var indexes = new IdentityHashMap<TheClassMaker, Integer>();
+        final TheClassMaker[] cms = checkMakers(makers, indexes);
+
+        // Supertypes which are also being finished must be defined first.
+        int[] order = new int[cms.length];
+        {
+            var visited = new boolean[cms.length];
+            int pos = 0;
+            for (int i=0; i<cms.length; i++) {
+                pos = finishOrder(cms, indexes, visited, order, pos, i);
+            }
+        }
+
+        final var names = new String[cms.length];
+        for (int i=0; i<cms.length; i++) {
+            names[i] = cms[i].name();
+        }
+
+        final var bytes = new byte[cms.length][];
+        var lookups = new MethodHandles.Lookup[cms.length];
+        var classes = new Class[cms.length];
+
+        try {
+            IntStream.range(0, cms.length).parallel().forEach(i -> {
+                bytes[i] = cms[i].finishBytes(false);
+            });
+
+            for (int i : order) {
+                TheClassMaker cm = cms[i];
+                MethodHandles.Lookup lookup = cm.mLookup;
+                if (lookup == null) {
+                    classes[i] = cm.mInjector.defineReserved(cm.mInjectorGroup, names[i], bytes[i]);
+                } else {
+                    try {
+                        classes[i] = lookup.defineClass(bytes[i]);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                    lookups[i] = lookup;
+                }
+                // Release the class file as soon as possible.
+                bytes[i] = null;
+            }
+        } finally {
+            for (int i=0; i<cms.length; i++) {
+                // Ensure that all makers are finished, even upon failure.
+                cms[i].mConstants = null;
+            }
+
+            unreserveAll(cms, names);
+
+            // Register constants for all the classes which were defined, even upon failure.
+            ConstantsRegistry.finishAll(cms, lookups, classes);
+        }
+
+        return Arrays.asList((Class<?>[]) classes);
+    }
+
+    /**
+     * @see ClassMaker#finishHiddenAll
+     */
+    static List<MethodHandles.Lookup> finishHiddenAll(Collection<? extends ClassMaker> makers) {
+        final TheClassMaker[] cms = checkMakers(makers, new IdentityHashMap<>());
+
+        if (cms.length == 0) {
+            return List.of();
+        }
+
+        // All the classes must be defined in the same package by the same loader.
+        MethodHandles.Lookup lookup = cms[0].mLookup;
+        ClassInjector.Group group = cms[0].mInjectorGroup;
+        String packageName = packageName(cms[0].name());
+        for (int i=1; i<cms.length; i++) {
+            TheClassMaker cm = cms[i];
+            if (cm.mLookup != lookup || (lookup == null && cm.mInjectorGroup != group)
+                || !packageName.equals(packageName(cm.name())))
+            {
+                throw new IllegalArgumentException
+                    ("Makers don't share a package and class loader: " + cm.name());
+            }
+        }
+
+        if (lookup == null) {
+            lookup = group.lookup(cms[0].name());
+        }
+
+        final var names = new String[cms.length];
+        for (int i=0; i<cms.length; i++) {
+            names[i] = cms[i].name();
+        }
+
+        final var bytes = new byte[cms.length][];
+        var results = new MethodHandles.Lookup[cms.length];
+        var lookups = new MethodHandles.Lookup[cms.length];
+        var classes = new Class[cms.length];
+
+        try {
+            IntStream.range(0, cms.length).parallel().forEach(i -> {
+                bytes[i] = cms[i].finishBytes(true);
+            });
+
+            // Every class strongly references all the others as its class data, and so they
+            // can only be unloaded together.
+            var data = Collections.unmodifiableList(Arrays.asList(classes));
+
+            for (int i=0; i<cms.length; i++) {
+                // Like finishHidden, each class joins the nest of the lookup class.
+                MethodHandles.Lookup result;
+                try {
+                    result = lookup.defineHiddenClassWithClassData
+                        (bytes[i], data, false, MethodHandles.Lookup.ClassOption.NESTMATE);
+                } catch (Exception e) {
+                    throw toUnchecked(e);
+                }
+                results[i] = result;
+                lookups[i] = lookup;
+                classes[i] = result.lookupClass();
+                // Release the class file as soon as possible.
+                bytes[i] = null;
+            }
+        } finally {
+            for (int i=0; i<cms.length; i++) {
+                // Ensure that all makers are finished, even upon failure.
+                cms[i].mConstants = null;
+            }
+
+            unreserveAll(cms, names);
+
+            // Register constants for all the classes which were defined, even upon failure.
+            ConstantsRegistry.finishAll(cms, lookups, classes);
+        }
+
+        return Arrays.asList(results);
+    }
+
+    private static String packageName(String className) {
+        int ix = className.lastIndexOf('.');
+        return ix <= 0 ? "" : className.substring(0, ix);
+    }
+
+    /**
+     * Checks that the makers are unfinished and distinct.
+     *
+     * @param indexes is filled in with the index of each maker
+     */
+    private static TheClassMaker[] checkMakers(Collection<? extends ClassMaker> makers,
+                                               Map<TheClassMaker, Integer> indexes)
+    {
+        var cms = new TheClassMaker[makers.size()];
+        int i = 0;
+        for (ClassMaker maker : makers) {
+            var cm = (TheClassMaker) requireNonNull(maker);
+            cm.checkFinished();
+            if (indexes.put(cm, i) != null) {
+                throw new IllegalArgumentException("Duplicate maker: " + cm.name());
+            }
+            cms[i++] = cm;
+        }
+        return cms;
+    }
+
+    /**
+     * Unreserves all the names at once, per injector.
+     */
+    private static void unreserveAll(TheClassMaker[] cms, String[] names) {
+        var reserved = new IdentityHashMap<ClassInjector, List<String>>();
+        for (int i=0; i<cms.length; i++) {
+            if (cms[i].mLookup == null) {
+                reserved.computeIfAbsent(cms[i].mInjector, k -> new ArrayList<>())
+                    .add(names[i]);
+            }
+        }
+        for (Map.Entry<ClassInjector, List<String>> e : reserved.entrySet()) {
+            e.getKey().unreserve(e.getValue());
+        }
+    }
+
+    /**
+     * Performs a depth-first traversal of the supertypes, adding them to the order first.
+     *
+     * @return updated order position
+     */
+    private static int finishOrder(TheClassMaker[] cms, Map<TheClassMaker, Integer> indexes,
+                                   boolean[] visited, int[] order, int pos, int i)
+    {
+        if (visited[i]) {
+            return pos;
+        }
+
+        visited[i] = true;
+
+        Type type = cms[i].type();
+
+        Type superType = type.superType();
+        if (superType != null) {
+            pos = finishOrder(cms, indexes, visited, order, pos, superType.maker());
+        }
+
+        for (Type iface : type.interfaces()) {
+            pos = finishOrder(cms, indexes, visited, order, pos, iface.maker());
+        }
+
+        order[pos++] = i;
+
+        return pos;
+    }
+
+    private static int finishOrder(TheClassMaker[] cms, Map<TheClassMaker, Integer> indexes,
+                                   boolean[] visited, int[] order, int pos, ClassMaker maker)
+    {
+        Integer index;
+        if (maker instanceof TheClassMaker cm && (index = indexes.get(cm)) != null) {
+            pos = finishOrder(cms, indexes, visited, order, pos, index);
+        }
+        return pos;
+    }
+
     @Override
     public MethodHandles.Lookup finishLookup() {
         checkFinished();
@@ -650,8 +1121,12 @@ final class TheClassMaker extends Attributed implements ClassMaker, Typed {
     private byte[] finishBytes(boolean hidden) {
         byte[] bytes;
         try {
-            var out = new BytesOut(null, 1000);
-            finishTo(out, hidden);
+            prepareFinish(hidden);
+            // Allocate exactly what's needed, avoiding buffer growth and a final copy.
+            int length = classFileLength();
+            var out = new BytesOut(null, length);
+            writeTo(out);
+            assert out.size() == length;
             bytes = out.toByteArray();
         } catch (IOException e) {
             // Not expected.
@@ -672,8 +1147,9 @@ final class TheClassMaker extends Attributed implements ClassMaker, Typed {
         noExactConstants();
         String name = name();
         try {
+            prepareFinish(false);
             var bout = new BytesOut(out, 1000);
-            finishTo(bout, false);
+            writeTo(bout);
             bout.flush();
         } finally {
             mConstants = null;
@@ -681,17 +1157,83 @@ final class TheClassMaker extends Attributed implements ClassMaker, Typed {
         }
     }
 
+    @Override
+    public void finishTo(ByteBuffer buf) {
+        if (buf.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+
+        String name = name();
+        int length = mPreparedLength;
+
+        if (length == 0) {
+            noExactConstants();
+            try {
+                prepareFinish(false);
+                length = classFileLength();
+            } catch (Throwable e) {
+                mConstants = null;
+                mInjector.unreserve(name);
+                throw e;
+            }
+        }
+
+        if (length > buf.remaining()) {
+            // Allow the caller to try again with a larger buffer.
+            mPreparedLength = length;
+            throw new BufferOverflowException();
+        }
+
+        mPreparedLength = 0;
+
+        try {
+            if (buf.hasArray()) {
+                int pos = buf.position();
+                int offset = buf.arrayOffset() + pos;
+                byte[] array = buf.array();
+                var out = BytesOut.into(array, offset);
+                writeTo(out);
+                assert out.size() == offset + length;
+                buf.position(pos + length);
+            } else {
+                byte[] temp = Scratch.take(length);
+                try {
+                    var out = BytesOut.into(temp, 0);
+                    writeTo(out);
+                    assert out.size() == length;
+                    buf.put(temp, 0, length);
+                } finally {
+                    Scratch.give(temp);
+                }
+            }
+        } catch (IOException e) {
+            // Not expected.
+            throw new RuntimeException(e);
+        } finally {
+            mConstants = null;
+            mInjector.unreserve(name);
+        }
+    }
+
+    @Override
+    public void finishTo(WritableByteChannel channel) throws IOException {
+        var buf = ByteBuffer.wrap(finishBytes());
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
     /**
+     * Finishes all the methods and attributes, such that the class file can be written.
+     *
      * @param hidden when true, rename the class
      */
-    private void finishTo(BytesOut out, boolean hidden) throws IOException {
+    private void prepareFinish(boolean hidden) {
         checkFinished();
 
         // Ensure that mSuperClass has been assigned.
         superClass();
 
-        int version = 0x0000_003d; // Java 17.
-
         if (mRecordCtors != null) {
             TheMethodMaker.doFinish(mRecordCtors);
         }
@@ -702,16 +1244,47 @@ final class TheClassMaker extends Attributed implements ClassMaker, Typed {
 
         TheMethodMaker.doFinish(mClinitMethods);
 
-        checkSize(mInterfaces, 65535, "Interface");
-        checkSize(mFields, 65535, "Field");
-        checkSize(mMethods, 65535, "Method");
-
         if (mMethods != null) {
-            for (TheMethodMaker method : mMethods) {
-                method.doFinish();
+            int i = 0;
+
+            if (mParallelFinish > 0 && mMethods.size() >= mParallelFinish) {
+                // Only the analyze step runs in parallel. The other steps can modify the
+                // class, and they run in order to produce a deterministic class file.
+                int size = mMethods.size();
+                var toFinish = new ArrayList<TheMethodMaker>(size);
+                for (; i<size; i++) {
+                    TheMethodMaker method = mMethods.get(i);
+                    if (method.beginFinish()) {
+                        toFinish.add(method);
+                    }
+                }
+                toFinish.parallelStream().forEach(TheMethodMaker::analyze);
+                for (TheMethodMaker method : toFinish) {
+                    method.emit();
+                }
+            }
+
+            // Note that finishing a method can add synthetic helper methods to the list.
+            for (; i<mMethods.size(); i++) {
+                mMethods.get(i).doFinish();
+            }
+
+            if (mBudgetListener != null) {
+                for (TheMethodMaker method : mMethods) {
+                    CodeReport report;
+                    if (method.isHot() && (report = method.report()) != null
+                        && report.codeLength() > CodeReport.FREQ_INLINE_SIZE)
+                    {
+                        mBudgetListener.accept(report);
+                    }
+                }
             }
         }
 
+        checkSize(mInterfaces, 65535, "Interface");
+        checkSize(mFields, 65535, "Field");
+        checkSize(mMethods, 65535, "Method");
+
         if (hidden) {
             // Clean up the generated class name. It will be given a unique name by the
             // defineHiddenClass.
@@ -721,6 +1294,47 @@ final class TheClassMaker extends Attributed implements ClassMaker, Typed {
                 mThisClass.rename(mConstants.addUTF8(name.substring(0, ix)));
             }
         }
+    }
+
+    /**
+     * Returns the number of bytes written by the writeTo method. Must be called after
+     * prepareFinish.
+     */
+    private int classFileLength() {
+        int length = (4 + 4) + mConstants.length() + (2 + 2 + 2);
+
+        length += 2;
+        if (mInterfaces != null) {
+            length += mInterfaces.size() * 2;
+        }
+
+        length += 2;
+        if (mFields != null) {
+            for (TheFieldMaker field : mFields.values()) {
+                length += field.length();
+            }
+        }
+
+        length += 2;
+        if (mSpilledMethods != null) {
+            length += mSpilledMethods.size();
+        }
+        if (mMethods != null) {
+            for (TheMethodMaker method : mMethods) {
+                if (!method.isSpilled()) {
+                    length += method.length();
+                }
+            }
+        }
+
+        return length + attributesLength();
+    }
+
+    /**
+     * Must be called after prepareFinish.
+     */
+    private void writeTo(BytesOut out) throws IOException {
+        int version = 0x0000_003d; // Java 17.
 
         out.writeInt(0xCAFEBABE);
         out.writeInt(version);
@@ -754,8 +1368,13 @@ final class TheClassMaker extends Attributed implements ClassMaker, Typed {
             out.writeShort(0);
         } else {
             out.writeShort(mMethods.size());
+            if (mSpilledMethods != null) {
+                out.write(mSpilledMethods);
+            }
             for (TheMethodMaker method : mMethods) {
-                method.writeTo(out);
+                if (!method.isSpilled()) {
+                    method.writeTo(out);
+                }
             }
         }
 
@@ -776,7 +1395,7 @@ final class TheClassMaker extends Attributed implements ClassMaker, Typed {
     }
 
     private void checkFinished() {
-        if (mConstants == null) {
+        if (mConstants == null || mPreparedLength != 0) {
             throw new IllegalStateException("Class definition is already finished");
         }
     }
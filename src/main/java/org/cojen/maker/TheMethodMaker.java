@@ -32,6 +32,7 @@ import java.util.Arrays;
 import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -57,6 +58,44 @@ import static org.cojen.maker.BytesOut.*;
 class TheMethodMaker extends ClassMember implements MethodMaker {
     private static final int MAX_CODE_LENGTH = 65535;
 
+    /**
+     * Local variable slots are shared by variables which are never live at the same time,
+     * unless this property is set to false.
+     */
+    static final boolean REUSE_SLOTS = Boolean.parseBoolean
+        (System.getProperty(ClassMaker.class.getName() + ".REUSE_SLOTS", "true"));
+
+    /**
+     * Peephole rewrites are applied to the code after flow analysis, unless this property is
+     * set to false.
+     */
+    static final boolean PEEPHOLE = Boolean.parseBoolean
+        (System.getProperty(ClassMaker.class.getName() + ".PEEPHOLE", "true"));
+
+    /**
+     * Methods whose code is larger than this limit are split into helper methods, but only
+     * if the limit is larger than zero. Splitting is disabled by default.
+     */
+    static final int SPLIT_LIMIT =
+        Integer.getInteger(ClassMaker.class.getName() + ".SPLIT_LIMIT", 0);
+
+    /**
+     * Cold code, which constructs exceptions to throw or handles them, is automatically moved
+     * into helper methods when this property is set to true. It's disabled by default.
+     */
+    static final boolean OUTLINE = Boolean.getBoolean(ClassMaker.class.getName() + ".OUTLINE");
+
+    /**
+     * Rules applied by the peephole stage, in order.
+     */
+    private static final Rewrite[] PEEPHOLE_RULES = {
+        Peephole::foldConversion,
+        Peephole::dupStore,
+        Peephole::threadJumps,
+        Peephole::flipOverGoto,
+        Peephole::removeGoto,
+    };
+
     private static final boolean CONDY_WORKAROUND;
 
     static {
@@ -85,15 +124,33 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
 
     private LocalVar[] mVars;
 
-    private LocalVar[] mStack;
+    // Operand stack which is tracked as code is appended. Parallel arrays are used instead of
+    // objects, because every pushed value would otherwise need to be allocated.
+    private Type[] mStackTypes;
+    private int[] mStackSlots;
+    // Offset of the "new" instruction which pushed an uninitialized object, or else -1. Note
+    // that the stack map code for an uninitialized object is never actually needed, because
+    // MethodMaker doesn't allow a label between the allocation and the constructor call.
+    private int[] mStackNewOffsets;
     private int mStackSize;
     private int mMaxStackSlot;
 
     // Count of labels which need to be positioned to define all branch targets.
     private int mUnpositionedLabels;
 
+    // Bits are set for variables known to be available at the current code position. Is
+    // only tracked when appending the code again, after some branches have been widened.
+    private BitSet mVarUsage;
+
+    // Maps flow slots to variables, but only when slots are shared.
+    private LocalVar[] mFlowVars;
+
     private StackMapTable mStackMapTable;
 
+    // Results of the analyze step of finishing, which are used by the emit step.
+    private BitSet mAnalyzedUsage;
+    private int mAnalyzedOpCount, mAnalyzedMaxLocals, mAnalyzedFlowMaxLocals;
+
     private Attribute.LineNumberTable mLineNumberTable;
 
     private Attribute.LocalVariableTable mLocalVariableTable;
@@ -109,6 +166,29 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
     // workaround for a HotSpot condy bug which disables code compilation.
     private boolean mHasBranches;
 
+    // Number of local variable slots saved by sharing them.
+    private int mSlotsSaved;
+
+    // Number of rewrites applied by the peephole stage.
+    private int mRewrites;
+
+    // Code size limit which causes the method to be split, if larger than zero.
+    int mSplitLimit = SPLIT_LIMIT;
+
+    // When true, automatically move cold code into helper methods.
+    boolean mOutline = OUTLINE;
+
+    // Pairs of labels which surround code passed to the cold method.
+    private List<Lab[]> mColdRegions;
+
+    private Splitter mSplitter;
+    private int mSplitRounds;
+
+    private boolean mHot;
+
+    // Is set when the method is finished.
+    private CodeReport mReport;
+
     private int mFinished;
 
     TheMethodMaker(TheClassMaker classMaker, Type.Method method) {
@@ -142,8 +222,20 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
     }
 
     void doFinish() {
+        if (beginFinish()) {
+            analyze();
+            emit();
+        }
+    }
+
+    /**
+     * First step of finishing, which can modify the class.
+     *
+     * @return false if there's nothing to finish
+     */
+    boolean beginFinish() {
         if (mFinished != 0 || (mModifiers & (Modifier.ABSTRACT | Modifier.NATIVE)) != 0) {
-            return;
+            return false;
         }
 
         positionReturnLabel();
@@ -167,6 +259,14 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
             initParams();
         }
 
+        return true;
+    }
+
+    /**
+     * Second step of finishing, which only accesses the state of this method. It can run
+     * concurrently with the analysis of other methods in the same class.
+     */
+    void analyze() {
         List<LocalVar> varList = new ArrayList<>();
         BitSet varUsage = new BitSet();
 
@@ -182,9 +282,6 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
             flow.run(mFirstOp);
             opCount = flow.mOpCount;
             maxLocals = flow.nextSlot();
-            if (maxLocals >= 65536) {
-                throw new IllegalStateException("Too many local variables");
-            }
         }
 
         // Remove unvisited exception handlers.
@@ -204,6 +301,41 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
 
         mVars = varList.toArray(new LocalVar[varList.size()]);
 
+        final int flowMaxLocals = maxLocals;
+
+        if (REUSE_SLOTS && mVars.length - mParams.length > 1) {
+            int newMaxLocals = new SlotAllocator(mParams.length, opCount).run(maxLocals);
+            if (newMaxLocals < maxLocals) {
+                mSlotsSaved = maxLocals - newMaxLocals;
+                maxLocals = newMaxLocals;
+            }
+        }
+
+        if (maxLocals >= 65536) {
+            throw new IllegalStateException("Too many local variables");
+        }
+
+        if (PEEPHOLE) {
+            mRewrites = new Peephole(PEEPHOLE_RULES).run();
+        }
+
+        mAnalyzedUsage = varUsage;
+        mAnalyzedOpCount = opCount;
+        mAnalyzedMaxLocals = maxLocals;
+        mAnalyzedFlowMaxLocals = flowMaxLocals;
+    }
+
+    /**
+     * Final step of finishing, which generates the code and can modify the class. Must be
+     * called in a consistent order for the class file to be deterministic.
+     */
+    void emit() {
+        final BitSet varUsage = mAnalyzedUsage;
+        final int opCount = mAnalyzedOpCount;
+        final int maxLocals = mAnalyzedMaxLocals;
+        final int flowMaxLocals = mAnalyzedFlowMaxLocals;
+        mAnalyzedUsage = null;
+
         // Prepare the StackMapTable.
         {
             Arrays.sort(mVars); // sort by slot
@@ -221,8 +353,18 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
             mStackMapTable = new StackMapTable(mConstants, initCodes);
         }
 
-        mCode = new byte[Math.min(MAX_CODE_LENGTH, opCount * 2)];
-        mStack = new LocalVar[8];
+        if ((mSplitLimit > 0 || mOutline || mColdRegions != null) && !"<init>".equals(name())) {
+            // Code is allowed to exceed the maximum length until it has been split.
+            mSplitter = new Splitter(mSplitLimit, mOutline, varUsage);
+        }
+
+        if (mCode == null) {
+            // Is non-null when finishing again after splitting, and so it can be reused.
+            mCode = Scratch.take(Math.min(MAX_CODE_LENGTH, opCount * 2));
+        }
+        mStackTypes = new Type[8];
+        mStackSlots = new int[8];
+        mStackNewOffsets = new int[8];
 
         Op lastAppendedOp = null;
 
@@ -237,8 +379,15 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
             mLocalVariableTypeTable = null;
             mFinished = 0;
 
+            if (mSplitter != null) {
+                mSplitter.reset();
+            }
+
             for (Op op = mFirstOp; op != null; op = op.mNext) {
                 if (op.mVisited) { // only append if visited by flow analysis
+                    if (mSplitter != null) {
+                        mSplitter.record(op);
+                    }
                     op.appendTo(this);
                     lastAppendedOp = op;
                 }
@@ -253,7 +402,8 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
                 break;
             }
 
-            // Wide forward branches were detected, so code needs to be rebuilt.
+            // Wide branches were detected, so the code needs to be appended again. The
+            // results of flow analysis still apply, and only the widened branches change.
 
             for (Op op = mFirstOp; op != null; op = op.mNext) {
                 op.reset();
@@ -261,7 +411,36 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
 
             mStackMapTable.reset();
 
-            new Flow(varList, varUsage).run(mFirstOp);
+            if (mThisVar instanceof InitThisVar initThis) {
+                initThis.reset();
+            }
+
+            if (mVarUsage == null) {
+                mVarUsage = new BitSet();
+                if (mSlotsSaved != 0) {
+                    mFlowVars = new LocalVar[flowMaxLocals];
+                    for (LocalVar var : mVars) {
+                        mFlowVars[var.mFlowSlot] = var;
+                    }
+                }
+            } else {
+                mVarUsage.clear();
+            }
+
+            mVarUsage.or(varUsage);
+        }
+
+        if (mSplitter != null) {
+            Splitter splitter = mSplitter;
+            mSplitter = null;
+            if (mSplitRounds++ < Splitter.MAX_ROUNDS && splitter.split()) {
+                // Code was moved into helper methods, so finish again.
+                doFinish();
+                return;
+            }
+            if (mCodeLen > MAX_CODE_LENGTH) {
+                throw new IllegalStateException("Code limit reached");
+            }
         }
 
         mParams = null;
@@ -269,7 +448,11 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
         mLastOp = null;
         mReturnLabel = null;
         mVars = null;
-        mStack = null;
+        mStackTypes = null;
+        mStackSlots = null;
+        mStackNewOffsets = null;
+        mVarUsage = null;
+        mFlowVars = null;
 
         if (mThisVar instanceof InitThisVar && mThisVar.smCode() == SM_UNINIT_THIS) {
             throw new IllegalStateException("Super or this constructor never invoked");
@@ -280,9 +463,19 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
                 ("End reached without returning: " + mMethod.returnType().name());
         }
 
+        // The scratch buffer is usually larger than needed, and it's retained by the
+        // attribute until the class is finished, so copy it.
+        byte[] code = Arrays.copyOf(mCode, mCodeLen);
+        Scratch.give(mCode);
+        mCode = code;
+
         var codeAttr = new Attribute.Code
             (mConstants, mMaxStackSlot, maxLocals, mCode, mCodeLen, mExceptionHandlers);
 
+        mReport = new Report(name(), mDescriptor.mValue, mHot, mCodeLen, mMaxStackSlot,
+                             maxLocals, mExceptionHandlers == null ? 0 : mExceptionHandlers.size(),
+                             mSlotsSaved);
+
         mExceptionHandlers = null;
 
         if (mStackMapTable.finish()) {
@@ -309,6 +502,21 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
         mFinished = 1;
     }
 
+    /**
+     * Returns the number of rewrites which were applied by the peephole stage, as determined
+     * when the method was finished.
+     */
+    int rewrites() {
+        return mRewrites;
+    }
+
+    /**
+     * Returns the length of the code, as determined when the method was finished.
+     */
+    int codeLength() {
+        return mCodeLen;
+    }
+
     /**
      * Stitch methods together and finish as one. List can be null or empty.
      */
@@ -359,12 +567,14 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
 
     @Override
     public MethodMaker public_() {
+        checkSpilled();
         mModifiers = Modifiers.toPublic(mModifiers);
         return this;
     }
 
     @Override
     public MethodMaker private_() {
+        checkSpilled();
         mModifiers = Modifiers.toPrivate(mModifiers);
         mMethod.toPrivate();
         return this;
@@ -372,12 +582,14 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
 
     @Override
     public MethodMaker protected_() {
+        checkSpilled();
         mModifiers = Modifiers.toProtected(mModifiers);
         return this;
     }
 
     @Override
     public MethodMaker static_() {
+        checkSpilled();
         if (mParams != null) {
             throw new IllegalStateException
                 ("Cannot become static after parameters have been accessed");
@@ -389,6 +601,7 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
 
     @Override
     public MethodMaker final_() {
+        checkSpilled();
         mModifiers = Modifiers.toFinal(mModifiers);
         mMethod.toFinal();
         return this;
@@ -396,30 +609,35 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
 
     @Override
     public MethodMaker synchronized_() {
+        checkSpilled();
         mModifiers = Modifiers.toSynchronized(mModifiers);
         return this;
     }
 
     @Override
     public MethodMaker abstract_() {
+        checkSpilled();
         mModifiers = Modifiers.toAbstract(mModifiers);
         return this;
     }
 
     @Override
     public MethodMaker native_() {
+        checkSpilled();
         mModifiers = Modifiers.toNative(mModifiers);
         return this;
     }
 
     @Override
     public MethodMaker synthetic() {
+        checkSpilled();
         mModifiers = Modifiers.toSynthetic(mModifiers);
         return this;
     }
 
     @Override
     public MethodMaker bridge() {
+        checkSpilled();
         mModifiers = Modifiers.toBridge(mModifiers);
         mMethod.toBridge();
         return this;
@@ -427,6 +645,7 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
 
     @Override
     public MethodMaker varargs() {
+        checkSpilled();
         Type[] params = mMethod.paramTypes();
         if (params.length == 0 || !params[params.length - 1].isArray()) {
             throw new IllegalStateException();
@@ -438,6 +657,7 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
 
     @Override
     public MethodMaker throws_(Object type) {
+        checkSpilled();
         if (mExceptionsThrown == null) {
             mExceptionsThrown = new Attribute.ConstantList(mConstants, "Exceptions");
             addAttribute(mExceptionsThrown);
@@ -470,6 +690,45 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
         throw new IllegalStateException("Not overriding a virtual method");
     }
 
+    @Override
+    public MethodMaker hot() {
+        checkSpilled();
+        mHot = true;
+        return this;
+    }
+
+    boolean isHot() {
+        return mHot;
+    }
+
+    @Override
+    public CodeReport report() {
+        return mReport;
+    }
+
+    @Override
+    public void finishEarly() {
+        mClassMaker.finishEarly(this);
+    }
+
+    /**
+     * Called after the method has been finished and written out by the class, to release
+     * everything which is no longer needed.
+     */
+    void spilled() {
+        mFinished = 2;
+        mCode = null;
+        mAttributes = null;
+        mLineNumberTable = null;
+        mMethodParameters = null;
+        mParameterAnnotationsSet = null;
+        mExceptionsThrown = null;
+    }
+
+    boolean isSpilled() {
+        return mFinished == 2;
+    }
+
     private boolean override(Type.Method method) {
         if (method != null && !method.isStatic() && !method.isPrivate()) {
             if (method.isFinal()) {
@@ -481,8 +740,21 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
         return false;
     }
 
+    @Override
+    public AnnotationMaker addAnnotation(Object annotationType, boolean visible) {
+        checkSpilled();
+        return super.addAnnotation(annotationType, visible);
+    }
+
+    @Override
+    public void addAttribute(String name, Object value) {
+        checkSpilled();
+        super.addAttribute(name, value);
+    }
+
     @Override
     public MethodMaker signature(Object... components) {
+        checkSpilled();
         addSignature(components);
         return this;
     }
@@ -564,6 +836,7 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
             Type type = mClassMaker.type();
             mThisVar = "<init>".equals(name()) ? new InitThisVar(type) : new ParamVar(type, 0);
             mThisVar.mSlot = 0;
+            mThisVar.mFlowSlot = 0;
             count++;
             slot = 1;
         }
@@ -578,6 +851,7 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
         for (Type t : mMethod.paramTypes()) {
             var param = new ParamVar(t, i);
             param.mSlot = slot;
+            param.mFlowSlot = slot;
             slot += param.slotWidth();
             mParams[i++] = param;
         }
@@ -1041,7 +1315,7 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
                 endLab.mVisited = true;
 
                 // Flow into the handler itself.
-                flow.run(handlerLab);
+                flow.branch(handlerLab);
 
                 // Return the first operation in the handled block.
                 return mNext;
@@ -1161,6 +1435,24 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
         return (byte) (op >= IFNULL ? (op ^ 1) : ((op - 1) ^ 1) + 1);
     }
 
+    private static byte reverseIf(byte op) {
+        /*
+          Adjust the opcode to compare the operands in the opposite order.
+
+          <   to  >
+          >=  to  <=
+          >   to  <
+          <=  to  >=
+        */
+        return switch (op) {
+            case IF_ICMPLT -> IF_ICMPGT;
+            case IF_ICMPGE -> IF_ICMPLE;
+            case IF_ICMPGT -> IF_ICMPLT;
+            case IF_ICMPLE -> IF_ICMPGE;
+            default -> op;
+        };
+    }
+
     private static final class Handler implements ExceptionHandler {
         final Lab mStartLab, mEndLab;
         final HandlerLab mHandlerLab;
@@ -1347,6 +1639,20 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
         return target;
     }
 
+    @Override
+    public void cold(Runnable body) {
+        Lab startLab = new Lab();
+        addOp(startLab);
+        body.run();
+        Lab endLab = new Lab();
+        addOp(endLab);
+
+        if (mColdRegions == null) {
+            mColdRegions = new ArrayList<>();
+        }
+        mColdRegions.add(new Lab[] {startLab, endLab});
+    }
+
     @Override
     public Variable concat(Object... values) {
         if (values.length == 0) {
@@ -1539,30 +1845,28 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
      * @param newOffset offset of "new" instruction; pass -1 if not pushing a new object
      */
     private void stackPush(Type type, int newOffset) {
+        int size = mStackSize;
+
         int slot;
-        if (mStackSize == 0) {
+        if (size == 0) {
             slot = 0;
         } else {
-            LocalVar top = stackTop();
-            slot = top.mSlot + top.slotWidth();
+            slot = mStackSlots[size - 1] + slotWidth(mStackTypes[size - 1]);
         }
 
-        LocalVar top;
-        if (newOffset < 0) {
-            top = new LocalVar(type);
-        } else {
-            top = new NewVar(type, newOffset);
-        }
-
-        top.mSlot = slot;
-
-        if (mStackSize >= mStack.length) {
-            mStack = Arrays.copyOf(mStack, mStack.length << 1);
+        if (size >= mStackTypes.length) {
+            int newLength = size << 1;
+            mStackTypes = Arrays.copyOf(mStackTypes, newLength);
+            mStackSlots = Arrays.copyOf(mStackSlots, newLength);
+            mStackNewOffsets = Arrays.copyOf(mStackNewOffsets, newLength);
         }
 
-        mStack[mStackSize++] = top;
+        mStackTypes[size] = type;
+        mStackSlots[size] = slot;
+        mStackNewOffsets[size] = newOffset;
+        mStackSize = size + 1;
 
-        int max = slot + top.slotWidth();
+        int max = slot + slotWidth(type);
         if (max > mMaxStackSlot) {
             mMaxStackSlot = max;
         }
@@ -1572,7 +1876,7 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
      * Remove the top stack entry.
      */
     private void stackPop() {
-        byte op = switch (stackTop().mType.typeCode()) {
+        byte op = switch (stackTopType().typeCode()) {
             default -> POP;
             case T_LONG, T_DOUBLE -> POP2;
         };
@@ -1580,8 +1884,15 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
         appendOp(op, 1);
     }
 
-    private LocalVar stackTop() {
-        return mStack[mStackSize - 1];
+    private Type stackTopType() {
+        return mStackTypes[mStackSize - 1];
+    }
+
+    private static int slotWidth(Type type) {
+        return switch (type.typeCode()) {
+            default -> 1;
+            case T_DOUBLE, T_LONG -> 2;
+        };
     }
 
     /**
@@ -1727,6 +2038,8 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
             throw new AssertionError();
         }
 
+        varUsed(var);
+
         doPush: {
             byte op;
             tiny: {
@@ -1880,6 +2193,8 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
     private void storeVar(LocalVar var) {
         int slot = var.mSlot;
 
+        varStored(var);
+
         byte op;
         tiny: {
             switch (var.mType.stackMapCode()) {
@@ -1937,6 +2252,114 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
         appendOp((byte) (op + slot), 1);
     }
 
+    /**
+     * Track a variable which is known to be available at the current code position.
+     */
+    private void varUsed(LocalVar var) {
+        BitSet usage = mVarUsage;
+        if (usage != null) {
+            usage.set(var.mFlowSlot);
+        }
+    }
+
+    /**
+     * Track a variable which has been stored at the current code position. Any other
+     * variables which share the slot are no longer available.
+     */
+    private void varStored(LocalVar var) {
+        BitSet usage = mVarUsage;
+        if (usage == null) {
+            return;
+        }
+
+        LocalVar[] flowVars = mFlowVars;
+        if (flowVars != null) {
+            int start = var.mSlot;
+            int end = start + var.slotWidth();
+            for (int i = usage.nextSetBit(0); i >= 0; i = usage.nextSetBit(i + 1)) {
+                LocalVar other = flowVars[i];
+                if (other != null && other != var
+                    && other.mSlot < end && start < other.mSlot + other.slotWidth())
+                {
+                    usage.clear(i);
+                }
+            }
+        }
+
+        usage.set(var.mFlowSlot);
+    }
+
+    /**
+     * Return the StackMapTable codes for the given variable usage, in which bits are set for
+     * available variables. Assumes that mVars has been sorted by slot.
+     */
+    private int[] localCodes(BitSet usage) {
+        LocalVar[] vars = mVars;
+
+        // First figure out the number of local codes to fill in.
+
+        int numCodes = 0;
+        for (int i=vars.length; --i>=0; ) {
+            LocalVar var = vars[i];
+            int slot = var.mSlot;
+            if (usage.get(var.mFlowSlot)) {
+                if (numCodes <= 0) {
+                    numCodes = slot + 1;
+                } else {
+                    // Wide sm codes consume two slots.
+                    numCodes -= var.slotWidth() - 1;
+                }
+            }
+        }
+
+        if (numCodes <= 0) {
+            return null;
+        }
+
+        // Note that SM_TOP is zero, so all codes are SM_TOP by default.
+        int[] localCodes = new int[numCodes];
+
+        int adjust = 0;
+        for (LocalVar var : vars) {
+            int slot = var.mSlot;
+            int codeSlot = slot + adjust;
+            if (codeSlot >= localCodes.length) {
+                break;
+            }
+            if (usage.get(var.mFlowSlot)) {
+                localCodes[codeSlot] = var.smCode();
+                // Wide sm codes consume two slots.
+                adjust -= var.slotWidth() - 1;
+            }
+        }
+
+        return localCodes;
+    }
+
+    /**
+     * Return the StackMapTable codes for the current stack.
+     */
+    private int[] stackCodes() {
+        if (mStackSize == 0) {
+            return null;
+        }
+        int[] codes = new int[mStackSize];
+        for (int i=0; i<codes.length; i++) {
+            int newOffset = mStackNewOffsets[i];
+            if (newOffset >= 0) {
+                codes[i] = SM_UNINIT | (newOffset << 8);
+            } else {
+                Type type = mStackTypes[i];
+                int code = type.stackMapCode();
+                if (code == SM_OBJECT) {
+                    code |= (mConstants.addClass(type).mIndex << 8);
+                }
+                codes[i] = code;
+            }
+        }
+        return codes;
+    }
+
     /**
      * @param stackPop amount of stack elements popped by this operation
      */
@@ -1971,7 +2394,10 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
 
     private void appendPad(int pad) {
         ensureSpace(pad);
-        mCodeLen += pad;
+        // The code buffer is pooled, and so it can have leftover bytes from another method.
+        for (; pad > 0; pad--) {
+            mCode[mCodeLen++] = 0;
+        }
     }
 
     private void ensureSpace(int amt) {
@@ -1983,7 +2409,7 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
 
     private void growSpace(int require) {
         int newLen = Math.max(mCode.length + require, mCode.length << 1);
-        newLen = Math.min(newLen, MAX_CODE_LENGTH);
+        newLen = Math.min(newLen, mSplitter == null ? MAX_CODE_LENGTH : (1 << 30));
         if (newLen <= mCode.length) {
             throw new IllegalStateException("Code limit reached");
         }
@@ -1992,6 +2418,7 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
 
     private void addOp(Op op) {
         if (mLastOp == null) {
+            checkSpilled();
             mFirstOp = op;
         } else {
             mLastOp.mNext = op;
@@ -2001,6 +2428,7 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
 
     private void addOps(Op op, Op last) {
         if (mLastOp == null) {
+            checkSpilled();
             mFirstOp = op;
         } else {
             mLastOp.mNext = op;
@@ -2008,6 +2436,12 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
         mLastOp = last;
     }
 
+    private void checkSpilled() {
+        if (isSpilled()) {
+            throw new IllegalStateException("Method is finished");
+        }
+    }
+
     /**
      * Assigns next op for the previous op.
      */
@@ -2463,12 +2897,7 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
         }
 
         if (code < 10 || code >= 15) {
-            addOp(new Op() {
-                @Override
-                void appendTo(TheMethodMaker m) {
-                    m.convert(from, to, code);
-                }
-            });
+            addOp(new ConvertOp(from, to, code));
             return;
         }
 
@@ -2911,76 +3340,116 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
         final int mMinVars;
 
         // Bits are set for variables known to be available at the current flow position.
-        BitSet mVarUsage;
+        final BitSet mVarUsage;
 
         int mOpCount;
 
         private Op mRemoved;
 
-        private int mDepth;
-        private Overflow mOverflow;
+        // Stack of branch target labels which need to be visited or revisited.
+        private Lab[] mWorklist;
+        private int mWorklistSize;
 
+        /**
+         * @param varUsage initial set of available variables; is copied and not modified
+         */
         Flow(List<LocalVar> varList, BitSet varUsage) {
             mVarList = varList;
             mMinVars = varList.size();
-            mVarUsage = varUsage;
+            mVarUsage = (BitSet) varUsage.clone();
+            mWorklist = new Lab[8];
         }
 
         /**
-         * Entry point for flow analysis.
-         *
-         * @param op always expected to be a Lab except for the very first op
+         * Entry point for flow analysis. Flows through all operations reachable from the
+         * given one, and then drains the worklist until variable usage at every branch target
+         * is stable.
          */
         void run(Op op) {
-            final BitSet original = (BitSet) mVarUsage.clone();
+            flowFrom(op, null);
 
-            if (mDepth >= 100) {
-                // Prevent stack overflow.
-                mOverflow = new Overflow(mOverflow, op, original);
-                return;
-            }
+            final BitSet usage = mVarUsage;
 
-            while (true) {
-                mDepth++;
+            while (mWorklistSize > 0) {
+                Lab lab = mWorklist[--mWorklistSize];
+                mWorklist[mWorklistSize] = null;
 
-                // Track the previous op for supporting removal, but cannot remove Lab ops.
-                Op prev = null;
+                if (!lab.mQueued) {
+                    // Was already flowed through by a path which reached it first.
+                    continue;
+                }
 
-                while (true) {
-                    Op next;
-                    if (!op.mVisited) {
-                        op.mVisited = true;
-                        mOpCount++;
-                        next = op.flow(this, prev);
-                    } else {
-                        next = op.revisit(this, prev);
-                    }
-                    if (next == null) {
-                        break;
-                    }
-                    if (next instanceof HandlerLab) {
-                        throw new IllegalStateException("Code flows into an exception handler");
-                    }
+                lab.mQueued = false;
 
-                    if (mRemoved == op) {
-                        // Keep existing prev node in order for subsequent removes to be correct.
-                        mRemoved = null;
-                    } else {
-                        prev = op;
-                    }
+                usage.clear();
+                usage.or(lab.mVarUsage);
+
+                if (!lab.mVisited) {
+                    lab.mVisited = true;
+                    mOpCount++;
+                }
 
-                    op = next;
+                Op next = lab.mNext;
+                if (next instanceof HandlerLab) {
+                    throw new IllegalStateException("Code flows into an exception handler");
                 }
 
-                if (--mDepth > 0 || mOverflow == null) {
-                    mVarUsage = original;
+                flowFrom(next, lab);
+            }
+        }
+
+        /**
+         * Flows linearly through the operations, stopping when no further progress can be
+         * made. Branches don't recurse, but instead they call the branch method.
+         *
+         * @param prev the op before the given one, which is used for supporting removal
+         */
+        private void flowFrom(Op op, Op prev) {
+            while (op != null) {
+                Op next;
+                if (!op.mVisited) {
+                    op.mVisited = true;
+                    mOpCount++;
+                    next = op.flow(this, prev);
+                } else {
+                    next = op.revisit(this, prev);
+                }
+                if (next == null) {
                     break;
                 }
+                if (next instanceof HandlerLab) {
+                    throw new IllegalStateException("Code flows into an exception handler");
+                }
+
+                if (mRemoved == op) {
+                    // Keep existing prev node in order for subsequent removes to be correct.
+                    mRemoved = null;
+                } else {
+                    prev = op;
+                }
+
+                op = next;
+            }
+        }
 
-                // Pop the overflow stack.
-                op = mOverflow.mOp;
-                mVarUsage = mOverflow.mVarUsage;
-                mOverflow = mOverflow.mPrev;
+        /**
+         * Merges the current variable usage into the given branch target, and schedules it
+         * to be visited if anything changed. Never allocates more than once per label.
+         */
+        void branch(Lab target) {
+            BitSet usage = target.mVarUsage;
+            if (usage == null) {
+                target.mVarUsage = (BitSet) mVarUsage.clone();
+            } else if (!intersect(usage, mVarUsage) && target.mVisited) {
+                return;
+            }
+
+            if (!target.mQueued) {
+                target.mQueued = true;
+                if (mWorklistSize >= mWorklist.length) {
+                    mWorklist = Arrays.copyOf(mWorklist, mWorklist.length << 1);
+                }
+                mWorklist[mWorklistSize++] = target;
             }
         }
 
@@ -3016,51 +3485,1833 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
         }
     }
 
-    private static class Overflow {
-        final Overflow mPrev;
-        final Op mOp;
-        final BitSet mVarUsage;
+    /**
+     * Reassigns local variable slots after flow analysis, allowing variables which are never
+     * live at the same time to share a slot. Parameters and named variables keep exclusive
+     * slots, because debug attributes describe them over the entire method.
+     *
+     * Liveness is computed over basic blocks, and then each variable is given a conservative
+     * live interval over the op order. Slots are assigned to the intervals with a linear
+     * scan. The variable usage at each label is reduced to the variables which are live, and
+     * so the StackMapTable never refers to a variable whose slot was given away.
+     */
+    final class SlotAllocator {
+        private final int mNumParams, mOpCount;
 
-        Overflow(Overflow prev, Op op, BitSet varUsage) {
-            mPrev = prev;
-            mOp = op;
-            mVarUsage = varUsage;
-        }
-    }
+        // Visited ops, in code order.
+        private Op[] mOps;
+        private int mNumOps;
 
-    abstract static class Op {
-        Op mNext;
-        boolean mVisited;
+        private Block[] mBlocks;
+        private int mNumBlocks;
 
-        abstract void appendTo(TheMethodMaker m);
+        private HashMap<Lab, Block> mLabBlocks;
 
-        /**
-         * Should be called before running another pass over the code.
-         */
-        void reset() {
-            mVisited = false;
-        }
+        // Maps flow slots to candidate numbers, or -1 if not a candidate.
+        private int[] mCandidates;
+
+        // Candidate variables, which can share slots.
+        private LocalVar[] mVars;
+
+        // Live interval for each candidate, as op indexes.
+        private int[] mStarts, mEnds;
 
         /**
-         * Recursively flows through unvisited operations and returns the next operation.
-         * Subclasses should override this method if they have special flow patterns.
+         * @param opCount number of visited ops, as determined by flow analysis
          */
-        Op flow(Flow flow, Op prev) {
-            return mNext;
+        SlotAllocator(int numParams, int opCount) {
+            mNumParams = numParams;
+            mOpCount = opCount;
         }
 
         /**
-         * Called if already visited. Return the next op if flow should continue.
+         * @param maxLocals max locals as determined by flow analysis
+         * @return new max locals
          */
-        Op revisit(Flow flow, Op prev) {
-            return flow(flow, prev);
-        }
-    }
+        int run(int maxLocals) {
+            LocalVar[] allVars = TheMethodMaker.this.mVars;
 
-    class Lab extends Op implements Label {
-        int mAddress = -1;
+            mCandidates = new int[maxLocals];
+            Arrays.fill(mCandidates, -1);
 
-        private int mUsedCount;
+            // Assign exclusive slots to parameters and named variables, and gather the rest.
+
+            int slot = 0;
+            for (int i=0; i<mNumParams; i++) {
+                LocalVar var = allVars[i];
+                slot = Math.max(slot, var.mSlot + var.slotWidth());
+            }
+
+            mVars = new LocalVar[allVars.length - mNumParams];
+            int numCandidates = 0;
+
+            for (int i=mNumParams; i<allVars.length; i++) {
+                LocalVar var = allVars[i];
+                if (var.name() != null) {
+                    var.mSlot = slot;
+                    slot += var.slotWidth();
+                } else {
+                    mCandidates[var.mFlowSlot] = numCandidates;
+                    mVars[numCandidates++] = var;
+                }
+            }
+
+            final int base = slot;
+
+            if (numCandidates <= 1) {
+                if (numCandidates == 1) {
+                    LocalVar var = mVars[0];
+                    var.mSlot = slot;
+                    slot += var.slotWidth();
+                }
+                return slot;
+            }
+
+            mStarts = new int[numCandidates];
+            mEnds = new int[numCandidates];
+            Arrays.fill(mStarts, Integer.MAX_VALUE);
+            Arrays.fill(mEnds, -1);
+
+            buildBlocks();
+            computeLiveness(numCandidates);
+            computeIntervals();
+
+            int newMaxLocals = assignSlots(numCandidates, base);
+
+            // Reduce the variable usage at each label to only the live variables, and also
+            // the parameters and named variables.
+
+            for (int i=0; i<mNumBlocks; i++) {
+                Block block = mBlocks[i];
+                if (mOps[block.mStart] instanceof Lab lab && lab.mVarUsage != null) {
+                    BitSet usage = lab.mVarUsage;
+                    BitSet live = block.mLiveIn;
+                    for (int j = usage.nextSetBit(0); j >= 0; j = usage.nextSetBit(j + 1)) {
+                        int c = mCandidates[j];
+                        if (c >= 0 && !live.get(c)) {
+                            usage.clear(j);
+                        }
+                    }
+                }
+            }
+
+            return newMaxLocals;
+        }
+
+        private void buildBlocks() {
+            mOps = new Op[Math.max(16, mOpCount)];
+            mBlocks = new Block[16];
+            mLabBlocks = new HashMap<>();
+
+            Block block = null;
+
+            for (Op op = mFirstOp; op != null; op = op.mNext) {
+                if (!op.mVisited) {
+                    continue;
+                }
+
+                if (block == null || op instanceof Lab) {
+                    if (block != null) {
+                        block.mEnd = mNumOps;
+                    }
+                    block = addBlock(new Block(mNumOps));
+                    if (op instanceof Lab lab) {
+                        mLabBlocks.put(lab, block);
+                    }
+                }
+
+                if (mNumOps >= mOps.length) {
+                    mOps = Arrays.copyOf(mOps, mOps.length << 1);
+                }
+
+                int index = mNumOps++;
+                mOps[index] = op;
+
+                if (op instanceof LocalVarOp vop) {
+                    int c = candidate(vop.mVar);
+                    if (c >= 0) {
+                        if (vop instanceof StoreVarOp) {
+                            block.kill(c);
+                        } else {
+                            block.gen(c);
+                        }
+                        extend(c, index, index);
+                    }
+                }
+
+                if (endsBlock(op)) {
+                    block.mEnd = mNumOps;
+                    block = null;
+                }
+            }
+
+            if (block != null) {
+                block.mEnd = mNumOps;
+            }
+
+            // Link the successors.
+
+            for (int i=0; i<mNumBlocks; i++) {
+                block = mBlocks[i];
+                Op last = mOps[block.mEnd - 1];
+                if (last instanceof BranchOp branch) {
+                    block.addSuccessor(mLabBlocks.get(branch.mTarget));
+                    byte op = branch.op();
+                    if (op == GOTO || op == GOTO_W) {
+                        continue;
+                    }
+                } else if (last instanceof SwitchOp switchOp) {
+                    block.addSuccessor(mLabBlocks.get(switchOp.mDefault));
+                    for (Lab lab : switchOp.mLabels) {
+                        block.addSuccessor(mLabBlocks.get(lab));
+                    }
+                    continue;
+                } else if (!flowsThroughEnd(last)) {
+                    continue;
+                }
+                if (i + 1 < mNumBlocks) {
+                    block.addSuccessor(mBlocks[i + 1]);
+                }
+            }
+
+            // Any op in the range of an exception handler can flow into it.
+
+            if (mExceptionHandlers != null) {
+                for (Handler h : mExceptionHandlers) {
+                    Block handler = mLabBlocks.get(h.mHandlerLab);
+                    Block start = mLabBlocks.get(h.mStartLab);
+                    Block end = mLabBlocks.get(h.mEndLab);
+                    if (handler == null || start == null) {
+                        continue;
+                    }
+                    int endIndex = end == null ? mNumBlocks : end.mIndex;
+                    for (int i=start.mIndex; i<endIndex; i++) {
+                        mBlocks[i].addHandler(handler);
+                    }
+                }
+            }
+        }
+
+        private Block addBlock(Block block) {
+            if (mNumBlocks >= mBlocks.length) {
+                mBlocks = Arrays.copyOf(mBlocks, mBlocks.length << 1);
+            }
+            block.mIndex = mNumBlocks;
+            mBlocks[mNumBlocks++] = block;
+            return block;
+        }
+
+        private static boolean endsBlock(Op op) {
+            return op instanceof BranchOp || op instanceof SwitchOp || !flowsThroughEnd(op);
+        }
+
+        /**
+         * @return -1 if not a candidate
+         */
+        private int candidate(LocalVar var) {
+            int slot = var.mFlowSlot;
+            return (var.mSlot < 0 || slot >= mCandidates.length) ? -1 : mCandidates[slot];
+        }
+
+        private void extend(int c, int start, int end) {
+            if (start < mStarts[c]) {
+                mStarts[c] = start;
+            }
+            if (end > mEnds[c]) {
+                mEnds[c] = end;
+            }
+        }
+
+        /**
+         * Computes the set of live candidates at the start of each block, iterating in
+         * reverse order until nothing changes.
+         */
+        private void computeLiveness(int numCandidates) {
+            for (int i=0; i<mNumBlocks; i++) {
+                mBlocks[i].mLiveIn = new BitSet(numCandidates);
+            }
+
+            BitSet live = new BitSet(numCandidates);
+
+            boolean changed;
+            do {
+                changed = false;
+                for (int i=mNumBlocks; --i>=0; ) {
+                    Block block = mBlocks[i];
+                    block.liveOut(live);
+                    if (block.mKill != null) {
+                        live.andNot(block.mKill);
+                    }
+                    if (block.mGen != null) {
+                        live.or(block.mGen);
+                    }
+                    block.orHandlers(live);
+                    if (!live.equals(block.mLiveIn)) {
+                        BitSet old = block.mLiveIn;
+                        block.mLiveIn = live;
+                        live = old;
+                        changed = true;
+                    }
+                }
+            } while (changed);
+        }
+
+        /**
+         * Extends each candidate's live interval to cover every block in which it's live on
+         * entry or on exit.
+         */
+        private void computeIntervals() {
+            BitSet live = new BitSet();
+
+            for (int i=0; i<mNumBlocks; i++) {
+                Block block = mBlocks[i];
+                block.liveOut(live);
+                live.or(block.mLiveIn);
+                int start = block.mStart;
+                int end = block.mEnd - 1;
+                for (int c = live.nextSetBit(0); c >= 0; c = live.nextSetBit(c + 1)) {
+                    extend(c, start, end);
+                }
+            }
+        }
+
+        /**
+         * Performs a linear scan over the live intervals, assigning the lowest free slot to
+         * each candidate.
+         *
+         * @param base the lowest slot which candidates can use
+         * @return new max locals
+         */
+        private int assignSlots(int numCandidates, int base) {
+            // Sort by interval start, encoded with the candidate number.
+            long[] order = new long[numCandidates];
+            for (int c=0; c<numCandidates; c++) {
+                order[c] = (((long) mStarts[c]) << 32) | c;
+            }
+            Arrays.sort(order);
+
+            // Min-heap of active intervals, by end.
+            long[] active = new long[8];
+            int numActive = 0;
+
+            BitSet occupied = new BitSet();
+            int maxLocals = base;
+
+            for (long entry : order) {
+                int c = (int) entry;
+                int start = (int) (entry >>> 32);
+                LocalVar var = mVars[c];
+                int width = var.slotWidth();
+
+                if (start == Integer.MAX_VALUE) {
+                    // Never accessed, so the slot doesn't matter.
+                    var.mSlot = base;
+                    continue;
+                }
+
+                // Free the slots of the intervals which have ended.
+                while (numActive > 0 && ((int) (active[0] >>> 32)) < start) {
+                    LocalVar ended = mVars[(int) active[0]];
+                    occupied.clear(ended.mSlot, ended.mSlot + ended.slotWidth());
+                    numActive = heapRemoveFirst(active, numActive);
+                }
+
+                int slot = base;
+                while (true) {
+                    slot = occupied.nextClearBit(slot);
+                    if (width == 1 || !occupied.get(slot + 1)) {
+                        break;
+                    }
+                    slot++;
+                }
+
+                var.mSlot = slot;
+                occupied.set(slot, slot + width);
+                maxLocals = Math.max(maxLocals, slot + width);
+
+                if (numActive >= active.length) {
+                    active = Arrays.copyOf(active, active.length << 1);
+                }
+                numActive = heapAdd(active, numActive, (((long) mEnds[c]) << 32) | c);
+            }
+
+            return maxLocals;
+        }
+    }
+
+    /**
+     * @return the new heap size
+     */
+    private static int heapAdd(long[] heap, int size, long value) {
+        int pos = size++;
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            long p = heap[parent];
+            if (p <= value) {
+                break;
+            }
+            heap[pos] = p;
+            pos = parent;
+        }
+        heap[pos] = value;
+        return size;
+    }
+
+    /**
+     * @return the new heap size
+     */
+    private static int heapRemoveFirst(long[] heap, int size) {
+        long value = heap[--size];
+        int pos = 0;
+        while (true) {
+            int child = (pos << 1) + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (value <= heap[child]) {
+                break;
+            }
+            heap[pos] = heap[child];
+            pos = child;
+        }
+        heap[pos] = value;
+        return size;
+    }
+
+    /**
+     * Basic block used by the SlotAllocator.
+     */
+    private static final class Block {
+        // Range of op indexes.
+        final int mStart;
+        int mEnd;
+
+        int mIndex;
+
+        // Candidates which are used before being stored, and candidates which are stored.
+        BitSet mGen, mKill;
+
+        BitSet mLiveIn;
+
+        private Block[] mSuccessors;
+        private int mNumSuccessors;
+
+        private Block[] mHandlers;
+        private int mNumHandlers;
+
+        Block(int start) {
+            mStart = start;
+        }
+
+        void gen(int c) {
+            if (mKill == null || !mKill.get(c)) {
+                if (mGen == null) {
+                    mGen = new BitSet();
+                }
+                mGen.set(c);
+            }
+        }
+
+        void kill(int c) {
+            if (mKill == null) {
+                mKill = new BitSet();
+            }
+            mKill.set(c);
+        }
+
+        void addSuccessor(Block block) {
+            if (block == null) {
+                return;
+            }
+            if (mSuccessors == null) {
+                mSuccessors = new Block[2];
+            } else if (mNumSuccessors >= mSuccessors.length) {
+                mSuccessors = Arrays.copyOf(mSuccessors, mSuccessors.length << 1);
+            }
+            mSuccessors[mNumSuccessors++] = block;
+        }
+
+        void addHandler(Block block) {
+            if (mHandlers == null) {
+                mHandlers = new Block[2];
+            } else if (mNumHandlers >= mHandlers.length) {
+                mHandlers = Arrays.copyOf(mHandlers, mHandlers.length << 1);
+            }
+            mHandlers[mNumHandlers++] = block;
+        }
+
+        /**
+         * Computes the set of live candidates at the end of this block.
+         *
+         * @param live is cleared and then filled in
+         */
+        void liveOut(BitSet live) {
+            live.clear();
+            for (int i=0; i<mNumSuccessors; i++) {
+                live.or(mSuccessors[i].mLiveIn);
+            }
+            orHandlers(live);
+        }
+
+        /**
+         * Adds the variables which are live at the handlers, which must remain live over the
+         * entire block.
+         */
+        void orHandlers(BitSet live) {
+            for (int i=0; i<mNumHandlers; i++) {
+                live.or(mHandlers[i].mLiveIn);
+            }
+        }
+    }
+
+    /**
+     * A rule which is applied by the peephole stage to each visited op.
+     */
+    @FunctionalInterface
+    static interface Rewrite {
+        /**
+         * @param prev the op which precedes the given op; is null if first
+         * @param op visited op to examine
+         * @return true if the code was rewritten
+         */
+        boolean apply(Peephole p, Op prev, Op op);
+    }
+
+    /**
+     * Performs peephole optimizations after flow analysis and slot assignment, but before any
+     * code is appended. Rewrites must preserve the variable usage computed at labels, and so
+     * they only alter the stack operations and the branches.
+     */
+    final class Peephole {
+        // Rewrites can expose new opportunities, but stop after a few passes.
+        private static final int MAX_PASSES = 4;
+
+        private final Rewrite[] mRules;
+
+        Peephole(Rewrite[] rules) {
+            mRules = rules;
+        }
+
+        /**
+         * @return the number of rewrites applied
+         */
+        int run() {
+            int total = 0;
+
+            for (int pass = 0; pass < MAX_PASSES; pass++) {
+                int count = 0;
+
+                Op prev = null;
+                for (Op op = mFirstOp; op != null; ) {
+                    if (op.mVisited) {
+                        for (Rewrite rule : mRules) {
+                            if (rule.apply(this, prev, op)) {
+                                count++;
+                                // The rule might have replaced the op.
+                                op = prev == null ? mFirstOp : prev.mNext;
+                                if (!op.mVisited) {
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                    prev = op;
+                    op = op.mNext;
+                }
+
+                if (count == 0) {
+                    break;
+                }
+
+                removeDeadCode();
+
+                total += count;
+            }
+
+            return total;
+        }
+
+        /**
+         * Folds a constant and a primitive widening conversion into a single constant, if
+         * the result is encoded with fewer bytes.
+         */
+        boolean foldConversion(Op prev, Op op) {
+            if (!(op instanceof BasicConstantOp c) || !(c.mNext instanceof ConvertOp conv)
+                || !conv.mVisited)
+            {
+                return false;
+            }
+
+            Object value = c.mValue;
+            Object result;
+            Type type;
+
+            switch (conv.mCode) {
+            default:
+                return false;
+            case 1: case 2: case 3: {
+                int v;
+                if (value instanceof Number num && !(value instanceof Float)
+                    && !(value instanceof Long) && !(value instanceof Double))
+                {
+                    v = num.intValue();
+                } else if (value instanceof Character ch) {
+                    v = ch.charValue();
+                } else {
+                    return false;
+                }
+                switch (conv.mCode) {
+                default -> { result = (long) v; type = LONG; }
+                case 2 -> { result = (float) v; type = FLOAT; }
+                case 3 -> { result = (double) v; type = DOUBLE; }
+                }
+                break;
+            }
+            case 4:
+                if (!(value instanceof Float f)) {
+                    return false;
+                }
+                result = (double) f.floatValue();
+                type = DOUBLE;
+                break;
+            }
+
+            if (constantLength(result) >= constantLength(value) + 1) {
+                return false;
+            }
+
+            var folded = new BasicConstantOp(result, type);
+            folded.mVisited = true;
+            folded.mNext = conv.mNext;
+            replace(prev, folded);
+
+            if (conv == mLastOp) {
+                mLastOp = folded;
+            }
+
+            return true;
+        }
+
+        /**
+         * Replaces a store to a variable which is immediately followed by a push of the same
+         * variable with a dup and a store, when the dup is encoded with fewer bytes.
+         */
+        boolean dupStore(Op prev, Op op) {
+            if (!(op instanceof StoreVarOp store) || !(store.mNext instanceof PushVarOp push)
+                || !push.mVisited)
+            {
+                return false;
+            }
+
+            LocalVar var = store.mVar;
+
+            if (var != push.mVar || var.mSlot <= 3 || var.mPushCount <= 1) {
+                return false;
+            }
+
+            var dup = new DupOp();
+            dup.mVisited = true;
+            dup.mNext = store;
+            replace(prev, dup);
+
+            store.mNext = push.mNext;
+            var.mPushCount--;
+
+            if (push == mLastOp) {
+                mLastOp = store;
+            }
+
+            return true;
+        }
+
+        /**
+         * Retargets branches which lead to a goto, such that they go directly to the goto
+         * target instead.
+         */
+        boolean threadJumps(Op prev, Op op) {
+            if (op instanceof BranchOp branch) {
+                Lab target = gotoTarget(branch.mTarget);
+                if (target == null) {
+                    return false;
+                }
+                branch.mTarget.lessUsed();
+                target.targeted();
+                branch.mTarget = target;
+                return true;
+            }
+
+            if (op instanceof SwitchOp sw) {
+                boolean changed = false;
+
+                Lab target = gotoTarget(sw.mDefault);
+                if (target != null) {
+                    sw.mDefault.lessUsed();
+                    target.targeted();
+                    sw.mDefault = target;
+                    changed = true;
+                }
+
+                Lab[] labels = sw.mLabels;
+                for (int i=0; i<labels.length; i++) {
+                    target = gotoTarget(labels[i]);
+                    if (target != null) {
+                        labels[i].lessUsed();
+                        target.targeted();
+                        labels[i] = target;
+                        changed = true;
+                    }
+                }
+
+                return changed;
+            }
+
+            return false;
+        }
+
+        /**
+         * Flips a conditional branch over a goto, which is separated only by ops which emit
+         * no code. Flow analysis only performs this when the ops are adjacent.
+         */
+        boolean flipOverGoto(Op prev, Op op) {
+            if (!(op instanceof BranchOp branch) || branch.op() == GOTO) {
+                return false;
+            }
+
+            Op next = skip(branch.mNext, false);
+            if (!(next instanceof BranchOp jump) || jump.op() != GOTO) {
+                return false;
+            }
+
+            Lab target = branch.mTarget;
+            if (!reaches(jump.mNext, target)) {
+                return false;
+            }
+
+            // Line numbers between the branch and the goto only apply to the goto.
+            for (Op n = branch.mNext; n != jump; n = n.mNext) {
+                if (n instanceof LineNumOp) {
+                    n.mVisited = false;
+                }
+            }
+
+            branch.flip(branch.op());
+            target.lessUsed();
+            // The goto target remains used by the same amount, by the branch instead.
+            branch.mTarget = jump.mTarget;
+            jump.mVisited = false;
+
+            return true;
+        }
+
+        /**
+         * Removes a goto which is separated from its target only by ops which emit no code.
+         */
+        boolean removeGoto(Op prev, Op op) {
+            if (!(op instanceof BranchOp jump) || jump.op() != GOTO) {
+                return false;
+            }
+
+            Lab target = jump.mTarget;
+            if (!reaches(jump.mNext, target)) {
+                return false;
+            }
+
+            jump.mVisited = false;
+            target.lessUsed();
+
+            return true;
+        }
+
+        /**
+         * Removes code which can no longer be reached after branches have been retargeted.
+         * Labels which are needed by exception handlers cannot be removed, and so if any
+         * handlers exist, the code is kept by marking the label as a branch target. This
+         * ensures that a stack map frame is defined for the code.
+         */
+        private void removeDeadCode() {
+            boolean hasHandlers = mExceptionHandlers != null && !mExceptionHandlers.isEmpty();
+
+            boolean live = true;
+            Lab regionLab = null;
+
+            for (Op op = mFirstOp; op != null; op = op.mNext) {
+                if (!op.mVisited) {
+                    continue;
+                }
+
+                if (op instanceof Lab lab) {
+                    if (lab.isTarget()) {
+                        live = true;
+                    } else if (!live) {
+                        if (!hasHandlers && lab.isUnused()) {
+                            lab.mVisited = false;
+                        } else {
+                            regionLab = lab;
+                        }
+                    }
+                    continue;
+                }
+
+                if (live) {
+                    if (op instanceof SwitchOp || !flowsThroughEnd(op)) {
+                        live = false;
+                        regionLab = null;
+                    }
+                    continue;
+                }
+
+                if (op instanceof NameLocalVarOp || op instanceof SignatureLocalVarOp) {
+                    // Always needed, since they describe the whole method.
+                    continue;
+                }
+
+                if (hasHandlers) {
+                    if (regionLab != null) {
+                        regionLab.targeted();
+                    }
+                    live = true;
+                    continue;
+                }
+
+                op.mVisited = false;
+            }
+        }
+
+        /**
+         * Returns the target of a goto which immediately follows the given label, or else
+         * null if none.
+         */
+        private Lab gotoTarget(Lab lab) {
+            if (lab instanceof HandlerLab) {
+                return null;
+            }
+            Op op = skip(lab.mNext, true);
+            if (op instanceof BranchOp jump && jump.op() == GOTO) {
+                Lab target = jump.mTarget;
+                if (target != lab) {
+                    return target;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns true if the given label is positioned at the same address as the given op.
+         */
+        private boolean reaches(Op op, Lab target) {
+            for (; op != null; op = op.mNext) {
+                if (op == target) {
+                    return true;
+                }
+                if (!isPseudo(op, true)) {
+                    break;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns the first op which emits code, starting from the given op.
+         *
+         * @param labels when false, stop at any visited label
+         */
+        private Op skip(Op op, boolean labels) {
+            while (op != null && isPseudo(op, labels)) {
+                op = op.mNext;
+            }
+            return op;
+        }
+
+        /**
+         * Returns true if the given op emits no code and doesn't affect the stack.
+         */
+        private static boolean isPseudo(Op op, boolean labels) {
+            if (!op.mVisited) {
+                return true;
+            }
+            if (op instanceof Lab) {
+                return labels && !(op instanceof PopLab) && !(op instanceof HandlerLab);
+            }
+            return op instanceof LineNumOp
+                || op instanceof NameLocalVarOp || op instanceof SignatureLocalVarOp;
+        }
+
+        /**
+         * Returns the encoded length of a primitive constant, excluding constant pool entries.
+         */
+        private static int constantLength(Object value) {
+            if (value instanceof Long v) {
+                return (v == 0 || v == 1) ? 1 : 3;
+            } else if (value instanceof Float v) {
+                return (Float.compare(v, 0.0f) == 0 || v == 1 || v == 2) ? 1 : 2;
+            } else if (value instanceof Double v) {
+                return (Double.compare(v, 0.0) == 0 || v == 1) ? 1 : 3;
+            }
+            int v = value instanceof Character ch ? ch : ((Number) value).intValue();
+            if (v >= -1 && v <= 5) {
+                return 1;
+            } else if (v >= -128 && v < 128) {
+                return 2;
+            } else if (v >= -32768 && v < 32768) {
+                return 3;
+            }
+            return 2;
+        }
+
+        private void replace(Op prev, Op replacement) {
+            if (prev == null) {
+                mFirstOp = replacement;
+            } else {
+                prev.mNext = replacement;
+            }
+        }
+    }
+
+    static final class Report implements CodeReport {
+        private final String mName, mDescriptor;
+        private final boolean mHot;
+        private final int mCodeLength, mMaxStack, mMaxLocals, mExceptionTableLength;
+        private final int mSlotsSaved;
+
+        Report(String name, String descriptor, boolean hot,
+               int codeLength, int maxStack, int maxLocals, int exceptionTableLength,
+               int slotsSaved)
+        {
+            mName = name;
+            mDescriptor = descriptor;
+            mHot = hot;
+            mCodeLength = codeLength;
+            mMaxStack = maxStack;
+            mMaxLocals = maxLocals;
+            mExceptionTableLength = exceptionTableLength;
+            mSlotsSaved = slotsSaved;
+        }
+
+        @Override
+        public String name() {
+            return mName;
+        }
+
+        @Override
+        public String descriptor() {
+            return mDescriptor;
+        }
+
+        @Override
+        public boolean isHot() {
+            return mHot;
+        }
+
+        @Override
+        public int codeLength() {
+            return mCodeLength;
+        }
+
+        @Override
+        public int maxStack() {
+            return mMaxStack;
+        }
+
+        @Override
+        public int maxLocals() {
+            return mMaxLocals;
+        }
+
+        @Override
+        public int exceptionTableLength() {
+            return mExceptionTableLength;
+        }
+
+        @Override
+        public int slotsSaved() {
+            return mSlotsSaved;
+        }
+
+        @Override
+        public String toString() {
+            return "CodeReport{name=" + mName + ", descriptor=" + mDescriptor
+                + ", hot=" + mHot + ", codeLength=" + mCodeLength
+                + ", maxStack=" + mMaxStack + ", maxLocals=" + mMaxLocals
+                + ", exceptionTableLength=" + mExceptionTableLength
+                + ", slotsSaved=" + mSlotsSaved
+                + ", budget=" + budget() + '}';
+        }
+    }
+
+    /**
+     * Splits a method whose code is too large by moving segments of it into synthetic static
+     * helper methods. Cold code, which constructs exceptions to throw or handles them, is
+     * moved out first. Segments are chosen after the code has been appended, using the actual
+     * code addresses, and then the method is finished again.
+     *
+     * A segment must start and end where the operand stack is empty, and it can only be
+     * entered from the top. It cannot return, and it cannot contain a monitor operation. The
+     * variables which are available and used by a segment are passed to the helper method,
+     * and at most one modified variable can be returned from it.
+     *
+     * A segment can also end just before a throw, in which case the helper method returns
+     * the exception. Only these segments can be covered by an exception handler.
+     */
+    final class Splitter {
+        // Smallest amount of code to move into a helper method.
+        private static final int MIN_SIZE = 32;
+
+        // Smallest amount of code saved by automatically moving cold code.
+        private static final int MIN_COLD_SIZE = 8;
+
+        // Limits the number of segments ends which are checked for each start.
+        private static final int MAX_TRIES = 16;
+
+        // Limits the number of times a method is finished again after splitting.
+        static final int MAX_ROUNDS = 8;
+
+        private final int mLimit;
+
+        private final boolean mOutline;
+
+        // Variables which are available at the start of the method, by flow slot.
+        private final BitSet mStartUsage;
+
+        // Visited ops in code order, and the code address and stack size before each one.
+        private Op[] mOps;
+        private int[] mAddrs;
+        private int[] mDepths;
+        private int mNumOps;
+
+        private HashMap<Lab, Target> mTargets;
+        private IdentityHashMap<LocalVar, int[]> mReads;
+        private boolean mHasLoop;
+
+        // Labels which define exception handler ranges.
+        private HashSet<Lab> mBoundaries;
+
+        // Is incremented for each segment start, to lazily reset the target state.
+        private int mEpoch;
+
+        // Upper bound for the segment end, as determined by checkVars.
+        private int mMaxEnd;
+
+        // Variables which are available at the cursor op index, by flow slot.
+        private BitSet mCursorUsage;
+        private int mCursor;
+
+        /**
+         * @param limit code size limit, or zero if the method isn't split
+         * @param outline when true, automatically move cold code
+         */
+        Splitter(int limit, boolean outline, BitSet startUsage) {
+            mLimit = limit;
+            mOutline = outline;
+            mStartUsage = startUsage;
+            mOps = new Op[16];
+            mAddrs = new int[16];
+            mDepths = new int[16];
+        }
+
+        void reset() {
+            mNumOps = 0;
+        }
+
+        void record(Op op) {
+            int n = mNumOps;
+            if (n >= mOps.length) {
+                mOps = Arrays.copyOf(mOps, n << 1);
+                mAddrs = Arrays.copyOf(mAddrs, n << 1);
+                mDepths = Arrays.copyOf(mDepths, n << 1);
+            }
+            mOps[n] = op;
+            mAddrs[n] = mCodeLen;
+            mDepths[n] = mStackSize;
+            mNumOps = n + 1;
+        }
+
+        /**
+         * @return false if nothing was moved
+         */
+        boolean split() {
+            final int n = mNumOps;
+
+            if (mColdRegions == null && !mOutline && (mLimit <= 0 || mCodeLen <= mLimit)) {
+                return false;
+            }
+
+            if (n >= mAddrs.length) {
+                mAddrs = Arrays.copyOf(mAddrs, n + 1);
+            }
+            mAddrs[n] = mCodeLen;
+
+            mTargets = new HashMap<>();
+            mReads = new IdentityHashMap<>();
+            mBoundaries = new HashSet<>();
+            mCursorUsage = null;
+            mCursor = 0;
+
+            if (mExceptionHandlers != null) {
+                for (Handler h : mExceptionHandlers) {
+                    mBoundaries.add(h.mStartLab);
+                    mBoundaries.add(h.mEndLab);
+                }
+            }
+
+            for (int i=0; i<n; i++) {
+                Op op = mOps[i];
+                if (op instanceof Lab lab) {
+                    target(lab).mIndex = i;
+                } else if (op instanceof BranchOp branch) {
+                    addRef(branch.mTarget);
+                } else if (op instanceof SwitchOp sw) {
+                    addRef(sw.mDefault);
+                    for (Lab lab : sw.mLabels) {
+                        addRef(lab);
+                    }
+                } else if (op instanceof PushVarOp || op instanceof IncOp) {
+                    LocalVar var = ((LocalVarOp) op).mVar;
+                    int[] range = mReads.get(var);
+                    if (range == null) {
+                        mReads.put(var, new int[] {i, i});
+                    } else {
+                        range[1] = i;
+                    }
+                }
+            }
+
+            var segments = new ArrayList<Segment>();
+            int size = mCodeLen;
+
+            if (mColdRegions != null || mOutline) {
+                outline(segments);
+                for (Segment segment : segments) {
+                    size -= segment.savings();
+                }
+            }
+
+            if (mLimit > 0 && size > mLimit) {
+                // Find the segments to split, starting from the top, and skipping over the
+                // cold segments.
+
+                int numCold = segments.size();
+
+                for (int start = 0, k = 0; start < n && size > mLimit; ) {
+                    int bound = n;
+                    if (k < numCold) {
+                        Segment cold = segments.get(k);
+                        if (start >= cold.mStart) {
+                            start = cold.mEnd;
+                            k++;
+                            continue;
+                        }
+                        bound = cold.mStart;
+                    }
+
+                    Segment segment = findSegment(start, bound, MIN_SIZE, false);
+                    if (segment == null) {
+                        start = nextStart(start);
+                    } else {
+                        segments.add(segment);
+                        size -= segment.savings();
+                        start = segment.mEnd;
+                    }
+                }
+
+                segments.sort((a, b) -> Integer.compare(a.mStart, b.mStart));
+            }
+
+            if (segments.isEmpty()) {
+                return false;
+            }
+
+            // Reset the state computed when the method was finished, and relink the visited
+            // ops, replacing each segment with an invocation of a helper method.
+
+            for (int i=mParams.length; i<mVars.length; i++) {
+                mVars[i].mSlot = -1;
+            }
+
+            mVars = null;
+            mVarUsage = null;
+            mFlowVars = null;
+            mSlotsSaved = 0;
+            mStackMapTable = null;
+
+            var chain = new Chain();
+            int i = 0;
+
+            for (Segment segment : segments) {
+                for (; i < segment.mStart; i++) {
+                    chain.add(clean(mOps[i]));
+                }
+                segment.moveTo(chain);
+                i = segment.mEnd;
+            }
+
+            for (; i < n; i++) {
+                chain.add(clean(mOps[i]));
+            }
+
+            mFirstOp = chain.mFirst;
+            mLastOp = chain.mLast;
+
+            return true;
+        }
+
+        /**
+         * Finds the cold segments, which are added to the given list in code order.
+         */
+        private void outline(ArrayList<Segment> segments) {
+            // Regions as triples of start index, bound index, and minimum savings.
+            var regions = new ArrayList<int[]>();
+
+            if (mColdRegions != null) {
+                for (Lab[] pair : mColdRegions) {
+                    Target t = mTargets.get(pair[0]);
+                    if (t == null || t.mIndex < 0) {
+                        continue;
+                    }
+                    // The end label isn't visited when the cold code doesn't flow through,
+                    // and so count the visited ops instead.
+                    int start = t.mIndex + 1, bound = start;
+                    for (Op op = pair[0].mNext; op != pair[1]; op = op.mNext) {
+                        if (op.mVisited) {
+                            bound++;
+                        }
+                    }
+                    regions.add(new int[] {start, bound + 1, 1});
+                }
+                // Only attempt once, since the labels remain after finishing again.
+                mColdRegions = null;
+            }
+
+            if (mOutline) {
+                for (int i=0; i<mNumOps; i++) {
+                    Op op = mOps[i];
+                    if (op instanceof HandlerLab) {
+                        // Skip the code which stores or pops the exception.
+                        int start = i + 1;
+                        while (start < mNumOps && mDepths[start] != 0) {
+                            start++;
+                        }
+                        regions.add(new int[] {start, coldBound(start), MIN_COLD_SIZE});
+                    } else if (isThrow(op, i)) {
+                        // Find the start of the code which constructs the exception.
+                        int start = i;
+                        while (start > 0) {
+                            Op prev = mOps[start - 1];
+                            if (prev instanceof Lab || prev instanceof BranchOp
+                                || prev instanceof SwitchOp || !flowsThroughEnd(prev))
+                            {
+                                break;
+                            }
+                            start--;
+                        }
+                        while (start < i && mDepths[start] != 0) {
+                            start++;
+                        }
+                        regions.add(new int[] {start, i + 1, MIN_COLD_SIZE});
+                    }
+                }
+            }
+
+            regions.sort((a, b) -> Integer.compare(a[0], b[0]));
+
+            int end = 0;
+            for (int[] region : regions) {
+                if (region[0] >= end && region[0] < region[1]) {
+                    Segment segment = findSegment(region[0], region[1], region[2], true);
+                    if (segment != null) {
+                        segments.add(segment);
+                        end = segment.mEnd;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the bound index of a cold region which handles an exception, which is
+         * where the code can be reached by other means.
+         */
+        private int coldBound(int start) {
+            for (int i = start; i < mNumOps; i++) {
+                Op op = mOps[i];
+                if (op instanceof Lab lab) {
+                    if (op instanceof HandlerLab || (i > start && mTargets.get(lab).mRefs > 0)) {
+                        return i;
+                    }
+                } else if (op instanceof SwitchOp || !flowsThroughEnd(op)) {
+                    return i + 1;
+                }
+            }
+            return mNumOps;
+        }
+
+        /**
+         * Returns true if the op at the given index throws the exception which is on the
+         * operand stack.
+         */
+        private boolean isThrow(Op op, int index) {
+            return mDepths[index] == 1 && op instanceof BytecodeOp bop && bop.op() == ATHROW;
+        }
+
+        private Target target(Lab lab) {
+            Target t = mTargets.get(lab);
+            if (t == null) {
+                t = new Target();
+                mTargets.put(lab, t);
+            }
+            return t;
+        }
+
+        private void addRef(Lab lab) {
+            Target t = target(lab);
+            t.mRefs++;
+            if (t.mIndex >= 0) {
+                mHasLoop = true;
+            }
+        }
+
+        /**
+         * Finds the largest segment which can start at the given op index.
+         *
+         * @param bound op index which the segment cannot extend past
+         * @param minSize minimum amount of code which must be saved
+         * @param cold true if the segment is cold code
+         * @return null if no segment can start at the given op index
+         */
+        private Segment findSegment(final int start, final int bound,
+                                    final int minSize, final boolean cold)
+        {
+            if (mDepths[start] != 0) {
+                return null;
+            }
+
+            // When true, only a segment which ends with a throw can be moved.
+            final boolean guarded = isProtected(mAddrs[start]);
+
+            final int epoch = ++mEpoch;
+            final int maxSize = mLimit > 0 ? mLimit - MIN_SIZE : MAX_CODE_LENGTH;
+
+            int[] ends = new int[8];
+            int numEnds = 0;
+            int unresolved = 0;
+
+            scan: for (int i = start; i <= bound; i++) {
+                if (mAddrs[i] - mAddrs[start] > maxSize) {
+                    break;
+                }
+
+                if (i > start && unresolved == 0 && i < mNumOps
+                    && (mDepths[i] == 0
+                        ? (!guarded && !(mOps[i - 1] instanceof SwitchOp)
+                           && flowsThroughEnd(mOps[i - 1]))
+                        : isThrow(mOps[i], i)))
+                {
+                    if (numEnds >= ends.length) {
+                        ends = Arrays.copyOf(ends, numEnds << 1);
+                    }
+                    ends[numEnds++] = i;
+                }
+
+                if (i == bound) {
+                    break;
+                }
+
+                Op op = mOps[i];
+
+                if (!isMovable(op) || isProtected(mAddrs[i]) != guarded) {
+                    break;
+                }
+
+                if (op instanceof Lab lab) {
+                    Target t = mTargets.get(lab);
+                    if (t != null) {
+                        t.begin(epoch);
+                        // Forward references from within the segment are now resolved, but
+                        // the remaining references must also be from within the segment.
+                        unresolved -= t.mPending;
+                        t.mOutstanding = t.mRefs - t.mPending;
+                        unresolved += t.mOutstanding;
+                    }
+                } else if (op instanceof BranchOp branch) {
+                    int amt = refer(branch.mTarget, start, i, epoch);
+                    if (amt == 0) {
+                        break;
+                    }
+                    unresolved += amt;
+                } else if (op instanceof SwitchOp sw) {
+                    int amt = refer(sw.mDefault, start, i, epoch);
+                    if (amt == 0) {
+                        break;
+                    }
+                    unresolved += amt;
+                    for (Lab lab : sw.mLabels) {
+                        amt = refer(lab, start, i, epoch);
+                        if (amt == 0) {
+                            break scan;
+                        }
+                        unresolved += amt;
+                    }
+                }
+            }
+
+            mMaxEnd = Integer.MAX_VALUE;
+
+            for (int j = numEnds, tries = 0; --j >= 0 && tries < MAX_TRIES; ) {
+                int end = ends[j];
+                if (end > mMaxEnd) {
+                    continue;
+                }
+                if (mAddrs[end] - mAddrs[start] < minSize) {
+                    break;
+                }
+                tries++;
+                Segment segment = checkVars(start, end, cold);
+                if (segment != null && segment.savings() >= minSize) {
+                    return segment;
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Returns the next segment start to try after a failed one. Starting after an op
+         * which doesn't affect branches or variables would fail for the same reason.
+         */
+        private int nextStart(int start) {
+            if (mDepths[start] != 0) {
+                return start + 1;
+            }
+            int i = start;
+            while (i < mNumOps) {
+                Op op = mOps[i++];
+                if (op instanceof Lab || op instanceof BranchOp || op instanceof SwitchOp
+                    || op instanceof StoreVarOp || op instanceof IncOp || !isMovable(op))
+                {
+                    break;
+                }
+            }
+            return i;
+        }
+
+        /**
+         * Called for a branch within a segment to the given label.
+         *
+         * @return the change in the amount of unresolved references, or 0 if the label is
+         * before the segment
+         */
+        private int refer(Lab lab, int start, int index, int epoch) {
+            Target t = mTargets.get(lab);
+            if (t.mIndex < start) {
+                return 0;
+            }
+            t.begin(epoch);
+            if (t.mIndex < index) {
+                // Backward branch within the segment.
+                t.mOutstanding--;
+                return -1;
+            } else {
+                t.mPending++;
+                return 1;
+            }
+        }
+
+        private boolean isProtected(int addr) {
+            if (mExceptionHandlers != null) {
+                for (Handler h : mExceptionHandlers) {
+                    if (h.mStartLab.mAddress <= addr && addr < h.mEndLab.mAddress) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private boolean isMovable(Op op) {
+            if (op instanceof BytecodeOp bop) {
+                byte code = bop.op();
+                return !(op instanceof ReturnOp) && code != MONITORENTER && code != MONITOREXIT;
+            }
+            if (op instanceof Lab) {
+                return !(op instanceof HandlerLab) && !mBoundaries.contains(op);
+            }
+            return op instanceof LocalVarOp || op instanceof ConstantOp
+                || op instanceof ConvertOp || op instanceof SwapOp || op instanceof DupOp
+                || op instanceof LineNumOp
+                || op instanceof NameLocalVarOp || op instanceof SignatureLocalVarOp;
+        }
+
+        /**
+         * Determines which variables must be passed to and returned from a helper method.
+         * When the segment cannot be moved, mMaxEnd is lowered such that the same variable
+         * isn't the cause of another failure.
+         *
+         * @param cold true if the segment is cold code
+         * @return null if the segment cannot be moved
+         */
+        private Segment checkVars(int start, int end, boolean cold) {
+            BitSet startUsage = usageAt(start);
+            if (startUsage == null) {
+                mMaxEnd = start;
+                return null;
+            }
+
+            // Maps variables to READ and MODIFIED flags, and the index of the first op.
+            var flags = new IdentityHashMap<LocalVar, int[]>();
+            var vars = new ArrayList<LocalVar>();
+
+            for (int i = start; i < end; i++) {
+                if (mOps[i] instanceof LocalVarOp op && op.mVar.mPushCount != 0) {
+                    int[] f = flags.get(op.mVar);
+                    if (f == null) {
+                        f = new int[] {0, i};
+                        flags.put(op.mVar, f);
+                        vars.add(op.mVar);
+                    }
+                    if (op instanceof StoreVarOp) {
+                        f[0] |= 2;
+                    } else {
+                        f[0] |= op instanceof IncOp ? 3 : 1;
+                    }
+                }
+            }
+
+            // When the segment ends with a throw, modified variables can only be observed by
+            // an exception handler.
+            boolean throwing = mDepths[end] != 0;
+            boolean guarded = throwing && isProtected(mAddrs[start]);
+
+            var params = new ArrayList<LocalVar>();
+            LocalVar result = null;
+            int paramSlots = 0;
+
+            for (LocalVar var : vars) {
+                int[] f = flags.get(var);
+                boolean read = (f[0] & 1) != 0, modified = (f[0] & 2) != 0;
+
+                int[] reads = mReads.get(var);
+
+                if (read) {
+                    if (startUsage.get(var.mFlowSlot)) {
+                        // Is available when the segment is entered.
+                        params.add(var);
+                        paramSlots += var.slotWidth();
+                        if (paramSlots > 254) {
+                            mMaxEnd = f[1];
+                            return null;
+                        }
+                    } else if (!modified) {
+                        mMaxEnd = f[1];
+                        return null;
+                    }
+                }
+
+                if (modified && reads != null && throwing) {
+                    if (guarded && (reads[0] < start || reads[1] >= end)) {
+                        mMaxEnd = f[1];
+                        return null;
+                    }
+                } else if (modified && reads != null
+                           && (reads[1] >= end || (mHasLoop && reads[0] < start)))
+                {
+                    // Is modified within the segment and might be read after it.
+                    BitSet endUsage;
+                    if (result != null || (endUsage = usageAt(startUsage, start, end)) == null
+                        || !endUsage.get(var.mFlowSlot))
+                    {
+                        mMaxEnd = f[1];
+                        return null;
+                    }
+                    result = var;
+                }
+            }
+
+            return new Segment(start, end, params.toArray(new LocalVar[params.size()]), result,
+                               throwing, cold);
+        }
+
+        /**
+         * Returns the variables which are available at the given segment start index, by
+         * flow slot.
+         *
+         * @return null if unknown
+         */
+        private BitSet usageAt(int start) {
+            if (start < mCursor) {
+                mCursor = 0;
+                mCursorUsage = null;
+            }
+            if (mCursorUsage == null && mCursor == 0) {
+                mCursorUsage = (BitSet) mStartUsage.clone();
+            }
+            mCursorUsage = advance(mCursorUsage, mCursor, start);
+            mCursor = start;
+            return mCursorUsage;
+        }
+
+        /**
+         * Returns the variables which are available at the end of a segment, by flow slot.
+         *
+         * @param usage available variables at the start of the segment
+         * @return null if unknown
+         */
+        private BitSet usageAt(BitSet usage, int start, int end) {
+            return advance((BitSet) usage.clone(), start, end);
+        }
+
+        /**
+         * @param usage is modified, and can be null if unknown
+         */
+        private BitSet advance(BitSet usage, int from, int to) {
+            for (int i = from; i < to; i++) {
+                Op op = mOps[i];
+                if (op instanceof Lab lab) {
+                    usage = lab.mVarUsage == null ? null : (BitSet) lab.mVarUsage.clone();
+                } else if (usage != null && op instanceof StoreVarOp store
+                           && store.mVar.mSlot >= 0)
+                {
+                    usage.set(store.mVar.mFlowSlot);
+                }
+            }
+            return usage;
+        }
+
+        /**
+         * Prepares an op to be visited by flow analysis again.
+         */
+        private Op clean(Op op) {
+            op.mVisited = false;
+            op.reset();
+            if (op instanceof Lab lab) {
+                lab.mVarUsage = null;
+                lab.mQueued = false;
+            } else if (op instanceof BranchOp branch) {
+                // The code addresses change, so widen again only if necessary.
+                branch.narrow();
+            }
+            return op;
+        }
+
+        final class Segment {
+            final int mStart, mEnd;
+            final LocalVar[] mParams;
+            final LocalVar mResult;
+
+            // When true, the helper method returns the exception to throw.
+            final boolean mThrowing;
+
+            final boolean mCold;
+
+            Segment(int start, int end, LocalVar[] params, LocalVar result,
+                    boolean throwing, boolean cold)
+            {
+                mStart = start;
+                mEnd = end;
+                mParams = params;
+                mResult = result;
+                mThrowing = throwing;
+                mCold = cold;
+            }
+
+            /**
+             * Returns the estimated size of the code which replaces the segment.
+             */
+            int overhead() {
+                return mParams.length * 2 + 3 + (mResult == null ? 0 : 2);
+            }
+
+            /**
+             * Returns the estimated amount of code removed by moving the segment.
+             */
+            int savings() {
+                return (mAddrs[mEnd] - mAddrs[mStart]) - overhead();
+            }
+
+            /**
+             * Moves the segment into a new helper method, and adds the replacement ops to
+             * the given chain.
+             */
+            void moveTo(Chain chain) {
+                TheClassMaker cm = mClassMaker;
+
+                String base = name();
+                if (base.startsWith("<")) {
+                    base = base.substring(1, base.length() - 1);
+                }
+
+                var paramTypes = new Type[mParams.length];
+                for (int i=0; i<paramTypes.length; i++) {
+                    paramTypes[i] = mParams[i].mType;
+                }
+
+                Type retType;
+                if (mThrowing) {
+                    retType = Type.from(Throwable.class);
+                } else {
+                    retType = mResult == null ? VOID : mResult.mType;
+                }
+
+                Type.Method method = cm.type().defineMethod
+                    (0, retType, cm.syntheticMethodName(base + (mCold ? "$cold" : "$split")),
+                     paramTypes);
+                var helper = new TheMethodMaker(cm, method);
+                cm.doAddMethod(helper);
+                helper.private_().static_().synthetic();
+                helper.mHasBranches = mHasBranches;
+                helper.mSplitLimit = mSplitLimit;
+                helper.mOutline = mOutline && !mCold;
+
+                // All variables are replaced, including those which are only used by the
+                // segment. Otherwise, the slot assignments of the two methods would conflict.
+                var map = new IdentityHashMap<LocalVar, LocalVar>();
+                for (int i=0; i<mParams.length; i++) {
+                    map.put(mParams[i], helper.param(i));
+                }
+
+                var body = new Chain();
+
+                for (int i = mStart; i < mEnd; i++) {
+                    Op op = mOps[i];
+
+                    if (op instanceof LocalVarOp vop) {
+                        LocalVar var = map.get(vop.mVar);
+                        if (var == null) {
+                            var = helper.new LocalVar(vop.mVar.mType);
+                            map.put(vop.mVar, var);
+                        }
+                        if (op instanceof PushVarOp) {
+                            vop.mVar.mPushCount--;
+                            op = new PushVarOp(var);
+                        } else if (op instanceof StoreVarOp) {
+                            op = new StoreVarOp(var);
+                        } else {
+                            vop.mVar.mPushCount--;
+                            op = new IncOp(var, ((IncOp) op).mAmount);
+                        }
+                        body.add(op);
+                    } else if (op instanceof NameLocalVarOp || op instanceof SignatureLocalVarOp) {
+                        // Describes a variable of this method.
+                        chain.add(clean(op));
+                    } else {
+                        body.add(clean(op));
+                    }
+                }
+
+                helper.mFirstOp = body.mFirst;
+                helper.mLastOp = body.mLast;
+
+                if (mThrowing) {
+                    // The exception is on the operand stack.
+                    helper.addOp(new ReturnOp(ARETURN, 1));
+                } else if (mResult == null) {
+                    helper.return_();
+                } else {
+                    helper.return_(map.get(mResult));
+                }
+
+                for (LocalVar param : mParams) {
+                    chain.add(new PushVarOp(param));
+                }
+
+                chain.add(new InvokeOp(INVOKESTATIC, mParams.length,
+                                       mConstants.addMethod(helper.mMethod)));
+
+                if (mResult != null) {
+                    chain.add(new StoreVarOp(mResult));
+                }
+            }
+        }
+    }
+
+    /**
+     * Branch target state used by the Splitter.
+     */
+    static final class Target {
+        // Op index of the label.
+        int mIndex = -1;
+
+        // Total number of references from branches.
+        int mRefs;
+
+        // Number of forward references from within the current segment.
+        int mPending;
+
+        // Number of references which must still be found within the current segment.
+        int mOutstanding;
+
+        private int mEpoch;
+
+        void begin(int epoch) {
+            if (mEpoch != epoch) {
+                mEpoch = epoch;
+                mPending = 0;
+                mOutstanding = 0;
+            }
+        }
+    }
+
+    /**
+     * Simple builder of linked ops.
+     */
+    static final class Chain {
+        Op mFirst, mLast;
+
+        void add(Op op) {
+            if (mLast == null) {
+                mFirst = op;
+            } else {
+                mLast.mNext = op;
+            }
+            mLast = op;
+            op.mNext = null;
+        }
+    }
+
+    /**
+     * Clears bits in the target set which aren't set in the other set.
+     *
+     * @return true if the target set changed
+     */
+    private static boolean intersect(BitSet target, BitSet other) {
+        int cardinality = target.cardinality();
+        target.and(other);
+        return target.cardinality() != cardinality;
+    }
+
+    abstract static class Op {
+        Op mNext;
+        boolean mVisited;
+
+        abstract void appendTo(TheMethodMaker m);
+
+        /**
+         * Should be called before appending the code again. Flow analysis state is retained.
+         */
+        void reset() {
+        }
+
+        /**
+         * Flows through an unvisited operation and returns the next operation. Subclasses
+         * should override this method if they have special flow patterns, and branch targets
+         * should be passed to the Flow.branch method.
+         */
+        Op flow(Flow flow, Op prev) {
+            return mNext;
+        }
+
+        /**
+         * Called if already visited. Return the next op if flow should continue.
+         */
+        Op revisit(Flow flow, Op prev) {
+            return flow(flow, prev);
+        }
+    }
+
+    class Lab extends Op implements Label {
+        int mAddress = -1;
+
+        private int mUsedCount;
         private int[] mTrackOffsets;
         private BranchOp[] mTrackBranches;
         private int mTrackCount;
@@ -3068,16 +5319,17 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
         // Bits are set for variables known to be available at this label.
         private BitSet mVarUsage;
 
+        // Is true when in the flow analysis worklist.
+        private boolean mQueued;
+
         Lab() {
         }
 
         @Override
         void reset() {
-            super.reset();
             mAddress = -1;
             mTrackBranches = null;
             mTrackCount = 0;
-            mVarUsage = null;
         }
 
         @Override
@@ -3110,52 +5362,15 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
 
             mAddress = m.mCodeLen;
 
-            if (isTarget()) {
-                LocalVar[] vars = m.mVars;
-                BitSet usage = mVarUsage;
-
-                // First figure out the number of local codes to fill in. Assume that caller
-                // has already sorted the variables by slot.
-
-                int numCodes = 0;
-                for (int i=vars.length; --i>=0; ) {
-                    LocalVar var = vars[i];
-                    int slot = var.mSlot;
-                    if (usage.get(slot)) {
-                        if (numCodes <= 0) {
-                            numCodes = slot + 1;
-                        } else {
-                            // Wide sm codes consume two slots.
-                            numCodes -= var.slotWidth() - 1;
-                        }
-                    }
-                }
-
-                int[] localCodes;
-                if (numCodes <= 0) {
-                    localCodes = null;
-                } else {
-                    // Note that SM_TOP is zero, so all codes are SM_TOP by default.
-                    localCodes = new int[numCodes];
-
-                    int adjust = 0;
-                    for (LocalVar var : vars) {
-                        int slot = var.mSlot;
-                        int codeSlot = slot + adjust;
-                        if (codeSlot >= localCodes.length) {
-                            break;
-                        }
-                        if (usage.get(slot)) {
-                            localCodes[codeSlot] = var.smCode();
-                            // Wide sm codes consume two slots.
-                            adjust -= var.slotWidth() - 1;
-                        }
-                    }
-                }
+            BitSet usage = mVarUsage;
 
-                int[] stackCodes = stackCodes(m);
+            if (usage != null && m.mVarUsage != null) {
+                m.mVarUsage.clear();
+                m.mVarUsage.or(usage);
+            }
 
-                m.mStackMapTable.add(mAddress, localCodes, stackCodes);
+            if (isTarget()) {
+                m.mStackMapTable.add(mAddress, m.localCodes(usage), stackCodes(m));
             }
 
             if (mTrackOffsets != null && mTrackCount != 0) {
@@ -3185,26 +5400,34 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
 
         @Override
         Op flow(Flow flow, Op prev) {
-            mVarUsage = (BitSet) flow.mVarUsage.clone();
+            BitSet usage = mVarUsage;
+            if (usage == null) {
+                mVarUsage = (BitSet) flow.mVarUsage.clone();
+            } else {
+                // Was reached by a branch which hasn't been flowed through yet.
+                usage.and(flow.mVarUsage);
+                flow.mVarUsage.and(usage);
+                mQueued = false;
+            }
             return mNext;
         }
 
         @Override
         Op revisit(Flow flow, Op prev) {
-            if (mVarUsage != null) {
-                if (mVarUsage.equals(flow.mVarUsage)) {
-                    // Nothing changed.
-                    return null;
-                }
-                flow.mVarUsage.and(mVarUsage);
-                if (mVarUsage.equals(flow.mVarUsage)) {
-                    // Still nothing changed.
-                    return null;
-                }
+            BitSet usage = mVarUsage;
+            if (usage == null) {
+                // Was marked as visited without being flowed through.
+                mVarUsage = (BitSet) flow.mVarUsage.clone();
+                return mNext;
+            }
+            if (!intersect(usage, flow.mVarUsage) && !mQueued) {
+                // Nothing changed.
+                return null;
             }
             // Variable usage at this label changed, so the code that follows will need to be
             // revisited.
-            mVarUsage = (BitSet) flow.mVarUsage.clone();
+            flow.mVarUsage.and(usage);
+            mQueued = false;
             return mNext;
         }
 
@@ -3245,6 +5468,13 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
             return uc == 0;
         }
 
+        /**
+         * @return true if totally unused as a branch target or an exception handler.
+         */
+        boolean isUnused() {
+            return mUsedCount == 0;
+        }
+
         /**
          * By default, only returns true if label was reached by a branch.
          */
@@ -3326,14 +5556,7 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
          * Return the StackMapTable codes at this label.
          */
         int[] stackCodes(TheMethodMaker m) {
-            if (m.mStackSize == 0) {
-                return null;
-            }
-            int[] codes = new int[m.mStackSize];
-            for (int i=0; i<codes.length; i++) {
-                codes[i] = m.mStack[i].smCode();
-            }
-            return codes;
+            return m.stackCodes();
         }
     }
 
@@ -3435,6 +5658,9 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
     static final class BranchOp extends BytecodeOp {
         Lab mTarget;
 
+        // Is true when a conditional branch must be able to reach a distant target.
+        private boolean mWide;
+
         /**
          * @param stackPop amount of stack elements popped by this operation
          */
@@ -3451,6 +5677,15 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
                 int srcAddr = m.mCodeLen;
                 m.appendByte(GOTO_W);
                 mTarget.comesFromWide(m, srcAddr);
+            } else if (mWide) {
+                // Branch over a wide goto using the opposite condition.
+                m.appendOp(flipIf(op), stackPop());
+                m.appendShort(3 + 5);
+                int srcAddr = m.mCodeLen;
+                m.appendByte(GOTO_W);
+                mTarget.comesFromWide(m, srcAddr);
+                // The code which follows is now a branch target.
+                m.mStackMapTable.add(m.mCodeLen, m.localCodes(m.mVarUsage), m.stackCodes());
             } else {
                 m.appendOp(op, stackPop());
                 mTarget.comesFrom(this, m);
@@ -3498,33 +5733,48 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
                 flow.removeOps(this, null, newNext, amtRemoved);
             }
 
-            flow.run(target);
+            flow.branch(target);
             return next;
         }
 
+        /**
+         * Called when the branch distance doesn't fit in a short offset. The widened branch
+         * takes effect when the code is appended again, which doesn't require flow analysis
+         * to run again.
+         */
         void makeWide(TheMethodMaker m) {
-            byte op = op();
-            if (op == GOTO) {
+            if (op() == GOTO) {
                 mCode = GOTO_W;
             } else {
-                flip(op);
-                Op cont = mNext;
-                mNext = new BranchOp(GOTO_W, 0, mTarget);
-                mTarget = m.new Lab();
-                mTarget.targeted();
-                mNext.mNext = mTarget;
-                mTarget.mNext = cont;
-            }
-            // Need to perform flow analysis again.
+                mWide = true;
+            }
+            // Need to append the code again.
             m.mFinished = -1;
         }
 
+        /**
+         * Undoes the effect of makeWide.
+         */
+        void narrow() {
+            if (op() == GOTO_W) {
+                mCode = GOTO;
+            }
+            mWide = false;
+        }
+
         /**
          * @param op an "if" opcode
          */
         private void flip(byte op) {
             mCode = (stackPop() << 8) | (flipIf(op) & 0xff);
         }
+
+        /**
+         * @param op an "if" opcode which compares two operands
+         */
+        private void reverse(byte op) {
+            mCode = (stackPop() << 8) | (reverseIf(op) & 0xff);
+        }
     }
 
     static final class SwitchOp extends BytecodeOp {
@@ -3571,7 +5821,7 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
         @Override
         Op flow(Flow flow, Op prev) {
             for (Lab lab : mLabels) {
-                flow.run(lab);
+                flow.branch(lab);
             }
             return mDefault;
         }
@@ -3742,6 +5992,61 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
         }
     }
 
+    /**
+     * Converts the item on the top of the stack.
+     */
+    static final class ConvertOp extends Op {
+        final Type mFrom, mTo;
+        final int mCode;
+
+        /**
+         * @param code as returned by Type.canConvertTo
+         */
+        ConvertOp(Type from, Type to, int code) {
+            mFrom = from;
+            mTo = to;
+            mCode = code;
+        }
+
+        @Override
+        void appendTo(TheMethodMaker m) {
+            m.convert(mFrom, mTo, mCode);
+        }
+    }
+
+    /**
+     * Swaps the two items on the top of the stack, neither of which can be wide.
+     */
+    static final class SwapOp extends Op {
+        @Override
+        void appendTo(TheMethodMaker m) {
+            m.appendByte(SWAP);
+            int top = m.mStackSize - 1;
+            int below = top - 1;
+            // Neither item is wide, and so the slots don't change.
+            Type[] types = m.mStackTypes;
+            Type type = types[top];
+            types[top] = types[below];
+            types[below] = type;
+            int[] newOffsets = m.mStackNewOffsets;
+            int newOffset = newOffsets[top];
+            newOffsets[top] = newOffsets[below];
+            newOffsets[below] = newOffset;
+        }
+    }
+
+    /**
+     * Duplicates the item on the top of the stack.
+     */
+    static final class DupOp extends Op {
+        @Override
+        void appendTo(TheMethodMaker m) {
+            Type type = m.stackTopType();
+            m.appendByte(slotWidth(type) == 1 ? DUP : DUP2);
+            m.stackPush(type);
+        }
+    }
+
     /**
      * Accesses a local variable.
      */
@@ -3761,6 +6066,7 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
                 List<LocalVar> varList = flow.mVarList;
                 slot = flow.nextSlot();
                 var.mSlot = slot;
+                var.mFlowSlot = slot;
                 varList.add(var);
             }
 
@@ -3837,6 +6143,10 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
                 }
             }
 
+            if (next != null && fuse(flow, prev, next)) {
+                return next;
+            }
+
             if (unusedVar()) {
                 // Won't actually store, but will pop. See appendTo method above.
                 return next;
@@ -3845,6 +6155,71 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
             return super.flow(flow, prev);
         }
 
+        /**
+         * Look for a store/push pair to the same variable which is separated by a simple push
+         * of another value. The stored value can remain on the stack, but the operands are
+         * then in the wrong order. Commutative operations and comparisons can use the
+         * operands as is, and otherwise a swap is inserted.
+         *
+         * @param next the simple push op, which is kept
+         * @return true if this op was removed
+         */
+        private boolean fuse(Flow flow, Op prev, Op next) {
+            LocalVar var = mVar;
+            if (var.mPushCount != 1 || var.slotWidth() != 1
+                || !(next.mNext instanceof PushVarOp push) || push.mVar != var)
+            {
+                return false;
+            }
+
+            Type type;
+            if (next instanceof PushVarOp op) {
+                type = op.mVar.mType;
+            } else if (next instanceof BasicConstantOp op) {
+                type = op.mType;
+            } else if (next instanceof ExplicitConstantOp op) {
+                type = op.mType;
+            } else {
+                return false;
+            }
+
+            int typeCode = type.typeCode();
+            if (typeCode == T_LONG || typeCode == T_DOUBLE) {
+                return false;
+            }
+
+            Op after = push.mNext;
+
+            check: if (after instanceof BytecodeOp bop) {
+                byte op = bop.op();
+                switch (op) {
+                case IADD: case IMUL: case IAND: case IOR: case IXOR:
+                    break check;
+                }
+                if (after instanceof BranchOp branch && op >= IF_ICMPEQ && op <= IF_ACMPEQ + 1) {
+                    branch.reverse(op);
+                    break check;
+                }
+                after = null;
+            } else {
+                after = null;
+            }
+
+            if (after == null) {
+                var swap = new SwapOp();
+                swap.mNext = push.mNext;
+                after = swap;
+            }
+
+            var.mPushCount = 0;
+            next.mNext = after;
+            // Removing 2 ops, but specify 1 because the push op won't be visited. If a swap
+            // op was added, it's counted when visited.
+            flow.removeOps(prev, this, next, 1);
+
+            return true;
+        }
+
         boolean unusedVar() {
             return mVar.mPushCount == 0;
         }
@@ -3865,6 +6240,7 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
         @Override
         void appendTo(TheMethodMaker m) {
             int slot = mVar.mSlot;
+            m.varUsed(mVar);
             if (-128 <= mAmount && mAmount < 128 && slot < 256) {
                 m.appendByte(IINC);
                 m.appendByte(slot);
@@ -4183,7 +6559,7 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
                 @Override
                 void appendTo(TheMethodMaker m) {
                     super.appendTo(m);
-                    stackPush(INT);
+                    m.stackPush(INT);
                 }
             });
 
@@ -4942,6 +7318,10 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
 
         int mSlot = -1;
 
+        // Unique slot assigned by flow analysis, which is used for tracking variable usage.
+        // It differs from mSlot when the slot is shared with other variables.
+        int mFlowSlot;
+
         // Updated as Op list is built.
         int mPushCount;
 
@@ -5062,6 +7442,7 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
 
         @Override
         public LocalVar name(String name) {
+            checkSpilled();
             super.name(name);
 
             // TODO: 4.7.24. The MethodParameters Attribute
@@ -5093,6 +7474,7 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
 
         @Override
         public AnnotationMaker addAnnotation(Object annotationType, boolean visible) {
+            checkSpilled();
             var thisVar = mThisVar;
             if (this == thisVar) {
                 return super.addAnnotation(annotationType, visible);
@@ -5195,29 +7577,6 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
         }
     }
 
-    /**
-     * Stack variable which represents an uninitialized new object.
-     *
-     * Note: This specialization is not currently used by anything. The smCode method is never
-     * called because a label cannot be inserted between the allocation of an object and a call
-     * to the constructor. In a Java program, such a pattern can be created by the ternary
-     * operator or a switch expression. When using MethodMaker, these types of expressions must
-     * store to a local variable first. They cannot leave results on the stack.
-     */
-    final class NewVar extends LocalVar {
-        private final int mNewOffset;
-
-        NewVar(Type type, int newOffset) {
-            super(type);
-            mNewOffset = newOffset;
-        }
-
-        @Override
-        int smCode() {
-            return SM_UNINIT | (mNewOffset << 8);
-        }
-    }
-
     /**
      * Special variable which represents "this" inside a constructor.
      */
@@ -5240,6 +7599,13 @@ class TheMethodMaker extends ClassMember implements MethodMaker {
             }
             mSmCode = super.smCode();
         }
+
+        /**
+         * Should be called before appending the code again.
+         */
+        void reset() {
+            mSmCode = SM_UNINIT_THIS;
+        }
     }
 
     final class SuperVar extends OwnedVar {
@@ -16,150 +16,94 @@
 
 package org.cojen.maker;
 
-import java.lang.invoke.VarHandle;
-
 import java.lang.ref.WeakReference;
 import java.lang.ref.ReferenceQueue;
 
+import java.util.concurrent.ConcurrentHashMap;
+
+import java.util.function.Function;
+
 /**
- * Simple cache of weakly referenced values.
+ * Simple cache of weakly referenced values, which supports concurrent access without a
+ * global lock.
  *
  * @author Brian S O'Neill
  */
 final class WeakCache<K, V> extends ReferenceQueue<Object> {
-    private Entry<K, V>[] mEntries;
-    private int mSize;
+    private final ConcurrentHashMap<K, Entry<K, V>> mEntries;
 
-    @SuppressWarnings({"unchecked"})
     public WeakCache() {
-        // Initial capacity must be a power of 2.
-        mEntries = new Entry[2];
+        mEntries = new ConcurrentHashMap<>();
+    }
+
+    public V get(K key) {
+        cleanup();
+        Entry<K, V> e = mEntries.get(key);
+        return e == null ? null : e.get();
     }
 
     /**
-     * Can be called without explicit synchronization, but entries can appear to go missing.
-     * Double check with synchronization.
+     * @return replaced value, or null if none
      */
-    public V get(K key) {
-        Object ref = poll();
-        if (ref != null) {
-            synchronized (this) {
-                cleanup(ref);
-            }
+    public V put(K key, V value) {
+        cleanup();
+        Entry<K, V> e = mEntries.put(key, new Entry<>(key, value, this));
+        if (e == null) {
+            return null;
         }
-
-        var entries = mEntries;
-        for (var e = entries[key.hashCode() & (entries.length - 1)]; e != null; e = e.mNext) {
-            if (e.mKey.equals(key)) {
-                return e.get();
-            }
+        V replaced = e.get();
+        if (replaced != null) {
+            e.clear();
         }
-
-        return null;
+        return replaced;
     }
 
     /**
-     * @return replaced value, or null if none
+     * Returns the value for the given key, atomically calling the factory to create it if
+     * absent or cleared. The factory is called while holding a lock which only blocks access
+     * to the given key, and keys which hash similarly. It must not access this cache.
+     *
+     * @param factory must not return null
      */
     @SuppressWarnings({"unchecked"})
-    public synchronized V put(K key, V value) {
-        Object ref = poll();
-        if (ref != null) {
-            cleanup(ref);
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> factory) {
+        V value = get(key);
+        if (value != null) {
+            return value;
         }
 
-        var entries = mEntries;
-        int hash = key.hashCode();
-        int index = hash & (entries.length - 1);
+        // Hold a strong reference to the new value until it's returned.
+        var holder = new Object[1];
 
-        for (Entry<K, V> e = entries[index], prev = null; e != null; e = e.mNext) {
-            if (e.mKey.equals(key)) {
-                V replaced = e.get();
-                if (replaced != null) {
-                    e.clear();
-                }
-                var newEntry = new Entry<K, V>(key, value, hash, this);
-                if (prev == null) {
-                    newEntry.mNext = e.mNext;
-                } else {
-                    prev.mNext = e.mNext;
-                    newEntry.mNext = entries[index];
-                }
-                VarHandle.storeStoreFence(); // ensure that entry value is safely visible
-                entries[index] = newEntry;
-                return replaced;
-            } else {
-                prev = e;
+        mEntries.compute(key, (k, e) -> {
+            V v;
+            if (e == null || (v = e.get()) == null) {
+                v = factory.apply(k);
+                e = new Entry<>(k, v, this);
             }
-        }
-
-        if (mSize >= entries.length) {
-            // Rehash.
-            var newEntries = new Entry[entries.length << 1];
-            int size = 0;
-            for (int i=entries.length; --i>=0 ;) {
-                for (var existing = entries[i]; existing != null; ) {
-                    var e = existing;
-                    existing = existing.mNext;
-                    if (e.get() != null) {
-                        size++;
-                        index = e.mHash & (newEntries.length - 1);
-                        e.mNext = newEntries[index];
-                        newEntries[index] = e;
-                    }
-                }
-            }
-            mEntries = entries = newEntries;
-            mSize = size;
-            index = hash & (entries.length - 1);
-        }
-
-        var newEntry = new Entry<K, V>(key, value, hash, this);
-        newEntry.mNext = entries[index];
-        VarHandle.storeStoreFence(); // ensure that entry value is safely visible
-        entries[index] = newEntry;
-        mSize++;
+            holder[0] = v;
+            return e;
+        });
 
-        return null;
+        return (V) holder[0];
     }
 
-    /**
-     * Caller must be synchronized.
-     *
-     * @param ref not null
-     */
     @SuppressWarnings({"unchecked"})
-    private void cleanup(Object ref) {
-        var entries = mEntries;
-        do {
+    private void cleanup() {
+        Object ref;
+        while ((ref = poll()) != null) {
             var cleared = (Entry<K, V>) ref;
-            int ix = cleared.mHash & (entries.length - 1);
-            for (Entry<K, V> e = entries[ix], prev = null; e != null; e = e.mNext) {
-                if (e == cleared) {
-                    if (prev == null) {
-                        entries[ix] = e.mNext;
-                    } else {
-                        prev.mNext = e.mNext;
-                    }
-                    mSize--;
-                    break;
-                } else {
-                    prev = e;
-                }
-            }
-        } while ((ref = poll()) != null);
+            // Only removes the entry if it hasn't been replaced.
+            mEntries.remove(cleared.mKey, cleared);
+        }
     }
 
     private static final class Entry<K, V> extends WeakReference<V> {
         final K mKey;
-        final int mHash;
-
-        Entry<K, V> mNext;
 
-        Entry(K key, V value, int hash, WeakCache<K, V> cache) {
+        Entry(K key, V value, WeakCache<K, V> cache) {
             super(value, cache);
             mKey = key;
-            mHash = hash;
         }
     }
 }
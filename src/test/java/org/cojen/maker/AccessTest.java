@@ -122,28 +122,21 @@ public class AccessTest {
 
         String packageName = clazz.getPackageName();
         ClassLoader loader = clazz.getClassLoader();
-        Class<?> lookupClass = null;
-
-        for (int i=0; i<10; i++) {
-            try {
-                lookupClass = loader.loadClass(packageName + ".lookup-" + i);
-                break;
-            } catch (ClassNotFoundException e) {
-            }
-        }
-
-        assertNotNull(lookupClass);
+        Class<?> lookupClass = loader.loadClass(packageName + ".lookup-");
 
-        Object[] attempts = {null, loader, loader.getParent()};
+        // Nothing can be called.
+        assertEquals(0, lookupClass.getDeclaredMethods().length);
 
-        for (Object attempt : attempts) {
-            try {
-                lookupClass.getMethod("lookup", Object.class).invoke(null, attempt);
-                fail();
-            } catch (Exception e) {
-                assertTrue(e.getCause() instanceof IllegalAccessError);
-            }
+        try {
+            lookupClass.getDeclaredField("lookup").get(null);
+            fail();
+        } catch (IllegalAccessException e) {
         }
+
+        // The lookup was cleared after the group obtained it.
+        var vh = MethodHandles.privateLookupIn(lookupClass, MethodHandles.lookup())
+            .findStaticVarHandle(lookupClass, "lookup", MethodHandles.Lookup.class);
+        assertNull(vh.get());
     }
 
     @Test
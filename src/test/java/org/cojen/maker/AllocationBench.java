@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.lang.reflect.Method;
+
+/**
+ * Measures how much memory is allocated by the current thread while building the methods of
+ * a class, and while finishing it, relative to the amount of code which was generated. Run
+ * it with:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes org.cojen.maker.AllocationBench [methods] [statements] [rounds]
+ * </pre>
+ */
+public class AllocationBench {
+    public static void main(String[] args) throws Exception {
+        int methods = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int statements = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+        // The management modules aren't read by this module, and so use reflection.
+        Object mx = Class.forName("java.lang.management.ManagementFactory")
+            .getMethod("getThreadMXBean").invoke(null);
+        Method allocated = Class.forName("com.sun.management.ThreadMXBean")
+            .getMethod("getThreadAllocatedBytes", long.class);
+        long tid = Thread.currentThread().getId();
+
+        for (int round=0; round<rounds; round++) {
+            long start = (long) allocated.invoke(mx, tid);
+
+            ClassMaker cm = ClassMaker.begin().public_();
+            var mms = new TheMethodMaker[methods];
+
+            for (int m=0; m<methods; m++) {
+                MethodMaker mm = cm.addMethod(long.class, "m" + m, long.class, long.class)
+                    .public_().static_();
+                mms[m] = (TheMethodMaker) mm;
+                var a = mm.param(0);
+                var b = mm.param(1);
+                var t = mm.var(long.class).set(0);
+                for (int i=0; i<statements; i++) {
+                    Label skip = mm.label();
+                    a.ifLt(i, skip);
+                    t.set(t.add(mm.var(Math.class).invoke("max", a.add(i), b.sub(i))));
+                    skip.here();
+                }
+                mm.return_(t);
+            }
+
+            long built = (long) allocated.invoke(mx, tid);
+            cm.finishBytes();
+            long finished = (long) allocated.invoke(mx, tid);
+
+            long code = 0;
+            for (TheMethodMaker mm : mms) {
+                code += mm.codeLength();
+            }
+
+            System.out.printf("round %d: build %d KB, finish %d KB, code %d bytes, " +
+                              "%.1f bytes allocated per code byte%n",
+                              round, (built - start) >> 10, (finished - built) >> 10, code,
+                              (finished - start) / (double) code);
+        }
+    }
+}
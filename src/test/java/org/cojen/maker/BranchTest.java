@@ -543,7 +543,7 @@ public class BranchTest {
 
     @Test
     public void overflow() throws Exception {
-        // Test the code that prevents stack overflow by limiting recursion.
+        // Flow analysis must not recurse per branch, or else it can overflow the stack.
 
         ClassMaker cm = ClassMaker.begin().public_();
         MethodMaker mm = cm.addMethod(null, "run").static_().public_();
@@ -561,6 +561,81 @@ public class BranchTest {
         clazz.getMethod("run").invoke(null);
     }
 
+    @Test
+    public void manyBranches() throws Exception {
+        // Flow analysis over a method with many forward and backward branches, some of which
+        // cause variable availability to change at labels which have already been visited.
+
+        ClassMaker cm = ClassMaker.begin().public_();
+        MethodMaker mm = cm.addMethod(int.class, "run", int.class).static_().public_();
+
+        var total = mm.var(int.class).set(0);
+        var i = mm.var(int.class).set(0);
+
+        Label start = mm.label().here();
+
+        for (int n=0; n<11_000; n++) {
+            Label skip = mm.label();
+            i.ifNe(0, skip);
+            if ((n % 1000) != 999) {
+                mm.nop();
+                skip.here();
+            } else {
+                var temp = mm.var(int.class).set(n);
+                total.set(total.add(temp));
+                skip.here();
+                i.ifLt(0, start);
+            }
+        }
+
+        i.inc(1);
+        i.ifLt(mm.param(0), start);
+        mm.return_(total);
+
+        var clazz = cm.finish();
+        var method = clazz.getMethod("run", int.class);
+        assertEquals(65989, method.invoke(null, 0));
+        assertEquals(65989, method.invoke(null, 2));
+    }
+
+    @Test
+    public void manySwitchCases() throws Exception {
+        // Flow analysis over a switch with many targets, each of which branches back.
+
+        ClassMaker cm = ClassMaker.begin().public_();
+        MethodMaker mm = cm.addMethod(int.class, "run", int.class).static_().public_();
+
+        var total = mm.var(int.class).set(0);
+        var i = mm.var(int.class).set(mm.param(0));
+
+        Label start = mm.label().here();
+        Label def = mm.label();
+
+        int[] cases = new int[4000];
+        Label[] labels = new Label[cases.length];
+        for (int n=0; n<cases.length; n++) {
+            cases[n] = n;
+            labels[n] = mm.label();
+        }
+
+        i.switch_(def, cases, labels);
+
+        for (int n=0; n<cases.length; n++) {
+            labels[n].here();
+            total.inc(1);
+            i.inc(-1);
+            mm.goto_(start);
+        }
+
+        def.here();
+        mm.return_(total);
+
+        var clazz = cm.finish();
+        var method = clazz.getMethod("run", int.class);
+        assertEquals(0, method.invoke(null, -1));
+        assertEquals(11, method.invoke(null, 10));
+    }
+
     @Test
     public void altBranch() throws Exception {
         // Test that flow analysis for StackMapTable can cope with branches that return.
@@ -847,4 +922,86 @@ public class BranchTest {
         clazz.getMethod("run", boolean.class).invoke(null, true);
     }
 
+    @Test
+    public void deepStack() throws Exception {
+        // Push many values onto the operand stack, including wide values and uninitialized
+        // objects, while the arguments are computed by branches within a loop.
+        deepStack(0);
+        deepStack(300);
+    }
+
+    private static void deepStack(int splitLimit) throws Exception {
+        final int numParams = 40;
+
+        var paramTypes = new Class[numParams];
+        for (int i=0; i<numParams; i++) {
+            paramTypes[i] = switch (i & 3) {
+                case 0 -> long.class; case 1 -> double.class;
+                case 2 -> int.class; default -> boolean.class;
+            };
+        }
+
+        ClassMaker cm = ClassMaker.begin().public_();
+        cm.addField(double.class, "total").public_();
+
+        MethodMaker ctor = cm.addConstructor(paramTypes).public_();
+        ctor.invokeSuperConstructor();
+        var ctorSum = ctor.var(double.class).set(0);
+        for (int i=0; i<numParams; i++) {
+            var p = ctor.param(i);
+            if (paramTypes[i] == boolean.class) {
+                Label skip = ctor.label();
+                p.ifFalse(skip);
+                ctorSum.inc(1);
+                skip.here();
+            } else {
+                ctorSum.set(ctorSum.add(p.cast(double.class)));
+            }
+        }
+        ctor.field("total").set(ctorSum);
+
+        var mm = (TheMethodMaker) cm.addMethod(double.class, "run", int.class)
+            .public_().static_();
+        mm.mSplitLimit = splitLimit;
+
+        var result = mm.var(double.class).set(0);
+        var i = mm.var(int.class).set(0);
+        Label start = mm.label().here();
+        Label end = mm.label();
+        i.ifGe(mm.param(0), end);
+
+        var args = new Object[numParams];
+        for (int j=0; j<numParams; j++) {
+            args[j] = switch (j & 3) {
+                case 0 -> i.cast(long.class).mul((long) j);
+                case 1 -> i.cast(double.class).add(j + 0.5);
+                case 2 -> i.and(j);
+                default -> i.lt(j);
+            };
+        }
+
+        result.set(result.add(mm.new_(cm, args).field("total")));
+        i.inc(1);
+        mm.goto_(start);
+        end.here();
+        mm.return_(result);
+
+        Class<?> clazz = cm.finish();
+        int n = 50;
+        double actual = (double) clazz.getMethod("run", int.class).invoke(null, n);
+
+        double expect = 0;
+        for (int k=0; k<n; k++) {
+            for (int j=0; j<numParams; j++) {
+                expect += switch (j & 3) {
+                    case 0 -> (long) k * j;
+                    case 1 -> k + (j + 0.5);
+                    case 2 -> k & j;
+                    default -> k < j ? 1 : 0;
+                };
+            }
+        }
+
+        assertEquals(expect, actual, 0.0);
+    }
 }
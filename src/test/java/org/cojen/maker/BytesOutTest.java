@@ -18,6 +18,8 @@ package org.cojen.maker;
 
 import java.io.*;
 
+import java.util.Arrays;
+
 import org.junit.*;
 import static org.junit.Assert.*;
 
@@ -125,4 +127,107 @@ public class BytesOutTest {
 
         assertArrayEquals(expect, result);
     }
+
+    @Test
+    public void utfLength() throws Exception {
+        for (String str : new String[] {"", "hello", "A\u0123\u1234", "\u0000"}) {
+            var out = new BytesOut(null, 100);
+            out.writeUTF(str);
+            assertEquals(out.size() - 2, BytesOut.utfLength(str));
+        }
+    }
+
+    @Test
+    public void encodeUTF() throws Exception {
+        for (String str : new String[] {"", "(I)V", "A\u0123\u1234", "a\u0000b"}) {
+            var out = new BytesOut(null, 100);
+            out.writeUTF(str);
+            byte[] expect = Arrays.copyOfRange(out.toByteArray(), 2, out.size());
+            assertArrayEquals(expect, BytesOut.encodeUTF(str));
+        }
+
+        String str = "Lorg/cojen/maker/BytesOutTest$" + System.nanoTime() + ";";
+        long hits = BytesOut.UTFCache.cHits.sum();
+        byte[] encoded = BytesOut.encodeUTF(str);
+        // Note that other threads might be accessing the cache, which can replace the entry.
+        for (int i=0; i<10; i++) {
+            if (BytesOut.encodeUTF(new String(str)) == encoded) {
+                assertTrue(BytesOut.UTFCache.cHits.sum() > hits);
+                break;
+            }
+            encoded = BytesOut.encodeUTF(str);
+            if (i == 9) {
+                fail();
+            }
+        }
+
+        try {
+            BytesOut.encodeUTF("\u1234".repeat(30000));
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("too large"));
+        }
+    }
+
+    @Test
+    public void exact() throws Exception {
+        var out = new BytesOut(null, 6);
+        out.writeShort(1);
+        out.writeInt(2);
+        byte[] result = out.toByteArray();
+        assertEquals(6, result.length);
+        // The full internal buffer is handed over without being copied.
+        assertSame(result, out.toByteArray());
+
+        out = new BytesOut(null, 7);
+        out.writeShort(1);
+        out.writeInt(2);
+        assertNotSame(out.toByteArray(), out.toByteArray());
+    }
+
+    @Test
+    public void exactClassFile() throws Exception {
+        // The class file length is computed in advance, and finishBytes asserts that it
+        // matches the number of bytes written. Compare against the streaming output too.
+
+        byte[][] results = new byte[2][];
+
+        for (int i=0; i<2; i++) {
+            ClassMaker cm = ClassMaker.beginExternal("org.cojen.maker.Exact\u00e9\u1234")
+                .public_().implement(Runnable.class);
+            cm.addAnnotation(Deprecated.class, true).put("since", "\u2603");
+            cm.addField(String.class, "name\u00e9").public_().static_().final_().init("x");
+            cm.addField(long.class, "big").public_().static_().final_().init(1L << 40);
+            cm.addField(double.class, "pi").public_().static_().final_().init(Math.PI);
+            cm.sourceFile("Exact.java");
+            cm.addConstructor().public_();
+
+            MethodMaker mm = cm.addMethod(null, "run").public_();
+            Label start = mm.label().here();
+            mm.var(System.class).field("out").invoke("println", mm.concat("hi ", mm.this_()));
+            mm.catch_(start, RuntimeException.class, e -> e.throw_());
+
+            mm = cm.addMethod(int.class, "sum", int[].class).public_().static_().varargs();
+            var total = mm.var(int.class).set(0);
+            var ix = mm.var(int.class).set(0);
+            Label top = mm.label().here();
+            Label end = mm.label();
+            ix.ifGe(mm.param(0).alength(), end);
+            total.inc(mm.param(0).aget(ix));
+            ix.inc(1);
+            mm.goto_(top);
+            end.here();
+            mm.return_(total);
+
+            if (i == 0) {
+                results[i] = cm.finishBytes();
+            } else {
+                var bout = new ByteArrayOutputStream();
+                cm.finishTo(bout);
+                results[i] = bout.toByteArray();
+            }
+        }
+
+        assertArrayEquals(results[0], results[1]);
+    }
 }
@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.lang.invoke.MethodHandles;
+
+import java.util.function.Supplier;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ClassMaker.finishCanonical method.
+ */
+public class CanonicalTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(CanonicalTest.class.getName());
+    }
+
+    private static ClassMaker define(String className, String message) {
+        ClassMaker cm = ClassMaker.begin(className).public_().implement(Supplier.class);
+        cm.addConstructor().public_();
+        MethodMaker mm = cm.addMethod(Object.class, "get").public_();
+        // Refers to its own type in a descriptor.
+        MethodMaker self = cm.addMethod(cm, "self").private_();
+        self.return_(self.this_());
+        mm.return_(mm.concat(message, ' ', mm.invoke("self").invoke("getClass")
+                             .invoke("getSimpleName")));
+        return cm;
+    }
+
+    private static Object get(Class<?> clazz) throws Exception {
+        return ((Supplier) clazz.getConstructor().newInstance()).get();
+    }
+
+    @Test
+    public void basic() throws Exception {
+        String name = "org.cojen.maker.Canon";
+
+        Class<?> c1 = define(name, "hello").finishCanonical();
+        Class<?> c2 = define(name, "hello").finishCanonical();
+        assertSame(c1, c2);
+        assertEquals("hello " + c1.getSimpleName(), get(c2));
+
+        // Different definition.
+        Class<?> c3 = define(name, "world").finishCanonical();
+        assertNotSame(c1, c3);
+        assertEquals("world " + c3.getSimpleName(), get(c3));
+
+        // Different base name.
+        assertNotSame(c1, define(name + "2", "hello").finishCanonical());
+
+        // Different package, and so a different class loader.
+        assertNotSame(c1, define("org.cojen.maker2.Canon", "hello").finishCanonical());
+
+        // Not canonical.
+        assertNotSame(c1, define(name, "hello").finish());
+    }
+
+    @Test
+    public void explicit() throws Exception {
+        // Explicit names which happen to look like a suffix was applied aren't ignored.
+
+        var key = new Object();
+        ClassLoader loader = getClass().getClassLoader();
+        var classes = new Class[2];
+        String[] names = {"org.cojen.maker.Foo-a", "org.cojen.maker.Foo-b"};
+
+        for (int i=0; i<classes.length; i++) {
+            ClassMaker cm = ClassMaker.beginExplicit(names[i], loader, key).public_();
+            cm.addConstructor().public_();
+            MethodMaker self = cm.addMethod(cm, "self").public_();
+            self.return_(self.this_());
+            classes[i] = cm.finishCanonical();
+            assertEquals(names[i], classes[i].getName());
+        }
+
+        assertNotSame(classes[0], classes[1]);
+    }
+
+    @Test
+    public void exact() throws Exception {
+        var value = new Object();
+        var classes = new Class[2];
+        for (int i=0; i<classes.length; i++) {
+            ClassMaker cm = ClassMaker.begin().public_().implement(Supplier.class);
+            cm.addConstructor().public_();
+            MethodMaker mm = cm.addMethod(Object.class, "get").public_();
+            mm.return_(mm.var(Object.class).setExact(value));
+            classes[i] = cm.finishCanonical();
+            assertSame(value, get(classes[i]));
+        }
+        assertNotSame(classes[0], classes[1]);
+    }
+
+    @Test
+    public void lookup() throws Exception {
+        var lookup = MethodHandles.lookup();
+        Class<?> c1 = ClassMaker.begin(null, lookup).public_().finishCanonical();
+        Class<?> c2 = ClassMaker.begin(null, lookup).public_().finishCanonical();
+        assertNotSame(c1, c2);
+    }
+
+    @Test
+    public void finished() throws Exception {
+        ClassMaker cm = define("org.cojen.maker.Canon", "hello");
+        cm.finishCanonical();
+        try {
+            cm.finishCanonical();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.Arrays;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.util.function.Supplier;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ClassArchive class.
+ */
+public class ClassArchiveTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(ClassArchiveTest.class.getName());
+    }
+
+    private Path mFile;
+
+    @Before
+    public void setup() throws Exception {
+        mFile = Files.createTempFile("ClassArchiveTest", null);
+        Files.delete(mFile);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        Files.deleteIfExists(mFile);
+    }
+
+    private static void define(ClassMaker cm, String message) {
+        cm.public_().implement(Supplier.class);
+        cm.addConstructor().public_();
+        MethodMaker mm = cm.addMethod(Object.class, "get").public_();
+        mm.return_(mm.concat(message, ' ', mm.this_().invoke("getClass")
+                             .invoke("getSimpleName")));
+    }
+
+    private static Object get(Class<?> clazz) throws Exception {
+        return ((Supplier) clazz.getConstructor().newInstance()).get();
+    }
+
+    @Test
+    public void replay() throws Exception {
+        var calls = new AtomicInteger();
+
+        ClassArchive archive = ClassArchive.open(mFile);
+        for (String key : new String[] {"a", "b", "a"}) {
+            Class<?> clazz = archive.finish(ClassMaker.begin(), key, cm -> {
+                calls.incrementAndGet();
+                define(cm, key);
+            });
+            assertEquals(key + ' ' + clazz.getSimpleName(), get(clazz));
+        }
+
+        // Repeated key within the same run is also replayed.
+        assertEquals(2, calls.get());
+
+        archive.save();
+        assertTrue(Files.exists(mFile));
+        long size = Files.size(mFile);
+
+        // Simulate a later run.
+        archive = ClassArchive.open(mFile);
+        for (String key : new String[] {"a", "b"}) {
+            Class<?> clazz = archive.finish(ClassMaker.begin(), key, cm -> {
+                fail();
+            });
+            assertEquals(key + ' ' + clazz.getSimpleName(), get(clazz));
+        }
+
+        // Nothing new to save.
+        archive.save();
+        assertEquals(size, Files.size(mFile));
+
+        // Add another.
+        archive.finish(ClassMaker.begin(), "c", cm -> define(cm, "c"));
+        archive.save();
+
+        archive = ClassArchive.open(mFile);
+        for (String key : new String[] {"a", "b", "c"}) {
+            Class<?> clazz = archive.finish(ClassMaker.begin(), key, cm -> fail());
+            assertEquals(key + ' ' + clazz.getSimpleName(), get(clazz));
+        }
+    }
+
+    @Test
+    public void corrupt() throws Exception {
+        ClassArchive archive = ClassArchive.open(mFile);
+        archive.finish(ClassMaker.begin(), "a", cm -> define(cm, "a"));
+        archive.save();
+
+        byte[] bytes = Files.readAllBytes(mFile);
+        Files.write(mFile, Arrays.copyOf(bytes, bytes.length - 10));
+
+        archive = ClassArchive.open(mFile);
+        var calls = new AtomicInteger();
+        Class<?> clazz = archive.finish(ClassMaker.begin(), "a", cm -> {
+            calls.incrementAndGet();
+            define(cm, "a");
+        });
+        assertEquals(1, calls.get());
+        assertEquals("a " + clazz.getSimpleName(), get(clazz));
+    }
+
+    @Test
+    public void inner() throws Exception {
+        // The names of inner classes are assigned a suffix which differs in other processes,
+        // and so neither the outer class nor the inner class is archived. Each run uses a
+        // fresh injector key, which simulates starting a new process.
+
+        for (int run=0; run<3; run++) {
+            ClassArchive archive = ClassArchive.open(mFile);
+            var calls = new AtomicInteger();
+            var innerRef = new ClassMaker[1];
+
+            ClassMaker outer = ClassMaker.begin("org.cojen.maker.Outer", null, new Object());
+
+            Class<?> clazz = archive.finish(outer, "outer", cm -> {
+                calls.incrementAndGet();
+                cm.public_().implement(Supplier.class).addConstructor().public_();
+
+                ClassMaker inner = cm.addInnerClass("Inner").public_().static_();
+                inner.implement(Supplier.class).addConstructor().public_();
+                MethodMaker mm = inner.addMethod(Object.class, "get").public_();
+                mm.return_("inner");
+                innerRef[0] = inner;
+
+                mm = cm.addMethod(Object.class, "get").public_();
+                mm.return_(mm.new_(inner).invoke("get"));
+            });
+
+            archive.finish(innerRef[0], "inner", cm -> calls.incrementAndGet());
+
+            assertEquals(2, calls.get());
+            assertEquals("inner", get(clazz));
+
+            archive.save();
+            assertFalse(Files.exists(mFile));
+        }
+    }
+
+    @Test
+    public void exact() throws Exception {
+        ClassArchive archive = ClassArchive.open(mFile);
+        var value = new Object();
+        Class<?> clazz = archive.finish(ClassMaker.begin(), "a", cm -> {
+            cm.public_().implement(Supplier.class);
+            cm.addConstructor().public_();
+            MethodMaker mm = cm.addMethod(Object.class, "get").public_();
+            mm.return_(mm.var(Object.class).setExact(value));
+        });
+        assertSame(value, get(clazz));
+        archive.save();
+        assertFalse(Files.exists(mFile));
+    }
+}
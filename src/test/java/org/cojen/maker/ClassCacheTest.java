@@ -0,0 +1,201 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import java.util.function.Supplier;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ClassMaker.finishCached method.
+ */
+public class ClassCacheTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(ClassCacheTest.class.getName());
+    }
+
+    private Path mDir;
+
+    @Before
+    public void setup() throws Exception {
+        mDir = Files.createTempDirectory("ClassCacheTest");
+    }
+
+    @After
+    public void teardown() throws Exception {
+        try (var paths = Files.walk(mDir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    private long count() throws Exception {
+        try (var paths = Files.list(mDir)) {
+            return paths.count();
+        }
+    }
+
+    private static ClassMaker define(String message) {
+        ClassMaker cm = ClassMaker.begin("org.cojen.maker.Cached").public_();
+        cm.implement(Supplier.class);
+        cm.addConstructor().public_();
+        MethodMaker mm = cm.addMethod(Object.class, "get").public_();
+        // Refers to its own type in a descriptor.
+        MethodMaker self = cm.addMethod(cm, "self").private_();
+        self.return_(self.this_());
+        mm.return_(mm.concat(message, ' ', mm.invoke("self").invoke("getClass")
+                             .invoke("getSimpleName")));
+        return cm;
+    }
+
+    private static Object get(Class<?> clazz) throws Exception {
+        return ((Supplier) clazz.getConstructor().newInstance()).get();
+    }
+
+    @Test
+    public void hit() throws Exception {
+        ClassMaker cm1 = define("hello");
+        Class<?> c1 = cm1.finishCached(mDir, "key");
+        assertEquals("hello " + c1.getSimpleName(), get(c1));
+        assertEquals(1, count());
+
+        // Generates a different class, but the stored class file is used instead.
+        ClassMaker cm2 = define("world");
+        MethodMaker mm2 = cm2.addMethod(int.class, "extra").public_();
+        mm2.return_(1);
+        Class<?> c2 = cm2.finishCached(mDir, "key");
+        assertNotEquals(c1.getName(), c2.getName());
+        assertEquals("hello " + c2.getSimpleName(), get(c2));
+        assertNull(mm2.report());
+
+        try {
+            cm2.finish();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+
+        // Different key.
+        Class<?> c3 = define("world").finishCached(mDir, "key2");
+        assertEquals("world " + c3.getSimpleName(), get(c3));
+        assertEquals(2, count());
+    }
+
+    @Test
+    public void literals() throws Exception {
+        // String literals which match the class name must not be renamed.
+
+        for (String name : new String[] {"Cached", "org.cojen.maker.Cached"}) {
+            String[] expect = new String[2];
+            Class<?>[] classes = new Class[2];
+
+            for (int i=0; i<2; i++) {
+                ClassMaker cm = ClassMaker.begin(name).public_().implement(Supplier.class);
+                cm.addField(cm, "self").private_();
+                cm.addConstructor().public_();
+                String internal = ((TheClassMaker) cm).name().replace('.', '/');
+                if (i == 0) {
+                    expect[0] = internal;
+                    expect[1] = 'L' + internal + ';';
+                }
+                MethodMaker mm = cm.addMethod(Object.class, "get").public_();
+                mm.field("self").set(mm.this_());
+                mm.return_(mm.concat(internal, ',', 'L' + internal + ';'));
+                classes[i] = cm.finishCached(mDir, name);
+            }
+
+            assertNotEquals(classes[0].getName(), classes[1].getName());
+
+            for (Class<?> clazz : classes) {
+                assertEquals(expect[0] + ',' + expect[1], get(clazz));
+                assertEquals(clazz, clazz.getDeclaredField("self").getType());
+            }
+        }
+    }
+
+    @Test
+    public void otherProcess() throws Exception {
+        // Each run uses a fresh injector key, which simulates starting a new process.
+
+        for (int run=0; run<3; run++) {
+            ClassMaker cm = ClassMaker.begin("org.cojen.maker.Cached", null, new Object());
+            cm.public_().implement(Supplier.class).addConstructor().public_();
+            MethodMaker mm = cm.addMethod(Object.class, "get").public_();
+            mm.return_("hello");
+            Class<?> clazz = cm.finishCached(mDir, "key");
+            assertEquals("hello", get(clazz));
+            assertEquals(1, count());
+        }
+    }
+
+    @Test
+    public void inner() throws Exception {
+        // The names of inner classes are assigned a suffix which differs in other processes,
+        // and so neither the outer class nor the inner class is cached.
+
+        for (int run=0; run<3; run++) {
+            ClassMaker outer = ClassMaker.begin("org.cojen.maker.Outer", null, new Object());
+            outer.public_().implement(Supplier.class).addConstructor().public_();
+
+            ClassMaker inner = outer.addInnerClass("Inner").public_().static_();
+            inner.implement(Supplier.class).addConstructor().public_();
+            MethodMaker mm = inner.addMethod(Object.class, "get").public_();
+            mm.return_("inner " + run);
+
+            mm = outer.addMethod(Object.class, "get").public_();
+            mm.return_(mm.new_(inner).invoke("get"));
+
+            Class<?> clazz = outer.finishCached(mDir, "outer");
+            inner.finishCached(mDir, "inner");
+
+            assertEquals("inner " + run, get(clazz));
+            assertEquals(0, count());
+        }
+    }
+
+    @Test
+    public void corrupt() throws Exception {
+        define("hello").finishCached(mDir, "key");
+        Path file = ClassCache.file(mDir, "key");
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+
+        Class<?> clazz = define("world").finishCached(mDir, "key");
+        assertEquals("world " + clazz.getSimpleName(), get(clazz));
+
+        // Was replaced. The size can differ slightly, since the class names differ.
+        assertNotNull(ClassCache.load(file, clazz.getName()));
+        assertTrue(Files.size(file) > bytes.length / 2 + 10);
+    }
+
+    @Test
+    public void exact() throws Exception {
+        ClassMaker cm = ClassMaker.begin().public_().implement(Supplier.class);
+        cm.addConstructor().public_();
+        var value = new Object();
+        MethodMaker mm = cm.addMethod(Object.class, "get").public_();
+        mm.return_(mm.var(Object.class).setExact(value));
+        Class<?> clazz = cm.finishCached(mDir, "key");
+        assertSame(value, get(clazz));
+        assertEquals(0, count());
+    }
+}
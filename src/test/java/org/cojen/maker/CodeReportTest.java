@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.util.ArrayList;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+import static org.cojen.maker.CodeReport.Budget.*;
+
+/**
+ * Tests for reporting the size of generated code.
+ */
+public class CodeReportTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(CodeReportTest.class.getName());
+    }
+
+    @Test
+    public void basic() throws Exception {
+        ClassMaker cm = ClassMaker.begin().public_();
+
+        MethodMaker mm = cm.addMethod(int.class, "add", int.class, int.class)
+            .public_().static_();
+        mm.return_(mm.param(0).add(mm.param(1)));
+
+        MethodMaker abs = cm.addMethod(int.class, "abs").public_().abstract_();
+
+        assertNull(mm.report());
+
+        cm.finish();
+
+        CodeReport report = mm.report();
+        assertEquals("add", report.name());
+        assertEquals("(II)I", report.descriptor());
+        assertFalse(report.isHot());
+        assertEquals(4, report.codeLength());
+        assertEquals(2, report.maxStack());
+        assertEquals(2, report.maxLocals());
+        assertEquals(0, report.exceptionTableLength());
+        assertEquals(INLINE, report.budget());
+        assertTrue(report.toString().contains("budget=INLINE"));
+
+        assertNull(abs.report());
+    }
+
+    @Test
+    public void handlers() throws Exception {
+        ClassMaker cm = ClassMaker.begin().public_();
+
+        MethodMaker mm = cm.addMethod(int.class, "parse", String.class).public_().static_();
+        Label start = mm.label().here();
+        mm.return_(mm.var(Integer.class).invoke("parseInt", mm.param(0)));
+        mm.catch_(start, NumberFormatException.class, e -> mm.return_(-1));
+
+        cm.finish();
+
+        assertEquals(1, mm.report().exceptionTableLength());
+    }
+
+    @Test
+    public void budget() {
+        assertEquals(INLINE, CodeReport.Budget.of(0));
+        assertEquals(INLINE, CodeReport.Budget.of(35));
+        assertEquals(FREQ_INLINE, CodeReport.Budget.of(36));
+        assertEquals(FREQ_INLINE, CodeReport.Budget.of(325));
+        assertEquals(NO_INLINE, CodeReport.Budget.of(326));
+        assertEquals(NO_INLINE, CodeReport.Budget.of(8000));
+        assertEquals(HUGE, CodeReport.Budget.of(8001));
+    }
+
+    @Test
+    public void listener() throws Exception {
+        var reports = new ArrayList<CodeReport>();
+
+        ClassMaker cm = ClassMaker.begin().public_().budgetListener(reports::add);
+
+        // Large and hot.
+        MethodMaker mm1 = cm.addMethod(int.class, "a", int.class).public_().static_().hot();
+        bloat(mm1);
+
+        // Large but not hot.
+        MethodMaker mm2 = cm.addMethod(int.class, "b", int.class).public_().static_();
+        bloat(mm2);
+
+        // Hot but small.
+        MethodMaker mm3 = cm.addMethod(int.class, "c", int.class).public_().static_().hot();
+        mm3.return_(mm3.param(0));
+
+        var clazz = cm.finish();
+
+        assertEquals(1, reports.size());
+        CodeReport report = reports.get(0);
+        assertSame(mm1.report(), report);
+        assertEquals("a", report.name());
+        assertTrue(report.isHot());
+        assertEquals(NO_INLINE, report.budget());
+
+        assertEquals(NO_INLINE, mm2.report().budget());
+        assertFalse(mm2.report().isHot());
+        assertEquals(INLINE, mm3.report().budget());
+
+        assertEquals(100 * 99 / 2 + 100 * 3, clazz.getMethod("a", int.class).invoke(null, 3));
+    }
+
+    private static void bloat(MethodMaker mm) {
+        var v = mm.var(int.class).set(0);
+        for (int i=0; i<100; i++) {
+            v.set(v.add(mm.param(0).add(i)));
+        }
+        mm.return_(v);
+    }
+}
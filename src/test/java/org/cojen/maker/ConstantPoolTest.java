@@ -0,0 +1,127 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ConstantPool class.
+ */
+public class ConstantPoolTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(ConstantPoolTest.class.getName());
+    }
+
+    @Test
+    public void basic() throws Exception {
+        var cp = new ConstantPool();
+
+        var hello = cp.addUTF8("hello");
+        assertEquals(1, hello.mIndex);
+        assertSame(hello, cp.addUTF8(new String("hello")));
+
+        var i = cp.addInteger(10);
+        assertSame(i, cp.addInteger(10));
+        assertNotSame(i, cp.addInteger(11));
+
+        // Longs and doubles take up two slots.
+        var l = cp.addLong(10);
+        assertSame(l, cp.addLong(10));
+        var d = cp.addDouble(10);
+        assertSame(d, cp.addDouble(10));
+        assertEquals(l.mIndex + 2, d.mIndex);
+        assertEquals(d.mIndex + 2, cp.addFloat(10).mIndex);
+
+        // Distinct bit patterns are distinct constants.
+        assertNotSame(cp.addFloat(0.0f), cp.addFloat(-0.0f));
+        assertNotSame(cp.addDouble(0.0), cp.addDouble(-0.0));
+        assertSame(cp.addDouble(Double.NaN), cp.addDouble(Double.NaN));
+
+        // Same UTF8 constant, but different kinds of constants.
+        var str = cp.addString("hello");
+        var clazz = cp.addClass("hello");
+        var mt = cp.addMethodType("hello");
+        assertSame(str, cp.addString("hello"));
+        assertSame(clazz, cp.addClass("hello"));
+        assertSame(mt, cp.addMethodType("hello"));
+        assertNotSame(str, clazz);
+        assertNotSame(str, mt);
+        assertSame(hello, str.mValue);
+        assertSame(hello, clazz.mValue);
+
+        var nt = cp.addNameAndType("hello", "I");
+        assertSame(nt, cp.addNameAndType("hello", "I"));
+        assertNotSame(nt, cp.addNameAndType("I", "hello"));
+
+        Type type = Type.from(String.class);
+        assertSame(cp.addClass(type), cp.addClass(type));
+
+        Type.Method method = type.inventMethod(0, Type.from(int.class), "length");
+        var m = cp.addMethod(method);
+        assertSame(m, cp.addMethod(method));
+
+        var mh = cp.addMethodHandle(5, m);
+        assertSame(mh, cp.addMethodHandle(5, m));
+        assertNotSame(mh, cp.addMethodHandle(7, m));
+
+        var dyn = cp.addDynamicConstant(0, nt);
+        assertSame(dyn, cp.addDynamicConstant(0, nt));
+        assertNotSame(dyn, cp.addDynamicConstant(1, nt));
+        assertNotSame(dyn, cp.addInvokeDynamic(0, "hello", "I"));
+    }
+
+    @Test
+    public void many() throws Exception {
+        // Add enough constants to force the table to grow several times, and verify that
+        // the constants are written in the order in which they were added.
+
+        var cp = new ConstantPool();
+
+        final int count = 20_000;
+
+        for (int round=0; round<2; round++) {
+            for (int i=0; i<count; i++) {
+                var s = cp.addUTF8("c" + i);
+                var n = cp.addInteger(i);
+                assertEquals(1 + i * 2, s.mIndex);
+                assertEquals(2 + i * 2, n.mIndex);
+            }
+        }
+
+        var bout = new ByteArrayOutputStream();
+        var dout = new DataOutputStream(bout);
+        dout.writeShort(1 + count * 2);
+        for (int i=0; i<count; i++) {
+            dout.writeByte(1);
+            dout.writeUTF("c" + i);
+            dout.writeByte(3);
+            dout.writeInt(i);
+        }
+        byte[] expect = bout.toByteArray();
+
+        var out = new BytesOut(null, 100);
+        cp.writeTo(out);
+        byte[] actual = out.toByteArray();
+
+        assertArrayEquals(expect, actual);
+        assertEquals(expect.length, cp.length());
+    }
+}
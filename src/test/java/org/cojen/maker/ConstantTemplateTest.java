@@ -0,0 +1,118 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.function.IntUnaryOperator;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the anotherWithConstants method.
+ */
+public class ConstantTemplateTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(ConstantTemplateTest.class.getName());
+    }
+
+    private static ClassMaker define(ClassMaker cm, int amount) {
+        cm.public_().implement(IntUnaryOperator.class);
+        cm.addConstructor().public_();
+        MethodMaker mm = cm.addMethod(int.class, "applyAsInt", int.class).public_();
+        // Uses an indy constant, which isn't copied.
+        var str = mm.concat("value: ", mm.param(0));
+        var x = mm.var(Integer.class).invoke("parseInt", str.invoke("substring", 7));
+        mm.return_(x.add(amount));
+        return cm;
+    }
+
+    private static int apply(ClassMaker cm, int value) throws Exception {
+        var op = (IntUnaryOperator) cm.finish().getConstructor().newInstance();
+        return op.applyAsInt(value);
+    }
+
+    private static boolean contains(byte[] bytes, String str) {
+        return new String(bytes, StandardCharsets.ISO_8859_1).contains(str);
+    }
+
+    @Test
+    public void basic() throws Exception {
+        ClassMaker proto = define(ClassMaker.begin(), 1);
+        proto.addField(String.class, "uniqueFieldName").public_();
+
+        ClassMaker cm1 = define(proto.anotherWithConstants(null), 10);
+        ClassMaker cm2 = define(proto.anotherWithConstants(null), 20);
+
+        assertEquals(11, apply(cm1, 1));
+        assertEquals(22, apply(cm2, 2));
+        assertEquals(3, apply(proto, 2));
+
+        // Can still be used after the prototype has finished.
+        ClassMaker cm3 = define(proto.anotherWithConstants(null), 30);
+
+        // Can build upon a maker which was created with copied constants.
+        ClassMaker cm4 = cm3.anotherWithConstants(null);
+
+        assertEquals(33, apply(cm3, 3));
+        assertEquals(44, apply(define(cm4, 40), 4));
+    }
+
+    @Test
+    public void finished() throws Exception {
+        ClassMaker proto = define(ClassMaker.begin(), 1);
+        proto.finish();
+        try {
+            proto.anotherWithConstants(null);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void external() throws Exception {
+        ClassMaker proto = define(ClassMaker.beginExternal("org.cojen.maker.ProtoTemplate"), 1);
+        proto.addField(String.class, "uniqueFieldName").public_();
+
+        ClassMaker plain = define(proto.another("org.cojen.maker.PlainTemplate"), 1);
+        ClassMaker copy = define(proto.anotherWithConstants("org.cojen.maker.CopyTemplate"), 1);
+
+        byte[] plainBytes = plain.finishBytes();
+        byte[] copyBytes = copy.finishBytes();
+
+        // The copy has all the constants of the prototype, even those which aren't used.
+        assertFalse(contains(plainBytes, "uniqueFieldName"));
+        assertTrue(contains(copyBytes, "uniqueFieldName"));
+        assertTrue(contains(copyBytes, "ProtoTemplate"));
+
+        // Adding more constants after making a copy makes a new copy.
+        proto.addField(String.class, "anotherUniqueName").public_();
+        copy = define(proto.anotherWithConstants("org.cojen.maker.CopyTemplate2"), 1);
+        assertTrue(contains(copy.finishBytes(), "anotherUniqueName"));
+    }
+
+    @Test
+    public void hidden() throws Exception {
+        ClassMaker proto = define(ClassMaker.begin(), 1);
+        ClassMaker cm = define(proto.anotherWithConstants(null), 5);
+        var op = (IntUnaryOperator) cm.finishHidden().lookupClass()
+            .getConstructor().newInstance();
+        assertEquals(6, op.applyAsInt(1));
+        assertEquals(2, apply(proto, 1));
+    }
+}
@@ -18,6 +18,14 @@ package org.cojen.maker;
 
 import java.io.ByteArrayOutputStream;
 
+import java.lang.ref.WeakReference;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import java.nio.channels.Channels;
+
 import java.lang.invoke.MethodHandles;
 
 import java.lang.reflect.Modifier;
@@ -141,4 +149,138 @@ public class ExternalTest {
     }
 
     private static volatile boolean finishAndLoadPassed;
+
+    private static ClassMaker simple(String name) {
+        ClassMaker cm = ClassMaker.beginExternal(name).public_();
+        MethodMaker mm = cm.addMethod(String.class, "test").public_().static_();
+        mm.return_("hello \u2603");
+        return cm;
+    }
+
+    private static Class<?> load(String name, ByteBuffer buf) throws Exception {
+        var loader = new ClassLoader() {
+            {
+                defineClass(name, buf, null);
+            }
+        };
+        return loader.loadClass(name);
+    }
+
+    @Test
+    public void finishToBuffer() throws Exception {
+        String name = "org.cojen.maker.FakeBuffer";
+        byte[] expect = simple(name).finishBytes();
+
+        for (int i=0; i<2; i++) {
+            var buf = i == 0 ? ByteBuffer.allocate(1000) : ByteBuffer.allocateDirect(1000);
+            buf.position(3);
+            // Test with a non-zero array offset.
+            buf = buf.slice();
+            buf.position(5);
+            simple(name).finishTo(buf);
+            assertEquals(5 + expect.length, buf.position());
+
+            buf.flip().position(5);
+            var actual = new byte[buf.remaining()];
+            buf.duplicate().get(actual);
+            assertArrayEquals(expect, actual);
+
+            Class<?> clazz = load(name, buf);
+            assertEquals("hello \u2603", clazz.getMethod("test").invoke(null));
+        }
+    }
+
+    @Test
+    public void finishToSmallBuffer() throws Exception {
+        String name = "org.cojen.maker.FakeSmall";
+        byte[] expect = simple(name).finishBytes();
+
+        ClassMaker cm = simple(name);
+        var buf = ByteBuffer.allocate(20);
+        try {
+            cm.finishTo(buf);
+            fail();
+        } catch (BufferOverflowException e) {
+        }
+        assertEquals(0, buf.position());
+
+        // The class can only be written out.
+        try {
+            cm.addField(int.class, "x");
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        try {
+            cm.finishBytes();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+
+        // Try again with a larger buffer.
+        buf = ByteBuffer.allocateDirect(expect.length);
+        cm.finishTo(buf);
+        assertEquals(expect.length, buf.position());
+        var actual = new byte[expect.length];
+        buf.flip().get(actual);
+        assertArrayEquals(expect, actual);
+
+        try {
+            cm.finishTo(ByteBuffer.allocate(1000));
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void finishToAbandon() throws Exception {
+        // A maker which is abandoned after a buffer overflow releases its reserved name and
+        // the prepared class once it's no longer referenced.
+
+        ClassMaker cm = ClassMaker.begin("org.cojen.maker.Abandoned").public_();
+        cm.addConstructor().public_();
+        try {
+            cm.finishTo(ByteBuffer.allocate(20));
+            fail();
+        } catch (BufferOverflowException e) {
+        }
+
+        var ref = new WeakReference<>(cm);
+        var nameRef = new WeakReference<>(((TheClassMaker) cm).name());
+        cm = null; // help GC
+        Type.clearCaches();
+
+        for (int i=0; i<10; i++) {
+            if (ref.get() == null && nameRef.get() == null) {
+                return;
+            }
+            System.gc();
+        }
+
+        fail();
+    }
+
+    @Test
+    public void finishToReadOnlyBuffer() throws Exception {
+        ClassMaker cm = simple("org.cojen.maker.FakeReadOnly");
+        try {
+            cm.finishTo(ByteBuffer.allocate(1000).asReadOnlyBuffer());
+            fail();
+        } catch (ReadOnlyBufferException e) {
+        }
+
+        // Not finished.
+        var buf = ByteBuffer.allocate(1000);
+        cm.finishTo(buf);
+        assertTrue(buf.position() > 0);
+    }
+
+    @Test
+    public void finishToChannel() throws Exception {
+        String name = "org.cojen.maker.FakeChannel";
+        byte[] expect = simple(name).finishBytes();
+
+        var out = new ByteArrayOutputStream();
+        simple(name).finishTo(Channels.newChannel(out));
+        assertArrayEquals(expect, out.toByteArray());
+    }
 }
@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.lang.invoke.MethodHandles;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ClassMaker.finishAll method.
+ */
+public class FinishAllTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(FinishAllTest.class.getName());
+    }
+
+    @Test
+    public void empty() throws Exception {
+        assertTrue(ClassMaker.finishAll(List.of()).isEmpty());
+    }
+
+    @Test
+    public void hierarchy() throws Exception {
+        // Subtypes are passed in before their supertypes, and so the classes must be
+        // defined in a different order.
+
+        ClassMaker iface = ClassMaker.begin().public_().interface_();
+        iface.addMethod(int.class, "value").public_().abstract_();
+
+        ClassMaker base = iface.another(null).public_().implement(iface)
+            .implement(IntSupplier.class);
+        base.addConstructor().public_();
+        MethodMaker mm = base.addMethod(int.class, "getAsInt").public_();
+        mm.return_(mm.invoke("value").add(1));
+
+        var makers = new ArrayList<ClassMaker>();
+
+        for (int i=0; i<10; i++) {
+            ClassMaker sub = base.another(null).public_().extend(base);
+            sub.addConstructor().public_().invokeSuperConstructor();
+            sub.addMethod(int.class, "value").public_().return_(i * 10);
+            makers.add(sub);
+        }
+
+        makers.add(base);
+        makers.add(iface);
+
+        List<Class<?>> classes = ClassMaker.finishAll(makers);
+        assertEquals(makers.size(), classes.size());
+
+        Class<?> ifaceClass = classes.get(classes.size() - 1);
+        Class<?> baseClass = classes.get(classes.size() - 2);
+        assertTrue(ifaceClass.isInterface());
+        assertSame(ifaceClass, baseClass.getInterfaces()[0]);
+
+        for (int i=0; i<10; i++) {
+            Class<?> clazz = classes.get(i);
+            assertSame(baseClass, clazz.getSuperclass());
+            var obj = (IntSupplier) clazz.getConstructor().newInstance();
+            assertEquals(i * 10 + 1, obj.getAsInt());
+        }
+    }
+
+    @Test
+    public void exactConstants() throws Exception {
+        var makers = new ArrayList<ClassMaker>();
+        var values = new ArrayList<Object>();
+
+        for (int i=0; i<20; i++) {
+            ClassMaker cm = ClassMaker.begin().public_().implement(Supplier.class);
+            cm.addConstructor().public_();
+            MethodMaker mm = cm.addMethod(Object.class, "get").public_();
+            var value = new Object();
+            values.add(value);
+            mm.return_(mm.var(Object.class).setExact(value));
+            makers.add(cm);
+        }
+
+        List<Class<?>> classes = ClassMaker.finishAll(makers);
+
+        for (int i=0; i<classes.size(); i++) {
+            var obj = (Supplier) classes.get(i).getConstructor().newInstance();
+            assertSame(values.get(i), obj.get());
+        }
+    }
+
+    @Test
+    public void withLookup() throws Exception {
+        ClassMaker a = ClassMaker.begin(null, MethodHandles.lookup()).public_();
+        ClassMaker b = a.another(null).public_().extend(a);
+        a.addConstructor().public_();
+        b.addConstructor().public_().invokeSuperConstructor();
+
+        List<Class<?>> classes = ClassMaker.finishAll(List.of(b, a));
+        assertSame(classes.get(1), classes.get(0).getSuperclass());
+        assertSame(getClass().getClassLoader(), classes.get(0).getClassLoader());
+    }
+
+    @Test
+    public void illegal() throws Exception {
+        ClassMaker cm = ClassMaker.begin().public_();
+
+        try {
+            ClassMaker.finishAll(List.of(cm, cm));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("Duplicate"));
+        }
+
+        cm.finish();
+
+        try {
+            ClassMaker.finishAll(List.of(cm));
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("finished"));
+        }
+
+        // Broken definition.
+        ClassMaker broken = ClassMaker.begin().public_();
+        broken.addMethod(int.class, "test").public_();
+        ClassMaker ok = ClassMaker.begin().public_();
+
+        try {
+            ClassMaker.finishAll(List.of(ok, broken));
+            fail();
+        } catch (IllegalStateException e) {
+        }
+
+        // All are finished now.
+        try {
+            ok.finish();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for finishing methods before the class is finished.
+ */
+public class FinishEarlyTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(FinishEarlyTest.class.getName());
+    }
+
+    @Test
+    public void basic() throws Exception {
+        ClassMaker cm = ClassMaker.begin().public_();
+        cm.addConstructor().public_();
+
+        var makers = new MethodMaker[100];
+
+        for (int i=0; i<makers.length; i++) {
+            MethodMaker mm = cm.addMethod(String.class, "m" + i, int.class).public_().static_();
+            makers[i] = mm;
+            var v = mm.var(String.class).set("m" + i + ":");
+            Label start = mm.label().here();
+            v.set(mm.concat(v, mm.param(0)));
+            mm.catch_(start, RuntimeException.class, e -> mm.return_("fail"));
+            mm.return_(v);
+            if ((i & 1) == 0) {
+                mm.finishEarly();
+                assertEquals(mm.report().codeLength(), ((TheMethodMaker) mm).codeLength());
+                // Is harmless to call again.
+                mm.finishEarly();
+            }
+        }
+
+        try {
+            makers[0].return_("x");
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("finished"));
+        }
+
+        var clazz = cm.finish();
+
+        for (int i=0; i<makers.length; i++) {
+            assertEquals("m" + i + ":" + i, clazz.getMethod("m" + i, int.class).invoke(null, i));
+            assertNotNull(makers[i].report());
+        }
+    }
+
+    @Test
+    public void abstractMethod() throws Exception {
+        ClassMaker cm = ClassMaker.begin().public_().abstract_();
+        cm.addConstructor().public_();
+        cm.addMethod(int.class, "a").public_().abstract_().finishEarly();
+        MethodMaker mm = cm.addMethod(int.class, "b").public_();
+        mm.return_(mm.invoke("a").add(1));
+        mm.finishEarly();
+
+        ClassMaker sub = cm.another(null).public_().extend(cm);
+        sub.addConstructor().public_().invokeSuperConstructor();
+        cm.finish();
+        mm = sub.addMethod(int.class, "a").public_();
+        mm.return_(10);
+
+        var subClass = sub.finish();
+        Object obj = subClass.getConstructor().newInstance();
+        assertEquals(11, subClass.getMethod("b").invoke(obj));
+    }
+
+    @Test
+    public void sameSize() throws Exception {
+        // Finishing methods early doesn't change the size of the class file. The order of
+        // the methods and constants can differ.
+
+        byte[][] results = new byte[2][];
+
+        for (int i=0; i<2; i++) {
+            ClassMaker cm = ClassMaker.beginExternal("org.cojen.maker.EarlyFake").public_();
+            MethodMaker mm = cm.addMethod(int.class, "a", int.class).public_().static_();
+            mm.return_(mm.param(0).add(1));
+            if (i != 0) {
+                mm.finishEarly();
+            }
+            var out = new ByteArrayOutputStream();
+            cm.finishTo(out);
+            results[i] = out.toByteArray();
+        }
+
+        assertEquals(results[0].length, results[1].length);
+    }
+
+    @Test
+    public void illegal() throws Exception {
+        ClassMaker cm = ClassMaker.begin().public_();
+
+        MethodMaker mm = cm.addClinit();
+        try {
+            mm.finishEarly();
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("<clinit>"));
+        }
+
+        mm = cm.addMethod(null, "test").public_();
+        cm.finish();
+        try {
+            mm.finishEarly();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    @Test
+    public void modify() throws Exception {
+        // Nothing about the method can be changed after it's finished early.
+
+        ClassMaker cm = ClassMaker.begin().public_();
+        MethodMaker mm = cm.addMethod(null, "test", String[].class).public_();
+        mm.finishEarly();
+
+        Runnable[] attempts = {
+            mm::public_, mm::private_, mm::protected_, mm::static_, mm::final_,
+            mm::synchronized_, mm::abstract_, mm::native_, mm::synthetic, mm::bridge,
+            mm::varargs, mm::hot,
+            () -> mm.throws_(Exception.class),
+            () -> mm.signature("(Ljava/util/List<Ljava/lang/String;>;)V"),
+            () -> mm.addAnnotation(Deprecated.class, true),
+            () -> mm.addAttribute("Foo", "bar"),
+            () -> mm.param(0).name("args"),
+            () -> mm.param(0).addAnnotation(Deprecated.class, true),
+        };
+
+        for (Runnable attempt : attempts) {
+            try {
+                attempt.run();
+                fail();
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage().contains("finished"));
+            }
+        }
+
+        // Class is still valid.
+        cm.finish().getMethod("test", String[].class);
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the cost of finishing small hidden classes which have exact constants, one at a
+ * time with finishHidden, and all at once with finishHiddenAll. Run it with:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes org.cojen.maker.FinishHiddenAllBench [count] [rounds]
+ * </pre>
+ */
+public class FinishHiddenAllBench {
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        System.out.println("CPUs: " + Runtime.getRuntime().availableProcessors());
+
+        for (int round=0; round<rounds; round++) {
+            List<ClassMaker> makers = makers(count);
+            long start = System.nanoTime();
+            for (ClassMaker cm : makers) {
+                cm.finishHidden();
+            }
+            long individual = System.nanoTime() - start;
+
+            makers = makers(count);
+            start = System.nanoTime();
+            ClassMaker.finishHiddenAll(makers);
+            long all = System.nanoTime() - start;
+
+            System.out.printf("round %d: finishHidden %.1f us/class, finishHiddenAll %.1f us/class%n",
+                              round, (individual / 1e3) / count, (all / 1e3) / count);
+        }
+    }
+
+    private static List<ClassMaker> makers(int count) {
+        var makers = new ArrayList<ClassMaker>(count);
+        ClassMaker first = ClassMaker.begin("bench.Expr");
+        makers.add(first);
+        for (int i=1; i<count; i++) {
+            makers.add(first.another("bench.Expr"));
+        }
+
+        int i = 0;
+        for (ClassMaker cm : makers) {
+            MethodMaker mm = cm.addMethod(int.class, "eval", int.class).static_();
+            var exact = mm.var(Object.class).setExact(cm);
+            mm.return_(mm.param(0).mul(i++).add(exact.invoke("hashCode")));
+        }
+
+        return makers;
+    }
+}
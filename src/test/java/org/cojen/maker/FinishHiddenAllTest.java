@@ -0,0 +1,213 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+import java.lang.ref.WeakReference;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import java.util.function.Supplier;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the ClassMaker.finishHiddenAll method.
+ */
+public class FinishHiddenAllTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(FinishHiddenAllTest.class.getName());
+    }
+
+    private static List<ClassMaker> makers(String name, ClassMaker first, int count) {
+        var makers = new ArrayList<ClassMaker>();
+        makers.add(first);
+        for (int i=1; i<count; i++) {
+            makers.add(first.another(name));
+        }
+        for (int i=0; i<count; i++) {
+            makers.get(i).addMethod(int.class, "value").static_().return_(i);
+        }
+        return makers;
+    }
+
+    private static int value(MethodHandles.Lookup lookup) throws Throwable {
+        return (int) lookup.findStatic(lookup.lookupClass(), "value",
+                                       MethodType.methodType(int.class)).invoke();
+    }
+
+    @Test
+    public void empty() throws Exception {
+        assertTrue(ClassMaker.finishHiddenAll(List.of()).isEmpty());
+    }
+
+    @Test
+    public void nest() throws Throwable {
+        List<ClassMaker> makers = makers("foo.Bar", ClassMaker.begin("foo.Bar"), 10);
+        List<MethodHandles.Lookup> lookups = ClassMaker.finishHiddenAll(makers);
+        assertEquals(makers.size(), lookups.size());
+
+        // All share the nest host of the package lookup class.
+        Class<?> host = lookups.get(0).lookupClass().getNestHost();
+        assertFalse(host.isHidden());
+        assertEquals("foo", host.getPackageName());
+
+        for (int i=0; i<lookups.size(); i++) {
+            MethodHandles.Lookup lookup = lookups.get(i);
+            Class<?> clazz = lookup.lookupClass();
+            assertTrue(clazz.isHidden());
+            assertTrue(lookup.hasFullPrivilegeAccess());
+            assertSame(host, clazz.getNestHost());
+            assertEquals("foo", clazz.getPackageName());
+            assertEquals(i, value(lookup));
+        }
+
+        // The classes refer to each other as class data.
+        List<?> data = MethodHandles.classData(lookups.get(3), "_", List.class);
+        assertEquals(lookups.size(), data.size());
+        assertSame(lookups.get(0).lookupClass(), data.get(0));
+    }
+
+    @Test
+    public void exactConstants() throws Exception {
+        var makers = new ArrayList<ClassMaker>();
+        var values = new ArrayList<Object>();
+
+        for (int i=0; i<20; i++) {
+            ClassMaker cm = ClassMaker.begin().public_().implement(Supplier.class);
+            cm.addConstructor().public_();
+            MethodMaker mm = cm.addMethod(Object.class, "get").public_();
+            var value = new Object();
+            values.add(value);
+            mm.return_(mm.var(Object.class).setExact(value));
+            makers.add(cm);
+        }
+
+        List<MethodHandles.Lookup> lookups = ClassMaker.finishHiddenAll(makers);
+
+        for (int i=0; i<lookups.size(); i++) {
+            Class<?> clazz = lookups.get(i).lookupClass();
+            var obj = (Supplier) clazz.getConstructor().newInstance();
+            assertSame(values.get(i), obj.get());
+        }
+    }
+
+    private static int secret() {
+        return 42;
+    }
+
+    @Test
+    public void withLookup() throws Throwable {
+        // Like finishHidden, the classes join the nest of the lookup class, and so they can
+        // access its private members.
+
+        var makers = new ArrayList<ClassMaker>();
+        ClassMaker first = ClassMaker.begin(null, MethodHandles.lookup());
+        for (int i=0; i<3; i++) {
+            ClassMaker cm = i == 0 ? first : first.another(null);
+            MethodMaker mm = cm.addMethod(int.class, "value").static_();
+            mm.return_(mm.var(FinishHiddenAllTest.class).invoke("secret").add(i));
+            makers.add(cm);
+        }
+
+        List<MethodHandles.Lookup> lookups = ClassMaker.finishHiddenAll(makers);
+
+        for (int i=0; i<lookups.size(); i++) {
+            Class<?> clazz = lookups.get(i).lookupClass();
+            assertSame(getClass(), clazz.getNestHost());
+            assertSame(getClass().getClassLoader(), clazz.getClassLoader());
+            assertEquals(42 + i, value(lookups.get(i)));
+        }
+    }
+
+    @Test
+    public void unloading() throws Exception {
+        List<MethodHandles.Lookup> lookups =
+            ClassMaker.finishHiddenAll(makers(null, ClassMaker.begin(), 5));
+
+        var refs = new ArrayList<WeakReference<Class<?>>>();
+        for (MethodHandles.Lookup lookup : lookups) {
+            refs.add(new WeakReference<>(lookup.lookupClass()));
+        }
+
+        Class<?> last = lookups.get(lookups.size() - 1).lookupClass();
+        lookups = null; // help GC
+        Type.clearCaches();
+
+        for (int i=0; i<3; i++) {
+            System.gc();
+        }
+
+        // All are reachable via the last class.
+        for (WeakReference<Class<?>> ref : refs) {
+            assertNotNull(ref.get());
+        }
+
+        last = null; // help GC
+
+        outer: for (int i=0; i<10; i++) {
+            System.gc();
+            for (WeakReference<Class<?>> ref : refs) {
+                if (ref.get() != null) {
+                    continue outer;
+                }
+            }
+            return;
+        }
+
+        fail();
+    }
+
+    @Test
+    public void illegal() throws Exception {
+        ClassMaker cm = ClassMaker.begin("foo.Bar");
+
+        try {
+            ClassMaker.finishHiddenAll(List.of(cm, cm));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("Duplicate"));
+        }
+
+        try {
+            ClassMaker.finishHiddenAll(List.of(cm, ClassMaker.begin("foo.baz.Bar")));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("package"));
+        }
+
+        try {
+            ClassMaker.finishHiddenAll(List.of(cm, ClassMaker.begin("foo.Bar", null, "key")));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("package"));
+        }
+
+        cm.finishHidden();
+
+        try {
+            ClassMaker.finishHiddenAll(List.of(cm));
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("finished"));
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how many class makers can be started per millisecond by several threads, which
+ * exercises the injector and package group registries. With shared keys, every thread finds
+ * the same injector, and with distinct keys, every call creates a new injector and package
+ * group. Contention is only measurable with more than one CPU. Run it with:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes org.cojen.maker.InjectorBench [threads] [count] [rounds]
+ * </pre>
+ */
+public class InjectorBench {
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        System.out.println("CPUs: " + Runtime.getRuntime().availableProcessors());
+
+        for (int round=0; round<rounds; round++) {
+            double shared = run(threads, count, true);
+            double distinct = run(threads, count, false);
+            System.out.printf("round %d: shared keys %.1f begins/ms, distinct keys %.1f begins/ms%n",
+                              round, shared, distinct);
+        }
+    }
+
+    private static double run(int threads, int count, boolean shared) throws Exception {
+        var sharedKey = new Object();
+        var ready = new CountDownLatch(threads);
+        var go = new CountDownLatch(1);
+        var workers = new Thread[threads];
+
+        for (int t=0; t<threads; t++) {
+            workers[t] = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ClassLoader loader = InjectorBench.class.getClassLoader();
+                for (int i=0; i<count; i++) {
+                    Object key = shared ? sharedKey : new Object();
+                    ClassMaker.begin("bench.Foo", loader, key);
+                }
+            });
+            workers[t].start();
+        }
+
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+
+        for (Thread t : workers) {
+            t.join();
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        return (threads * (double) count) / (elapsed / 1e6);
+    }
+}
@@ -165,4 +165,41 @@ public class InjectorTest {
         assertEquals(o1.getClass().getClassLoader().getParent(),
                      o2.getClass().getClassLoader().getParent());
     }
+
+    @Test
+    public void sequentialNames() throws Exception {
+        final var key = new Object();
+        ClassLoader loader = ClassLoader.getSystemClassLoader();
+        ClassInjector.find(false, loader, key).mSequentialNames = true;
+
+        var classes = new Class[3];
+        for (int i=0; i<classes.length; i++) {
+            ClassMaker cm = ClassMaker.begin("foo.Bar", loader, key).public_();
+            cm.addConstructor().public_();
+            classes[i] = cm.finish();
+            assertEquals("foo.Bar-" + i, classes[i].getName());
+        }
+
+        // Each package has its own sequence.
+        ClassMaker cm = ClassMaker.begin("foo.baz.Bar", loader, key);
+        assertEquals("foo.baz.Bar-0", cm.finish().getName());
+    }
+
+    @Test
+    public void packageLookup() throws Exception {
+        // Verify that the lookup which is made for each package group has full privileges.
+
+        final var key = new Object();
+        ClassLoader loader = ClassLoader.getSystemClassLoader();
+
+        ClassMaker cm = ClassMaker.begin("foo.Bar", loader, key);
+        var lookup = cm.finishHidden();
+        assertTrue(lookup.hasFullPrivilegeAccess());
+
+        // Another package in the same injector.
+        cm = ClassMaker.begin("foo.baz.Bar", loader, key);
+        lookup = cm.finishHidden();
+        assertTrue(lookup.hasFullPrivilegeAccess());
+        assertEquals("foo.baz", lookup.lookupClass().getPackageName());
+    }
 }
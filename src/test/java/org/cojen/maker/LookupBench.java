@@ -0,0 +1,51 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.lang.invoke.MethodHandles;
+
+/**
+ * Measures the latency of the first hidden class which is defined in a new package group,
+ * which includes defining the group's lookup class. Each iteration uses a fresh injector
+ * key, and so it always gets a new group. Run it with:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes org.cojen.maker.LookupBench [count] [rounds]
+ * </pre>
+ */
+public class LookupBench {
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+
+        ClassLoader loader = LookupBench.class.getClassLoader();
+
+        for (int round=0; round<rounds; round++) {
+            long start = System.nanoTime();
+            for (int i=0; i<count; i++) {
+                ClassMaker cm = ClassMaker.begin("bench.Foo", loader, new Object());
+                cm.addMethod(int.class, "f").static_().return_(i);
+                MethodHandles.Lookup lookup = cm.finishHidden();
+                if (lookup.lookupClass() == null) {
+                    throw new AssertionError();
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("round %d: %.1f us/first class%n", round, (elapsed / 1e3) / count);
+        }
+    }
+}
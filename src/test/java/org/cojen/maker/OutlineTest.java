@@ -0,0 +1,252 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for moving cold code into helper methods.
+ */
+public class OutlineTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(OutlineTest.class.getName());
+    }
+
+    private static int helpers(Class<?> clazz) {
+        int count = 0;
+        for (var m : clazz.getDeclaredMethods()) {
+            if (m.isSynthetic() && m.getName().contains("$cold$")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Throwable invokeFail(Method m, Object... args) throws Exception {
+        try {
+            m.invoke(null, args);
+            fail();
+            return null;
+        } catch (InvocationTargetException e) {
+            return e.getCause();
+        }
+    }
+
+    private static void checkArg(MethodMaker mm, Variable x) {
+        Label ok = mm.label();
+        x.ifGe(0, ok);
+        mm.new_(IllegalArgumentException.class,
+                mm.concat("negative: ", x, ", ", mm.param(1))).throw_();
+        ok.here();
+    }
+
+    @Test
+    public void explicit() throws Exception {
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        var mm = (TheMethodMaker) cm.addMethod(int.class, "test", int.class, String.class)
+            .public_().static_();
+
+        var x = mm.param(0);
+        Label ok = mm.label();
+        x.ifGe(0, ok);
+        mm.cold(() -> {
+            mm.new_(IllegalArgumentException.class,
+                    mm.concat("negative: ", x, ", ", mm.param(1))).throw_();
+        });
+        ok.here();
+        mm.return_(x.add(1));
+
+        var clazz = cm.finish();
+
+        assertEquals(1, helpers(clazz));
+
+        var method = clazz.getMethod("test", int.class, String.class);
+        assertEquals(11, method.invoke(null, 10, "hello"));
+
+        Throwable e = invokeFail(method, -1, "hello");
+        assertTrue(e instanceof IllegalArgumentException);
+        assertEquals("negative: -1, hello", e.getMessage());
+    }
+
+    @Test
+    public void explicitReturn() throws Exception {
+        // Code which returns cannot be moved.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        var mm = cm.addMethod(int.class, "test", int.class).public_().static_();
+
+        var x = mm.param(0);
+        Label ok = mm.label();
+        x.ifGe(0, ok);
+        mm.cold(() -> mm.return_(-1));
+        ok.here();
+        mm.return_(x);
+
+        var clazz = cm.finish();
+
+        assertEquals(0, helpers(clazz));
+
+        var method = clazz.getMethod("test", int.class);
+        assertEquals(-1, method.invoke(null, -10));
+        assertEquals(10, method.invoke(null, 10));
+    }
+
+    @Test
+    public void throwAuto() throws Exception {
+        int[] lengths = new int[2];
+        Class<?>[] classes = new Class[2];
+
+        for (int i=0; i<2; i++) {
+            ClassMaker cm = ClassMaker.begin(null).public_();
+            var mm = (TheMethodMaker) cm.addMethod(int.class, "test", int.class, String.class)
+                .public_().static_();
+            mm.mOutline = i != 0;
+
+            checkArg(mm, mm.param(0));
+            mm.return_(mm.param(0).add(1));
+
+            classes[i] = cm.finish();
+            lengths[i] = mm.codeLength();
+        }
+
+        assertEquals(0, helpers(classes[0]));
+        assertEquals(1, helpers(classes[1]));
+        assertTrue(lengths[1] < lengths[0]);
+
+        for (Class<?> clazz : classes) {
+            var method = clazz.getMethod("test", int.class, String.class);
+            assertEquals(11, method.invoke(null, 10, "hello"));
+            Throwable e = invokeFail(method, -1, "world");
+            assertTrue(e instanceof IllegalArgumentException);
+            assertEquals("negative: -1, world", e.getMessage());
+        }
+    }
+
+    @Test
+    public void throwSmall() throws Exception {
+        // Throwing a simple exception isn't worth moving.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        var mm = (TheMethodMaker) cm.addMethod(int.class, "test", int.class)
+            .public_().static_();
+        mm.mOutline = true;
+
+        Label ok = mm.label();
+        mm.param(0).ifGe(0, ok);
+        mm.new_(IllegalArgumentException.class).throw_();
+        ok.here();
+        mm.return_(mm.param(0));
+
+        var clazz = cm.finish();
+
+        assertEquals(0, helpers(clazz));
+    }
+
+    @Test
+    public void throwGuarded() throws Exception {
+        // A throw within an exception handler range can be moved, and the handler still
+        // catches the exception.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        var mm = (TheMethodMaker) cm.addMethod(String.class, "test", int.class, String.class)
+            .public_().static_();
+        mm.mOutline = true;
+
+        Label start = mm.label().here();
+        checkArg(mm, mm.param(0));
+        mm.return_("ok");
+        mm.catch_(start, IllegalArgumentException.class, e -> {
+            mm.return_(mm.concat("caught ", e.invoke("getMessage")));
+        });
+
+        var clazz = cm.finish();
+
+        assertEquals(1, helpers(clazz));
+
+        var method = clazz.getMethod("test", int.class, String.class);
+        assertEquals("ok", method.invoke(null, 10, "hello"));
+        assertEquals("caught negative: -1, hello", method.invoke(null, -1, "hello"));
+    }
+
+    @Test
+    public void handlerAuto() throws Exception {
+        // The exception handler code is moved, and it updates a variable which is used
+        // after the handler.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        var mm = (TheMethodMaker) cm.addMethod(String.class, "test", String.class)
+            .public_().static_();
+        mm.mOutline = true;
+
+        var result = mm.var(String.class);
+        Label start = mm.label().here();
+        var num = mm.var(Integer.class).invoke("parseInt", mm.param(0));
+        result.set(mm.concat("number ", num));
+        mm.catch_(start, NumberFormatException.class, e -> {
+            var msg = e.invoke("getMessage").invoke("toUpperCase");
+            var name = e.invoke("getClass").invoke("getSimpleName");
+            result.set(mm.concat("not a number: ", mm.param(0), " (", name, ": ", msg, ")"));
+        });
+        mm.return_(result);
+
+        var clazz = cm.finish();
+
+        assertEquals(1, helpers(clazz));
+
+        var method = clazz.getMethod("test", String.class);
+        assertEquals("number 123", method.invoke(null, "123"));
+        assertEquals("not a number: x (NumberFormatException: FOR INPUT STRING: \"X\")",
+                     method.invoke(null, "x"));
+    }
+
+    @Test
+    public void finallyAuto() throws Exception {
+        // The rethrow path of a finally handler is moved.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        cm.addField(String.class, "log").private_().static_();
+        var mm = (TheMethodMaker) cm.addMethod(int.class, "test", int.class, String.class)
+            .public_().static_();
+        mm.mOutline = true;
+
+        Label start = mm.label().here();
+        checkArg(mm, mm.param(0));
+        mm.return_(mm.param(0));
+        mm.finally_(start, () -> {
+            mm.field("log").set(mm.concat("finally ", mm.param(0), ' ', mm.param(1)));
+        });
+
+        MethodMaker lm = cm.addMethod(String.class, "log").public_().static_();
+        lm.return_(lm.field("log"));
+
+        var clazz = cm.finish();
+
+        assertTrue(helpers(clazz) >= 1);
+
+        var method = clazz.getMethod("test", int.class, String.class);
+        assertEquals(10, method.invoke(null, 10, "a"));
+        assertEquals("finally 10 a", clazz.getMethod("log").invoke(null));
+
+        Throwable e = invokeFail(method, -1, "b");
+        assertTrue(e instanceof IllegalArgumentException);
+        assertEquals("finally -1 b", clazz.getMethod("log").invoke(null));
+    }
+}
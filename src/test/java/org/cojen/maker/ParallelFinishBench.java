@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+/**
+ * Measures the time to finish a class with many methods, with and without analyzing the
+ * methods in parallel. A speedup requires more than one CPU. Run it with:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes org.cojen.maker.ParallelFinishBench [methods] [branches] [rounds]
+ * </pre>
+ */
+public class ParallelFinishBench {
+    public static void main(String[] args) throws Exception {
+        int methods = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        int branches = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        System.out.println("CPUs: " + Runtime.getRuntime().availableProcessors());
+
+        for (int round=0; round<rounds; round++) {
+            long serial = time(methods, branches, 0);
+            long parallel = time(methods, branches, 1);
+            System.out.printf("round %d: serial %.1f ms, parallel %.1f ms%n",
+                              round, serial / 1e6, parallel / 1e6);
+        }
+    }
+
+    private static long time(int methods, int branches, int parallel) {
+        ClassMaker cm = define(methods, branches, parallel);
+        long start = System.nanoTime();
+        cm.finishBytes();
+        return System.nanoTime() - start;
+    }
+
+    private static ClassMaker define(int methods, int branches, int parallel) {
+        ClassMaker cm = ClassMaker.begin().public_();
+        ((TheClassMaker) cm).mParallelFinish = parallel;
+
+        for (int i=0; i<methods; i++) {
+            MethodMaker mm = cm.addMethod(long.class, "m" + i, int.class).public_().static_();
+            var total = mm.var(long.class).set(i);
+            for (int j=0; j<branches; j++) {
+                var v = mm.var(int.class).set(mm.param(0).add(j));
+                Label skip = mm.label();
+                v.ifLt(0, skip);
+                total.inc(v);
+                skip.here();
+            }
+            mm.return_(total);
+        }
+
+        return cm;
+    }
+}
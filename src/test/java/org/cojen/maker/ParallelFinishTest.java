@@ -0,0 +1,92 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for analyzing methods in parallel when finishing a class.
+ */
+public class ParallelFinishTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(ParallelFinishTest.class.getName());
+    }
+
+    private static final int METHODS = 50;
+
+    private static ClassMaker define(ClassMaker cm, int parallel) {
+        ((TheClassMaker) cm).mParallelFinish = parallel;
+
+        cm.public_();
+        cm.addConstructor().public_();
+
+        for (int i=0; i<METHODS; i++) {
+            MethodMaker mm = cm.addMethod(String.class, "m" + i, int.class).public_().static_();
+            var total = mm.var(long.class).set(i * 1_000_000_000L);
+            var d = mm.var(double.class).set(i + 0.5);
+            Label start = mm.label().here();
+            for (int j=0; j<10; j++) {
+                var v = mm.var(int.class).set(mm.param(0).add(j));
+                Label skip = mm.label();
+                v.ifLt(0, skip);
+                total.inc(v);
+                skip.here();
+            }
+            mm.catch_(start, ArithmeticException.class, e -> mm.return_("fail"));
+            mm.return_(mm.concat(total, ':', d));
+        }
+
+        return cm;
+    }
+
+    @Test
+    public void basic() throws Exception {
+        var clazz = define(ClassMaker.begin(), 1).finish();
+
+        for (int i=0; i<METHODS; i++) {
+            long expect = i * 1_000_000_000L + 10 * 2 + 45;
+            assertEquals(expect + ":" + (i + 0.5),
+                         clazz.getMethod("m" + i, int.class).invoke(null, 2));
+        }
+    }
+
+    @Test
+    public void deterministic() throws Exception {
+        String name = "org.cojen.maker.ParallelFake";
+        byte[] expect = define(ClassMaker.beginExternal(name), 1).finishBytes();
+        for (int i=0; i<5; i++) {
+            assertArrayEquals(expect, define(ClassMaker.beginExternal(name), 1).finishBytes());
+        }
+        // The order of the constants can differ from serial finishing in general, but not
+        // for this class.
+        byte[] serial = define(ClassMaker.beginExternal(name), 0).finishBytes();
+        assertArrayEquals(expect, serial);
+    }
+
+    @Test
+    public void broken() throws Exception {
+        ClassMaker cm = define(ClassMaker.begin(), 1);
+        cm.addMethod(int.class, "broken").public_();
+        try {
+            cm.finish();
+            fail();
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("End reached"));
+        }
+    }
+}
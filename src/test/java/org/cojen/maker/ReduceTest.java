@@ -17,6 +17,7 @@
 package org.cojen.maker;
 
 import org.junit.*;
+import static org.junit.Assert.*;
 
 /**
  * Tests for special code reducing steps.
@@ -86,4 +87,387 @@ public class ReduceTest {
 
         cm.finish().getMethod("test").invoke(null);
     }
+
+    @Test
+    public void shareSlots() throws Exception {
+        // Temporary variables which are never live at the same time can share a slot.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        MethodMaker mm = cm.addMethod(long.class, "test", int.class).public_().static_();
+
+        var total = mm.var(long.class).set(0);
+
+        for (int i=0; i<50; i++) {
+            var a = mm.var(long.class).set(mm.param(0).add(i));
+            var b = mm.var(int.class).set(i);
+            var c = mm.var(double.class).set(b);
+            total.set(total.add(a).add(c.cast(long.class)));
+        }
+
+        mm.return_(total);
+
+        var clazz = cm.finish();
+
+        if (TheMethodMaker.REUSE_SLOTS) {
+            assertTrue(mm.report().slotsSaved() > 200);
+        }
+
+        long expect = 0;
+        for (int i=0; i<50; i++) {
+            expect += 10 + i + i;
+        }
+
+        assertEquals(expect, clazz.getMethod("test", int.class).invoke(null, 10));
+    }
+
+    @Test
+    public void shareSlotsLoop() throws Exception {
+        // Variables which are live around a loop must not share a slot with the temporary
+        // variables inside the loop.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        MethodMaker mm = cm.addMethod(int.class, "test", int.class).public_().static_();
+
+        var total = mm.var(int.class).set(0);
+        var carried = mm.var(int.class).set(1);
+        var i = mm.var(int.class).set(0);
+
+        Label start = mm.label().here();
+        Label end = mm.label();
+        i.ifGe(mm.param(0), end);
+
+        for (int j=0; j<10; j++) {
+            var temp = mm.var(int.class).set(i.mul(j));
+            total.set(total.add(temp));
+        }
+
+        var next = mm.var(int.class).set(carried.add(1));
+        total.set(total.add(carried));
+        carried.set(next);
+
+        i.inc(1);
+        mm.goto_(start);
+
+        end.here();
+        mm.return_(total);
+
+        var clazz = cm.finish();
+
+        int expect = 0;
+        int c = 1;
+        for (int k=0; k<5; k++) {
+            for (int j=0; j<10; j++) {
+                expect += k * j;
+            }
+            expect += c++;
+        }
+
+        assertEquals(expect, clazz.getMethod("test", int.class).invoke(null, 5));
+    }
+
+    @Test
+    public void shareSlotsHandler() throws Exception {
+        // A variable which is used by an exception handler must remain live over the entire
+        // handled range.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        MethodMaker mm = cm.addMethod(String.class, "test", int.class).public_().static_();
+
+        var before = mm.var(String.class).set("before");
+
+        Label start = mm.label().here();
+        for (int j=0; j<10; j++) {
+            var temp = mm.var(String.class).set(mm.concat("x", j));
+            temp.invoke("length");
+        }
+        var divided = mm.var(int.class).set(mm.param(0).div(mm.param(0)));
+        mm.return_(mm.concat(before, divided));
+        Label end = mm.label().here();
+
+        var ex = mm.catch_(start, end, ArithmeticException.class);
+        var after = mm.var(String.class).set(mm.concat(before, '-', ex.invoke("getMessage")));
+        mm.return_(after);
+
+        var clazz = cm.finish();
+        var method = clazz.getMethod("test", int.class);
+
+        assertEquals("before1", method.invoke(null, 3));
+        assertEquals("before-/ by zero", method.invoke(null, 0));
+    }
+
+    @Test
+    public void shareSlotsNamed() throws Exception {
+        // Named variables keep their own slots.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        MethodMaker mm = cm.addMethod(int.class, "test").public_().static_();
+
+        var total = mm.var(int.class).set(0);
+
+        for (int i=0; i<10; i++) {
+            var temp = mm.var(int.class).name("temp" + i).set(i);
+            total.set(total.add(temp));
+        }
+
+        mm.return_(total);
+
+        var clazz = cm.finish();
+
+        assertEquals(0, mm.report().slotsSaved());
+        assertEquals(45, clazz.getMethod("test").invoke(null));
+    }
+
+    @Test
+    public void shareSlotsWide() throws Exception {
+        // When branches are widened, the frame after the branch must not refer to a variable
+        // whose slot was given to another variable.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        MethodMaker mm = cm.addMethod(long.class, "test", int.class).public_().static_();
+
+        var total = mm.var(long.class).set(0);
+        var counter = mm.var(int.class).set(0);
+        Label end = mm.label();
+
+        for (int i=0; i<3; i++) {
+            var a = mm.var(long.class).set(mm.param(0).add(i));
+            total.set(total.add(a));
+            var b = mm.var(int.class).set(i);
+            mm.param(0).ifEq(i, end);
+            for (int j=0; j<3_000; j++) {
+                counter.inc(1000);
+            }
+            total.set(total.add(b));
+        }
+
+        end.here();
+        mm.return_(total.add(counter));
+
+        var clazz = cm.finish();
+        var method = clazz.getMethod("test", int.class);
+
+        assertEquals(0L, method.invoke(null, 0));
+        assertEquals(1L + 2 + 3_000_000, method.invoke(null, 1));
+        assertEquals(9L + 10 + 11 + 0 + 1 + 2 + 9_000_000, method.invoke(null, 9));
+    }
+
+    @Test
+    public void flipOverGoto() throws Exception {
+        // The line number prevents flow analysis from flipping the branch over the goto.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        MethodMaker mm = cm.addMethod(int.class, "test", int.class).public_().static_();
+
+        Label skip = mm.label();
+        Label end = mm.label();
+        mm.param(0).ifEq(0, skip);
+        mm.lineNum(10);
+        mm.goto_(end);
+        skip.here();
+        mm.return_(1);
+        end.here();
+        mm.return_(2);
+
+        var clazz = cm.finish();
+
+        if (TheMethodMaker.PEEPHOLE) {
+            assertEquals(8, ((TheMethodMaker) mm).codeLength());
+        }
+
+        var method = clazz.getMethod("test", int.class);
+        assertEquals(1, method.invoke(null, 0));
+        assertEquals(2, method.invoke(null, 5));
+    }
+
+    @Test
+    public void threadJumps() throws Exception {
+        // Branches through a chain of gotos go directly to the final target, and the gotos
+        // are removed.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        MethodMaker mm = cm.addMethod(int.class, "test", int.class).public_().static_();
+
+        Label a = mm.label();
+        Label b = mm.label();
+        Label c = mm.label();
+        mm.param(0).ifEq(0, a);
+        mm.return_(1);
+        b.here();
+        mm.goto_(c);
+        a.here();
+        mm.goto_(b);
+        c.here();
+        mm.return_(2);
+
+        var clazz = cm.finish();
+
+        if (TheMethodMaker.PEEPHOLE) {
+            assertTrue(((TheMethodMaker) mm).rewrites() > 0);
+            assertEquals(8, ((TheMethodMaker) mm).codeLength());
+        }
+
+        var method = clazz.getMethod("test", int.class);
+        assertEquals(2, method.invoke(null, 0));
+        assertEquals(1, method.invoke(null, 5));
+    }
+
+    @Test
+    public void threadJumpsHandler() throws Exception {
+        // Code which is no longer reached is kept when exception handlers exist, but it must
+        // still verify.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        MethodMaker mm = cm.addMethod(int.class, "test", int.class).public_().static_();
+
+        Label start = mm.label().here();
+        Label a = mm.label();
+        Label b = mm.label();
+        Label c = mm.label();
+        mm.param(0).ifEq(0, a);
+        mm.return_(mm.param(0).div(mm.param(0)));
+        b.here();
+        mm.goto_(c);
+        a.here();
+        mm.goto_(b);
+        c.here();
+        mm.return_(2);
+        Label end = mm.label().here();
+        mm.catch_(start, end, Exception.class);
+        mm.return_(3);
+
+        var clazz = cm.finish();
+
+        var method = clazz.getMethod("test", int.class);
+        assertEquals(2, method.invoke(null, 0));
+        assertEquals(1, method.invoke(null, 5));
+    }
+
+    @Test
+    public void threadSwitch() throws Exception {
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        MethodMaker mm = cm.addMethod(int.class, "test", int.class).public_().static_();
+
+        Label one = mm.label();
+        Label two = mm.label();
+        Label other = mm.label();
+        Label out = mm.label();
+        mm.param(0).switch_(other, new int[] {1, 2}, one, two);
+        one.here();
+        mm.goto_(out);
+        two.here();
+        mm.return_(20);
+        other.here();
+        mm.return_(30);
+        out.here();
+        mm.return_(10);
+
+        var clazz = cm.finish();
+
+        var method = clazz.getMethod("test", int.class);
+        assertEquals(10, method.invoke(null, 1));
+        assertEquals(20, method.invoke(null, 2));
+        assertEquals(30, method.invoke(null, 3));
+    }
+
+    @Test
+    public void foldConversion() throws Exception {
+        ClassMaker cm = ClassMaker.begin(null).public_();
+
+        MethodMaker mm1 = cm.addMethod(long.class, "test1").public_().static_();
+        var x = mm1.var(int.class).set(1);
+        mm1.return_(x);
+
+        MethodMaker mm2 = cm.addMethod(double.class, "test2").public_().static_();
+        var y = mm2.var(int.class).set(1000);
+        mm2.return_(y);
+
+        // Not folded, because ldc2_w isn't any smaller.
+        MethodMaker mm3 = cm.addMethod(long.class, "test3").public_().static_();
+        var z = mm3.var(int.class).set(100);
+        mm3.return_(z);
+
+        var clazz = cm.finish();
+
+        if (TheMethodMaker.PEEPHOLE) {
+            assertEquals(2, ((TheMethodMaker) mm1).codeLength());
+            assertEquals(4, ((TheMethodMaker) mm2).codeLength());
+            assertEquals(4, ((TheMethodMaker) mm3).codeLength());
+        }
+
+        assertEquals(1L, clazz.getMethod("test1").invoke(null));
+        assertEquals(1000.0, clazz.getMethod("test2").invoke(null));
+        assertEquals(100L, clazz.getMethod("test3").invoke(null));
+    }
+
+    @Test
+    public void dupStore() throws Exception {
+        ClassMaker cm = ClassMaker.begin(null).public_();
+
+        MethodMaker mm1 = cm.addMethod(int.class, "test1", int.class, int.class,
+                                       int.class, int.class).public_().static_();
+        var v1 = mm1.var(int.class).set(mm1.param(0).add(mm1.param(1)));
+        mm1.return_(v1.add(v1));
+
+        MethodMaker mm2 = cm.addMethod(long.class, "test2", long.class, long.class)
+            .public_().static_();
+        var v2 = mm2.var(long.class).set(mm2.param(0).add(mm2.param(1)));
+        mm2.return_(v2.add(v2));
+
+        var clazz = cm.finish();
+
+        if (TheMethodMaker.PEEPHOLE) {
+            assertEquals(10, ((TheMethodMaker) mm1).codeLength());
+            assertEquals(10, ((TheMethodMaker) mm2).codeLength());
+        }
+
+        assertEquals(10, clazz.getMethod("test1", int.class, int.class, int.class, int.class)
+                     .invoke(null, 2, 3, 0, 0));
+        assertEquals(10L, clazz.getMethod("test2", long.class, long.class)
+                     .invoke(null, 2L, 3L));
+    }
+
+    @Test
+    public void fuseTemp() throws Exception {
+        // A temporary variable which is separated from its use by a simple push can remain
+        // on the stack.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+
+        MethodMaker mm1 = cm.addMethod(int.class, "sub", int.class, int.class, int.class)
+            .public_().static_();
+        mm1.return_(mm1.param(2).sub(mm1.param(0).add(mm1.param(1))));
+
+        MethodMaker mm2 = cm.addMethod(int.class, "mul", int.class, int.class, int.class)
+            .public_().static_();
+        mm2.return_(mm2.param(2).mul(mm2.param(0).add(mm2.param(1))));
+
+        MethodMaker mm3 = cm.addMethod(int.class, "cmp", int.class, int.class, int.class)
+            .public_().static_();
+        Label less = mm3.label();
+        mm3.param(2).ifLt(mm3.param(0).add(mm3.param(1)), less);
+        mm3.return_(0);
+        less.here();
+        mm3.return_(1);
+
+        MethodMaker mm4 = cm.addMethod(String.class, "concat", String.class, String.class)
+            .public_().static_();
+        mm4.return_(mm4.param(1).invoke("concat", mm4.param(0).invoke("trim")));
+
+        var clazz = cm.finish();
+
+        assertEquals(7, ((TheMethodMaker) mm1).codeLength());
+        assertEquals(6, ((TheMethodMaker) mm2).codeLength());
+        assertEquals(11, ((TheMethodMaker) mm3).codeLength());
+
+        var sub = clazz.getMethod("sub", int.class, int.class, int.class);
+        assertEquals(5, sub.invoke(null, 2, 3, 10));
+        var mul = clazz.getMethod("mul", int.class, int.class, int.class);
+        assertEquals(50, mul.invoke(null, 2, 3, 10));
+        var cmp = clazz.getMethod("cmp", int.class, int.class, int.class);
+        assertEquals(1, cmp.invoke(null, 2, 3, 4));
+        assertEquals(0, cmp.invoke(null, 2, 3, 5));
+        assertEquals(0, cmp.invoke(null, 2, 3, 6));
+        var concat = clazz.getMethod("concat", String.class, String.class);
+        assertEquals("ab", concat.invoke(null, " b ", "a"));
+    }
 }
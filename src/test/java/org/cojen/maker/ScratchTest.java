@@ -0,0 +1,138 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the Scratch class.
+ */
+public class ScratchTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(ScratchTest.class.getName());
+    }
+
+    @Test
+    public void reuse() throws Exception {
+        byte[] a = Scratch.take(100);
+        assertTrue(a.length >= 100);
+        Scratch.give(a);
+        assertSame(a, Scratch.take(50));
+        // Is lent out exclusively.
+        assertNotSame(a, Scratch.take(50));
+        Scratch.give(a);
+        // Too small, so a new buffer is allocated.
+        byte[] b = Scratch.take(a.length + 1);
+        assertNotSame(a, b);
+        Scratch.give(b);
+        assertSame(b, Scratch.take(1));
+    }
+
+    @Test
+    public void cap() throws Exception {
+        byte[] a = Scratch.take(Scratch.MAX_POOLED + 1);
+        Scratch.give(a);
+        assertNotSame(a, Scratch.take(1));
+    }
+
+    @Test
+    public void dirty() throws Exception {
+        // The padding bytes of switch instructions must not be copied from whatever was
+        // left in the pooled buffer.
+
+        String name = "org.cojen.maker.ScratchFake";
+        byte[] expect = switchClass(name);
+
+        for (int i=1; i<=3; i++) {
+            byte[] garbage = Scratch.take(1000);
+            Arrays.fill(garbage, (byte) -i);
+            Scratch.give(garbage);
+            assertArrayEquals(expect, switchClass(name));
+        }
+    }
+
+    private static byte[] switchClass(String name) {
+        ClassMaker cm = ClassMaker.beginExternal(name).public_();
+
+        for (int i=0; i<4; i++) {
+            // Vary the alignment of the switch instructions.
+            MethodMaker mm = cm.addMethod(int.class, "test" + i, int.class).public_().static_();
+            for (int j=0; j<i; j++) {
+                mm.nop();
+            }
+            Label a = mm.label(), b = mm.label(), c = mm.label(), d = mm.label();
+            mm.param(0).switch_(d, new int[] {1, 2}, a, b);
+            a.here();
+            mm.param(0).add(1).switch_(d, new int[] {1, 1000}, b, c);
+            b.here();
+            mm.return_(20);
+            c.here();
+            mm.return_(30);
+            d.here();
+            mm.return_(0);
+        }
+
+        return cm.finishBytes();
+    }
+
+    @Test
+    public void concurrent() throws Exception {
+        // Methods finished concurrently must not see each other's code.
+
+        var threads = new ArrayList<Thread>();
+        var failures = new ArrayList<Throwable>();
+
+        for (int t=0; t<8; t++) {
+            final int base = t * 1000;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i=0; i<50; i++) {
+                        ClassMaker cm = ClassMaker.begin().public_();
+                        MethodMaker mm = cm.addMethod(int.class, "test").public_().static_();
+                        var v = mm.var(int.class).set(base);
+                        for (int j=0; j<i; j++) {
+                            v.inc(j);
+                        }
+                        mm.return_(v);
+                        int expect = base + i * (i - 1) / 2;
+                        assertEquals(expect, cm.finish().getMethod("test").invoke(null));
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        if (!failures.isEmpty()) {
+            throw new AssertionError(failures.get(0));
+        }
+    }
+}
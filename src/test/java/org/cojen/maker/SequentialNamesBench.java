@@ -0,0 +1,56 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+/**
+ * Measures the cost of assigning generated class names in one package, with random and with
+ * sequential suffixes. All the makers are kept reachable, and so the names stay reserved.
+ * Run it with:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes org.cojen.maker.SequentialNamesBench [count] [rounds]
+ * </pre>
+ */
+public class SequentialNamesBench {
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        for (int round=0; round<rounds; round++) {
+            double random = run(count, false);
+            double sequential = run(count, true);
+            System.out.printf("round %d: random %.2f us/begin, sequential %.2f us/begin%n",
+                              round, random, sequential);
+        }
+    }
+
+    private static double run(int count, boolean sequential) {
+        ClassLoader loader = SequentialNamesBench.class.getClassLoader();
+        var key = new Object();
+        ClassInjector.find(false, loader, key).mSequentialNames = sequential;
+
+        var makers = new ClassMaker[count];
+
+        long start = System.nanoTime();
+        for (int i=0; i<count; i++) {
+            makers[i] = ClassMaker.begin("bench.Foo", loader, key);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        return (elapsed / 1e3) / count;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ *  Copyright 2026 Cojen.org
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.cojen.maker;
+
+import java.lang.reflect.Modifier;
+
+import org.junit.*;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for splitting large methods into helper methods.
+ */
+public class SplitTest {
+    public static void main(String[] args) throws Exception {
+        org.junit.runner.JUnitCore.main(SplitTest.class.getName());
+    }
+
+    private static int helpers(Class<?> clazz) {
+        int count = 0;
+        for (var m : clazz.getDeclaredMethods()) {
+            if (m.isSynthetic() && Modifier.isPrivate(m.getModifiers())) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void linear() throws Exception {
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        var mm = (TheMethodMaker) cm.addMethod(int.class, "test", int.class).public_().static_();
+        mm.mSplitLimit = 8000;
+
+        var total = mm.var(int.class).set(0);
+        for (int i=0; i<3000; i++) {
+            total.set(total.add(mm.param(0).mul(i)));
+        }
+        mm.return_(total);
+
+        var clazz = cm.finish();
+
+        assertTrue(mm.codeLength() <= 8000);
+        assertTrue(helpers(clazz) >= 2);
+
+        int expect = 0;
+        for (int i=0; i<3000; i++) {
+            expect += 3 * i;
+        }
+
+        assertEquals(expect, clazz.getMethod("test", int.class).invoke(null, 3));
+    }
+
+    @Test
+    public void tooBig() throws Exception {
+        // Without splitting, the code limit would be reached.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        var mm = (TheMethodMaker) cm.addMethod(long.class, "test", long.class)
+            .public_().static_();
+        mm.mSplitLimit = 8000;
+
+        var total = mm.var(long.class).set(0);
+        for (int i=0; i<10_000; i++) {
+            total.set(total.add(mm.param(0).xor(i)));
+        }
+        mm.return_(total);
+
+        var clazz = cm.finish();
+
+        assertTrue(mm.codeLength() <= 8000);
+
+        long expect = 0;
+        for (int i=0; i<10_000; i++) {
+            expect += 12345L ^ i;
+        }
+
+        assertEquals(expect, clazz.getMethod("test", long.class).invoke(null, 12345L));
+    }
+
+    @Test
+    public void branches() throws Exception {
+        // Segments can contain branches, but they cannot be entered in the middle.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        var mm = (TheMethodMaker) cm.addMethod(int.class, "test", int.class).public_().static_();
+        mm.mSplitLimit = 2000;
+
+        var total = mm.var(int.class).set(0);
+        var outer = mm.var(int.class).set(0);
+        Label top = mm.label().here();
+
+        for (int i=0; i<500; i++) {
+            Label skip = mm.label();
+            mm.param(0).ifEq(i, skip);
+            total.inc(i);
+            skip.here();
+        }
+
+        outer.inc(1);
+        outer.ifLt(3, top);
+        mm.return_(total);
+
+        var clazz = cm.finish();
+
+        assertTrue("" + mm.codeLength(), mm.codeLength() <= 2000);
+        assertTrue(helpers(clazz) >= 1);
+
+        var method = clazz.getMethod("test", int.class);
+
+        assertEquals(3 * (499 * 500 / 2 - 10), method.invoke(null, 10));
+        assertEquals(3 * (499 * 500 / 2), method.invoke(null, 1000));
+    }
+
+    @Test
+    public void twoResults() throws Exception {
+        // Only one modified variable can be returned from a helper method.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        var mm = (TheMethodMaker) cm.addMethod(String.class, "test", int.class)
+            .public_().static_();
+        mm.mSplitLimit = 2000;
+
+        var a = mm.var(int.class).set(0);
+        var b = mm.var(int.class).set(0);
+
+        for (int i=0; i<500; i++) {
+            a.inc(1);
+            b.set(b.add(mm.param(0)));
+        }
+
+        for (int i=0; i<500; i++) {
+            var t = mm.var(int.class).set(mm.param(0).mul(i));
+            b.set(b.sub(t));
+        }
+
+        mm.return_(mm.concat(a, ' ', b));
+
+        var clazz = cm.finish();
+
+        assertTrue(helpers(clazz) >= 1);
+
+        int expectB = 0;
+        for (int i=0; i<500; i++) {
+            expectB += 2;
+        }
+        for (int i=0; i<500; i++) {
+            expectB -= 2 * i;
+        }
+
+        assertEquals("500 " + expectB, clazz.getMethod("test", int.class).invoke(null, 2));
+    }
+
+    @Test
+    public void instance() throws Exception {
+        // Instance methods pass "this" to the helper methods.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        cm.addField(int.class, "value").private_();
+        cm.addConstructor().public_();
+
+        var mm = (TheMethodMaker) cm.addMethod(int.class, "test").public_();
+        mm.mSplitLimit = 1000;
+
+        for (int i=0; i<1000; i++) {
+            mm.field("value").inc(i);
+        }
+        mm.return_(mm.field("value"));
+
+        var clazz = cm.finish();
+
+        assertTrue(helpers(clazz) >= 2);
+
+        var instance = clazz.getConstructor().newInstance();
+        assertEquals(999 * 1000 / 2, clazz.getMethod("test").invoke(instance));
+    }
+
+    @Test
+    public void handler() throws Exception {
+        // Code covered by an exception handler isn't moved.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        var mm = (TheMethodMaker) cm.addMethod(int.class, "test", int.class).public_().static_();
+        mm.mSplitLimit = 1000;
+
+        var total = mm.var(int.class).set(0);
+
+        Label start = mm.label().here();
+        for (int i=0; i<300; i++) {
+            total.set(total.add(mm.param(0).div(i + 1)));
+        }
+        total.set(total.div(mm.param(0)));
+        Label end = mm.label().here();
+        var skip = mm.label();
+        mm.goto_(skip);
+        mm.catch_(start, end, ArithmeticException.class);
+        total.set(-1);
+        skip.here();
+
+        for (int i=0; i<300; i++) {
+            total.set(total.add(i));
+        }
+
+        mm.return_(total);
+
+        var clazz = cm.finish();
+
+        var method = clazz.getMethod("test", int.class);
+
+        int expect = 0;
+        for (int i=0; i<300; i++) {
+            expect += 1000 / (i + 1);
+        }
+        expect /= 1000;
+        for (int i=0; i<300; i++) {
+            expect += i;
+        }
+
+        assertEquals(expect, method.invoke(null, 1000));
+        assertEquals(-1 + 299 * 300 / 2, method.invoke(null, 0));
+    }
+
+    @Test
+    public void handlerEnd() throws Exception {
+        // The labels which define a handler range aren't moved, even when the code which
+        // follows could be.
+
+        ClassMaker cm = ClassMaker.begin(null).public_();
+        var mm = (TheMethodMaker) cm.addMethod(int.class, "test", int.class).public_().static_();
+        mm.mSplitLimit = 1000;
+
+        var total = mm.var(int.class).set(0);
+
+        Label start = mm.label().here();
+        total.set(mm.param(0).div(mm.param(0)));
+        Label end = mm.label().here();
+
+        for (int i=0; i<300; i++) {
+            total.set(total.add(i));
+        }
+
+        var skip = mm.label();
+        mm.goto_(skip);
+        mm.catch_(start, end, ArithmeticException.class);
+        total.set(-1);
+        skip.here();
+
+        mm.return_(total);
+
+        var clazz = cm.finish();
+
+        assertTrue(helpers(clazz) >= 1);
+
+        var method = clazz.getMethod("test", int.class);
+
+        assertEquals(1 + 299 * 300 / 2, method.invoke(null, 10));
+        assertEquals(-1, method.invoke(null, 0));
+    }
+}
@@ -16,6 +16,8 @@
 
 package org.cojen.maker;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.*;
 import static org.junit.Assert.*;
 
@@ -84,6 +86,62 @@ public class WeakCacheTest {
         assertEquals(values[3], cache.get("FB"));
     }
 
+    @Test
+    public void computeIfAbsent() throws Exception {
+        var cache = new WeakCache<String, Value>();
+
+        Value v = cache.computeIfAbsent("a", k -> new Value());
+        assertSame(v, cache.get("a"));
+        assertSame(v, cache.computeIfAbsent("a", k -> { throw new AssertionError(); }));
+
+        // Concurrent callers observe the same value, and the factory is called once.
+
+        var calls = new AtomicInteger();
+        var results = new Value[8];
+        var threads = new Thread[results.length];
+
+        for (int i=0; i<threads.length; i++) {
+            final int fi = i;
+            threads[i] = new Thread(() -> {
+                results[fi] = cache.computeIfAbsent("b", k -> {
+                    calls.incrementAndGet();
+                    return new Value();
+                });
+            });
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(1, calls.get());
+
+        for (Value r : results) {
+            assertSame(results[0], r);
+        }
+    }
+
+    @Test
+    public void computeCleanup() {
+        var cache = new WeakCache<Integer, Value>();
+
+        for (int i=0; i<10_000; i++) {
+            assertNotNull(cache.computeIfAbsent(i, k -> new Value()));
+            if (i % 1000 == 0) {
+                System.gc();
+            }
+        }
+
+        // Cleared values are replaced.
+        for (int i=0; i<10_000; i++) {
+            assertNotNull(cache.computeIfAbsent(i, k -> new Value()));
+        }
+    }
+
     private static class Value {
     }
 }
@@ -106,6 +106,65 @@ public class WideTest {
         }
     }
 
+    @Test
+    public void wideJumpLocals() throws Exception {
+        // Widened conditional branches must define the correct frame for the code which
+        // follows them, even though flow analysis doesn't run again.
+
+        ClassMaker cm = ClassMaker.begin().public_();
+        MethodMaker mm = cm.addMethod(long.class, "run", int.class).static_().public_();
+
+        var v1 = mm.var(long.class).set(1);
+        var v2 = mm.var(String.class).set("hello");
+        var c = mm.var(int.class).set(0);
+
+        Label end = mm.label();
+
+        for (int i=0; i<3; i++) {
+            mm.param(0).ifEq(i, end);
+            var v3 = mm.var(double.class).set(v1.cast(double.class));
+            for (int j=0; j<3_000; j++) {
+                c.inc(1000);
+            }
+            v1.set(v1.add(c));
+            v1.set(v1.add(v3.cast(long.class)));
+            v1.set(v1.add(v2.invoke("length")));
+        }
+
+        end.here();
+        mm.return_(v1);
+
+        var clazz = cm.finish();
+        var method = clazz.getMethod("run", int.class);
+        assertEquals(1L, method.invoke(null, 0));
+        assertEquals(3_000_007L, method.invoke(null, 1));
+        assertEquals(33_000_043L, method.invoke(null, -1));
+    }
+
+    @Test
+    public void wideJumpConstructor() throws Exception {
+        // Appending the code again must not invoke the super constructor twice.
+
+        ClassMaker cm = ClassMaker.begin().public_();
+        cm.addField(int.class, "value").public_();
+        MethodMaker mm = cm.addConstructor(int.class).public_();
+        mm.invokeSuperConstructor();
+
+        var v1 = mm.var(int.class).set(0);
+        Label end = mm.label();
+        mm.param(0).ifEq(0, end);
+        for (int i=0; i<10_000; i++) {
+            v1.inc(1000);
+        }
+        end.here();
+        mm.field("value").set(v1);
+
+        var clazz = cm.finish();
+        assertEquals(0, clazz.getField("value").get(clazz.getConstructor(int.class).newInstance(0)));
+        assertEquals(10_000_000, clazz.getField("value")
+                     .get(clazz.getConstructor(int.class).newInstance(1)));
+    }
+
     @Test
     public void wideConstant() throws Exception {
         // Test the ldc_w opcode.